@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.benchmark;
+
+import com.dfbnc.config.ConfigBenchmark;
+import com.dfbnc.servers.irc.NumericBenchmark;
+import com.dfbnc.util.LineBuilderBenchmark;
+import com.dfbnc.util.ReplayBenchmark;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the microbenchmarks.
+ *
+ * These are plain timing loops rather than a full harness, but are enough to
+ * compare two ways of doing the same thing. Each benchmark is run a few times
+ * first so that the JIT has compiled it, then timed over several rounds.
+ *
+ * Run with "gradle benchmark", or "gradle benchmark -Pbenchmarks=Replay" to
+ * only run some of them.
+ */
+public final class Benchmarks {
+
+    /** Rounds to run before timing. */
+    private static final int WARMUP_ROUNDS = 5;
+
+    /** Rounds to time. */
+    private static final int ROUNDS = 10;
+
+    /** Results are added to this so the JIT can't skip the work. */
+    private static volatile long sink;
+
+    /**
+     * A batch of operations to time.
+     */
+    public interface Task {
+        /**
+         * Run the operations.
+         *
+         * @param operations Number of operations to run
+         * @return Anything that depends on the work done
+         */
+        long run(final int operations);
+    }
+
+    /** Prevent instantiation. */
+    private Benchmarks() {
+    }
+
+    /**
+     * Time a task and print how long each operation took.
+     *
+     * @param name Name to print
+     * @param operations Number of operations in each round
+     * @param task Task to time
+     */
+    public static void time(final String name, final int operations, final Task task) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sink += task.run(operations);
+        }
+
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            final long start = System.nanoTime();
+            sink += task.run(operations);
+            final long elapsed = System.nanoTime() - start;
+            best = Math.min(best, elapsed);
+            total += elapsed;
+        }
+
+        System.out.printf("    %-36s %10.1f ns/op (best %.1f)%n", name,
+                (double) total / ROUNDS / operations, (double) best / operations);
+    }
+
+    /**
+     * Run the benchmarks.
+     *
+     * @param args Names of the benchmarks to run, or none to run them all
+     */
+    public static void main(final String[] args) {
+        final Map<String, Runnable> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("Replay", ReplayBenchmark::run);
+        benchmarks.put("Numeric", NumericBenchmark::run);
+        benchmarks.put("LineBuilder", LineBuilderBenchmark::run);
+        benchmarks.put("Config", ConfigBenchmark::run);
+
+        final List<String> selected = Arrays.asList(args);
+        for (Map.Entry<String, Runnable> benchmark : benchmarks.entrySet()) {
+            if (selected.isEmpty() || selected.contains(benchmark.getKey())) {
+                System.out.println(benchmark.getKey() + ":");
+                benchmark.getValue().run();
+            }
+        }
+    }
+}
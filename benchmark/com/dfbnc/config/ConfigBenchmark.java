@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.config;
+
+import com.dfbnc.benchmark.Benchmarks;
+import com.dmdirc.util.io.InvalidConfigFileException;
+import com.dmdirc.util.validators.PermissiveValidator;
+import com.dmdirc.util.validators.Validator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares looking up options through a defaults, account and sub-client
+ * chain the way DefaultsConfig used to, catching a NullPointerException from
+ * each layer that doesn't have the option, against
+ * {@link Config#findOption(String, String, Validator)}.
+ *
+ * Options are looked up with a validator, which isn't cached, so every
+ * lookup goes through the layers.
+ */
+public final class ConfigBenchmark {
+
+    /** Lookups in each round. */
+    private static final int LOOKUPS = 100000;
+
+    /** Validator used for every lookup. */
+    private static final Validator<String> VALIDATOR = new PermissiveValidator<>();
+
+    /** Prevent instantiation. */
+    private ConfigBenchmark() {
+    }
+
+    /**
+     * Create a config from the given text.
+     *
+     * @param text Config file contents
+     * @return The config
+     */
+    private static Config config(final String text) {
+        try {
+            return new ConfigFileConfig(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException | InvalidConfigFileException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Look up an option the old way, trying each layer in turn.
+     *
+     * @param layers Configs to check, most specific first
+     * @param option Option to look up
+     * @return The value of the option
+     */
+    private static String layered(final Config[] layers, final String option) {
+        for (Config layer : layers) {
+            try {
+                return layer.getOption("server", option, VALIDATOR);
+            } catch (final NullPointerException npe) {
+                /* Try the next layer. */
+            }
+        }
+        throw new NullPointerException("No such config option");
+    }
+
+    /**
+     * Run the benchmark.
+     */
+    public static void run() {
+        final Config defaults = config("server:\n    backbuffer=0\n    autoconnect=false\n");
+        final Config account = config("server:\n    backbuffer=100\n");
+        final Config subclient = config("server:\n    nickname=sub\n");
+        final Config[] layers = {subclient, account, defaults};
+        final Config chain;
+        try {
+            chain = new DefaultsConfig(subclient, new DefaultsConfig(account, defaults));
+        } catch (IOException | InvalidConfigFileException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        // Found in the sub-client, the account and the defaults.
+        for (String option : new String[]{"nickname", "backbuffer", "autoconnect"}) {
+            Benchmarks.time("Exceptions, option " + option, LOOKUPS, lookups -> {
+                long length = 0;
+                for (int i = 0; i < lookups; i++) {
+                    length += layered(layers, option).length();
+                }
+                return length;
+            });
+            Benchmarks.time("findOption, option " + option, LOOKUPS, lookups -> {
+                long length = 0;
+                for (int i = 0; i < lookups; i++) {
+                    length += chain.findOption("server", option, VALIDATOR).get().length();
+                }
+                return length;
+            });
+        }
+    }
+}
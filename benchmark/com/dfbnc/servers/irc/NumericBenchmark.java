@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.servers.irc;
+
+import com.dfbnc.benchmark.Benchmarks;
+
+import java.util.Random;
+
+/**
+ * Compares checking whether lines from the server are numerics the way
+ * onDataIn used to, with Integer.parseInt and a NumberFormatException for
+ * everything else, against {@link ParsedLine#parseNumeric(String)}.
+ *
+ * There is no captured trace to replay, so the lines are made up to look
+ * like a busy channel: mostly PRIVMSGs, with some joins, parts, quits and
+ * the numerics sent when joining or listing a channel.
+ */
+public final class NumericBenchmark {
+
+    /** Lines in the trace. */
+    private static final int LINES = 10000;
+
+    /** Commands in the trace, in the order they are in the trace. */
+    private static final String[] COMMANDS = new String[LINES];
+
+    static {
+        final String[] numerics = {"353", "366", "324", "329", "332", "333", "367", "368"};
+        final Random random = new Random(42);
+        for (int i = 0; i < LINES; i++) {
+            final int roll = random.nextInt(100);
+            if (roll < 85) {
+                COMMANDS[i] = "PRIVMSG";
+            } else if (roll < 88) {
+                COMMANDS[i] = "NOTICE";
+            } else if (roll < 91) {
+                COMMANDS[i] = "JOIN";
+            } else if (roll < 93) {
+                COMMANDS[i] = "PART";
+            } else if (roll < 96) {
+                COMMANDS[i] = "QUIT";
+            } else if (roll < 97) {
+                COMMANDS[i] = "MODE";
+            } else {
+                COMMANDS[i] = numerics[random.nextInt(numerics.length)];
+            }
+        }
+    }
+
+    /** Prevent instantiation. */
+    private NumericBenchmark() {
+    }
+
+    /**
+     * Run the benchmark.
+     */
+    public static void run() {
+        Benchmarks.time("Integer.parseInt and exception", LINES * 100, lines -> {
+            long total = 0;
+            for (int i = 0; i < lines; i++) {
+                try {
+                    total += Integer.parseInt(COMMANDS[i % LINES]);
+                } catch (final NumberFormatException nfe) {
+                    /* Non-Numeric Line. */
+                }
+            }
+            return total;
+        });
+        Benchmarks.time("ParsedLine.parseNumeric", LINES * 100, lines -> {
+            long total = 0;
+            for (int i = 0; i < lines; i++) {
+                final int numeric = ParsedLine.parseNumeric(COMMANDS[i % LINES]);
+                if (numeric != -1) {
+                    total += numeric;
+                }
+            }
+            return total;
+        });
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.util;
+
+import com.dfbnc.benchmark.Benchmarks;
+
+/**
+ * Compares building the lines UserSocket sends from the BNC itself with
+ * String.format, as sendBotLine and sendIRCLine used to, against
+ * {@link IRCLineBuilder}.
+ */
+public final class LineBuilderBenchmark {
+
+    /** Lines in each round. */
+    private static final int LINES = 100000;
+
+    /** Messages to send. */
+    private static final String[] MESSAGES = new String[100];
+
+    static {
+        for (int i = 0; i < MESSAGES.length; i++) {
+            MESSAGES[i] = "Loaded " + i + " lines of backbuffer for #channel" + i;
+        }
+    }
+
+    /** Prevent instantiation. */
+    private LineBuilderBenchmark() {
+    }
+
+    /**
+     * Run the benchmark.
+     */
+    public static void run() {
+        Benchmarks.time("Bot line with String.format", LINES, lines -> {
+            long length = 0;
+            for (int i = 0; i < lines; i++) {
+                length += String.format(":%s!bot@%s %s %s :%s", "-BNC", "DFBnc.Server", "NOTICE", "nick",
+                        MESSAGES[i % MESSAGES.length]).length();
+            }
+            return length;
+        });
+        Benchmarks.time("Bot line with IRCLineBuilder", LINES, lines -> {
+            long length = 0;
+            for (int i = 0; i < lines; i++) {
+                length += IRCLineBuilder.get().source("-BNC", "bot", "DFBnc.Server").command("NOTICE").param("nick")
+                        .trailing(MESSAGES[i % MESSAGES.length]).build().length();
+            }
+            return length;
+        });
+        Benchmarks.time("Numeric with String.format", LINES, lines -> {
+            long length = 0;
+            for (int i = 0; i < lines; i++) {
+                length += String.format(":%s %03d %s :%s", "DFBnc.Server", 5, "nick", MESSAGES[i % MESSAGES.length]).length();
+            }
+            return length;
+        });
+        Benchmarks.time("Numeric with IRCLineBuilder", LINES, lines -> {
+            long length = 0;
+            for (int i = 0; i < lines; i++) {
+                length += IRCLineBuilder.get().source("DFBnc.Server").command(5).param("nick")
+                        .trailing(MESSAGES[i % MESSAGES.length]).build().length();
+            }
+            return length;
+        });
+    }
+}
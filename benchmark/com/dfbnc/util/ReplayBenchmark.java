@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.util;
+
+import com.dfbnc.benchmark.Benchmarks;
+
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Compares building replayed backbuffer lines for a server-time client the
+ * way sendBackbuffer used to, with a new SimpleDateFormat for each replay and
+ * a tag map and IRCLine for each line, against the reusable buffers and
+ * cached {@link ServerTime} it uses now.
+ */
+public final class ReplayBenchmark {
+
+    /** Lines in each replay. */
+    private static final int LINES = 1000;
+
+    /** Replays in each timed round. */
+    private static final int REPLAYS = 100;
+
+    /** Batch the replayed lines are in. */
+    private static final String BATCH = "a1b2c3d4";
+
+    /** Messages to replay. */
+    private static final String[] MESSAGES = new String[LINES];
+
+    /** Times of the messages to replay. */
+    private static final long[] TIMES = new long[LINES];
+
+    static {
+        final long start = 1500000000000L;
+        for (int i = 0; i < LINES; i++) {
+            MESSAGES[i] = ":nick" + (i % 20) + "!user@host.example.com PRIVMSG #channel :This is message number " + i;
+            TIMES[i] = start + i * 337L;
+        }
+    }
+
+    /** Prevent instantiation. */
+    private ReplayBenchmark() {
+    }
+
+    /**
+     * Run the benchmark.
+     */
+    public static void run() {
+        Benchmarks.time("Tag map and IRCLine per line", REPLAYS * LINES, lines -> {
+            long length = 0;
+            for (int i = 0; i < lines; i += LINES) {
+                length += before();
+            }
+            return length;
+        });
+        Benchmarks.time("Reused buffers and ServerTime", REPLAYS * LINES, lines -> {
+            long length = 0;
+            for (int i = 0; i < lines; i += LINES) {
+                length += after();
+            }
+            return length;
+        });
+    }
+
+    /**
+     * Build one replay the old way.
+     *
+     * @return Total length of the lines
+     */
+    private static long before() {
+        final SimpleDateFormat servertime = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        servertime.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        long length = 0;
+        for (int i = 0; i < LINES; i++) {
+            final Map<String, String> messageTags = new HashMap<>();
+            messageTags.put("batch", BATCH);
+            messageTags.put("time", servertime.format(TIMES[i]));
+            length += encode(MESSAGES[i], messageTags).length();
+        }
+        return length;
+    }
+
+    /**
+     * Put together a line and its tags the way IRCLine used to.
+     *
+     * @param line Line without tags
+     * @param messageTags Tags for the line
+     * @return The line with its tags.
+     */
+    private static String encode(final String line, final Map<String, String> messageTags) {
+        final StringBuilder output = new StringBuilder("@");
+        boolean first = true;
+        for (final Map.Entry<String, String> tag : messageTags.entrySet()) {
+            if (!first) { output.append(";"); }
+            output.append(tag.getKey());
+            if (tag.getValue() != null && !tag.getValue().isEmpty()) {
+                output.append("=");
+                output.append(tag.getValue());
+            }
+            first = false;
+        }
+        return output.append(' ').append(line).toString();
+    }
+
+    /**
+     * Build one replay the way sendBackbuffer does now.
+     *
+     * @return Total length of the lines
+     */
+    private static long after() {
+        final StringBuilder tagPrefix = new StringBuilder("@batch=").append(BATCH);
+        final StringBuilder output = new StringBuilder(610);
+
+        long length = 0;
+        for (int i = 0; i < LINES; i++) {
+            output.setLength(0);
+            output.append(tagPrefix).append(';');
+            ServerTime.appendTo(output.append("time="), TIMES[i]);
+            output.append(' ').append(MESSAGES[i]);
+            length += output.toString().length();
+        }
+        return length;
+    }
+}
@@ -25,10 +25,12 @@ package com.dfbnc;
 import com.dmdirc.util.io.InvalidConfigFileException;
 
 import com.dfbnc.authentication.AuthProviderManager;
+import com.dfbnc.backbuffer.BackbufferStore;
 import com.dfbnc.commands.CommandManager;
 import com.dfbnc.config.Config;
 import com.dfbnc.config.ConfigChangeListener;
 import com.dfbnc.config.ConfigFileConfig;
+import com.dfbnc.config.ConfigWriter;
 import com.dfbnc.config.DefaultsConfig;
 import com.dfbnc.servers.ServerType;
 import com.dfbnc.servers.ServerTypeNotFound;
@@ -49,6 +51,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 
@@ -79,12 +82,17 @@ public final class Account implements UserSocketWatcher,ConfigChangeListener {
     private final Map<String,Config> subClientConfigs = new HashMap<>();
     /** Reverse map of subClientConfigs */
     private final Map<Config,String> subClientConfigKeys = new HashMap<>();
-    /** Configuration change listeners. */
-    private final Map<String, List<AccountConfigChangeListener>> listeners = new HashMap<>();
+    /**
+     * Configuration change listeners. User sockets add and remove themselves
+     * as they come and go, so this is safe to change while it is in use.
+     */
+    private final Map<String, List<AccountConfigChangeListener>> listeners = new ConcurrentHashMap<>();
     /** Reconnect Timer. */
     private Timer reconnectTimer;
     /** Is the next disconnect intentional? */
     private boolean disconnectWanted;
+    /** On-disk backbuffer store, created when first needed. */
+    private BackbufferStore backbufferStore;
 
     /**
      * Create an Account object.
@@ -327,6 +335,32 @@ public final class Account implements UserSocketWatcher,ConfigChangeListener {
         return myServerLogger;
     }
 
+    /**
+     * Get the on-disk backbuffer store for this account.
+     *
+     * The store lives with the account rather than the ConnectionHandler so
+     * that history is kept across reconnects.
+     *
+     * @return The BackbufferStore for this account
+     */
+    public synchronized BackbufferStore getBackbufferStore() {
+        if (backbufferStore == null) {
+            backbufferStore = new BackbufferStore(new File(getConfigDirectory(), "backbuffer"), config.getOptionInt("server", "backbuffersegments"));
+        }
+        return backbufferStore;
+    }
+
+    /**
+     * Flush and close the on-disk backbuffer store for this account, if it
+     * has been opened.
+     */
+    public synchronized void closeBackbufferStore() {
+        if (backbufferStore != null) {
+            backbufferStore.close();
+            backbufferStore = null;
+        }
+    }
+
     /**
      * Set the ConnectionHandler for this account
      *
@@ -495,8 +529,11 @@ public final class Account implements UserSocketWatcher,ConfigChangeListener {
             myConnectionHandler.shutdown("Account Deleted");
             if (myServerLogger != null) { myServerLogger.disableLogging(); }
         }
+        closeBackbufferStore();
 
         final File confDir = new File(DFBnc.getConfigDirName(), getName());
+        // Don't let a pending write recreate files in the directory.
+        ConfigWriter.get().cancel(confDir);
         if (confDir.exists()) {
             if (!Util.deleteFolder(confDir)) {
                 throw new IOException("Unable to delete config directory.");
@@ -726,12 +763,9 @@ public final class Account implements UserSocketWatcher,ConfigChangeListener {
      * @param listener The listener to register
      */
     protected void addConfigListener(final String key, final AccountConfigChangeListener listener) {
-        if (!listeners.containsKey(key)) {
-            final List<AccountConfigChangeListener> l = new ArrayList<>();
-            listeners.put(key, l);
-        }
-        if (!listeners.get(key).contains(listener)) {
-            listeners.get(key).add(listener);
+        final List<AccountConfigChangeListener> list = listeners.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>());
+        if (!list.contains(listener)) {
+            list.add(listener);
         }
     }
 
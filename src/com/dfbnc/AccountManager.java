@@ -22,6 +22,9 @@
 
 package com.dfbnc;
 
+import com.dfbnc.config.Config;
+import com.dfbnc.config.ConfigFileConfig;
+import com.dfbnc.config.DefaultsConfig;
 import com.dfbnc.servers.ServerType;
 import com.dfbnc.sockets.UnableToConnectException;
 import com.dmdirc.util.io.InvalidConfigFileException;
@@ -33,28 +36,97 @@ import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manages the list of accounts.
  */
 public class AccountManager {
 
-    /** List of loaded Accounts */
-    private final Map<String, Account> accounts = new HashMap<>();
+    /** Loaded Accounts, by normalised name. */
+    private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+
+    /**
+     * Normalised names of accounts that exist but haven't been loaded yet.
+     * These are loaded the first time they are asked for.
+     */
+    private final Set<String> unloaded = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Locks held while loading, creating or removing an account, by
+     * normalised name. This stops two threads loading the same account
+     * without making other accounts wait for the disk.
+     */
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+    /** Connects autoconnect accounts after they have been loaded. */
+    private ScheduledExecutorService autoconnector;
+
+    /** Used to load accounts from disk. */
+    private final AccountLoader loader;
+
+    /**
+     * Loads an account from disk.
+     */
+    interface AccountLoader {
+        /**
+         * Load an account, creating it if it doesn't exist.
+         *
+         * @param accountName Name of the account
+         * @return The account
+         * @throws IOException Error loading config
+         * @throws InvalidConfigFileException Error loading config
+         */
+        Account load(final String accountName) throws IOException, InvalidConfigFileException;
+    }
 
     /** Prevent public instantiation of AccountManager. Use {@link DFBnc#getAccountManager()}. */
     AccountManager() {
+        this(Account::new);
     }
 
     /**
-     * Gets a collection of known accounts.
+     * Create a new AccountManager.
      *
-     * @return Returns a collection of accounts
+     * @param loader Used to load accounts from disk
      */
-    public Collection<Account> getAccounts() {
+    AccountManager(final AccountLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Gets the names of all known accounts, in order. This doesn't load any
+     * accounts that haven't been loaded yet.
+     *
+     * @return Returns a list of account names
+     */
+    public List<String> getAccountNames() {
+        // An account being loaded can briefly be in both.
+        final Set<String> names = new TreeSet<>(accounts.keySet());
+        names.addAll(unloaded);
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Gets a collection of accounts that have been loaded. Accounts that
+     * haven't been loaded have never been used, so have no sockets or
+     * changes to save.
+     *
+     * @return Returns a collection of loaded accounts
+     */
+    public Collection<Account> getLoadedAccounts() {
         return new ArrayList<>(accounts.values());
     }
 
@@ -64,7 +136,24 @@ public class AccountManager {
      * @return total number of known accounts
      */
     public int count() {
-        return accounts.size();
+        return accounts.size() + unloaded.size();
+    }
+
+    /**
+     * Get the name an account is stored under.
+     *
+     * @param username Username to normalise
+     * @return The username with '.' replaced by '_', in lower case.
+     */
+    static String normalise(final String username) {
+        // Most names are already normalised, so avoid making a copy.
+        for (int i = 0; i < username.length(); i++) {
+            final char c = username.charAt(i);
+            if (c == '.' || Character.toLowerCase(c) != c) {
+                return username.replace('.', '_').toLowerCase();
+            }
+        }
+        return username;
     }
 
     /**
@@ -74,13 +163,16 @@ public class AccountManager {
      * @return true/false depending on if the account exists or not
      */
     public boolean exists(final String username) {
-        Logger.debug2("exists: Checking if user exists: " + username.replace('.', '_').toLowerCase());
+        final String accountName = normalise(username);
+        if (LogLevel.DEBUG2.isLoggable(Logger.getLevel())) {
+            Logger.debug2("exists: Checking if user exists: " + accountName);
+        }
         if (LogLevel.DEBUG3.isLoggable(Logger.getLevel())) {
             for (String a : accounts.keySet()) {
                 Logger.debug3("exists: Found acc: " + a);
             }
         }
-        return accounts.containsKey(username.replace('.', '_').toLowerCase());
+        return accounts.containsKey(accountName) || unloaded.contains(accountName);
     }
 
     /**
@@ -90,7 +182,67 @@ public class AccountManager {
      * @return Account object for given username, or null if it doesn't exist
      */
     public Account get(final String username) {
-        return accounts.get(username.replace('.', '_').toLowerCase());
+        final String accountName = normalise(username);
+        final Account account = accounts.get(accountName);
+        if (account != null) {
+            return account;
+        }
+        if (!unloaded.contains(accountName)) {
+            // Accounts are added before they are removed from unloaded, so
+            // check again in case it was loaded since we looked.
+            return accounts.get(accountName);
+        }
+
+        // Only one thread gets to load the account, any others wait for it.
+        synchronized (getLock(accountName)) {
+            final Account current = accounts.get(accountName);
+            if (current != null || !unloaded.contains(accountName)) {
+                return current;
+            }
+            final Account loaded = loadAccount(accountName);
+            if (loaded != null) {
+                accounts.put(accountName, loaded);
+                unloaded.remove(accountName);
+            }
+            // If loading failed the name is left in unloaded to try again.
+            return loaded;
+        }
+    }
+
+    /**
+     * Get the lock used when loading, creating or removing an account.
+     *
+     * @param accountName Normalised account name
+     * @return The lock for the account.
+     */
+    private Object getLock(final String accountName) {
+        return locks.computeIfAbsent(accountName, name -> new Object());
+    }
+
+    /**
+     * Get an account object if it has already been loaded.
+     *
+     * @param username Username to check
+     * @return Account object for given username, or null if it doesn't exist
+     *         or hasn't been loaded yet.
+     */
+    public Account getIfLoaded(final String username) {
+        return accounts.get(normalise(username));
+    }
+
+    /**
+     * Load an account that hasn't been loaded yet.
+     *
+     * @param accountName Name of the account to load
+     * @return The account, or null if it can not be loaded.
+     */
+    private Account loadAccount(final String accountName) {
+        try {
+            return loader.load(accountName);
+        } catch (IOException | InvalidConfigFileException ex) {
+            Logger.error("Unable to load account: " + accountName + "(" + ex.getMessage() + ")");
+            return null;
+        }
     }
 
     /**
@@ -100,8 +252,10 @@ public class AccountManager {
      * @return Account object that was removed, or null if nothing was removed.
      */
     public Account remove(final String username) {
-        synchronized (accounts) {
-            return accounts.remove(username.replace('.', '_').toLowerCase());
+        final String accountName = normalise(username);
+        synchronized (getLock(accountName)) {
+            unloaded.remove(accountName);
+            return accounts.remove(accountName);
         }
     }
 
@@ -115,24 +269,24 @@ public class AccountManager {
      * @return The account created, or null if the account could not be created
      */
     public Account createAccount(final String username, final String password) {
-        final String accountName = username.replace('.', '_').toLowerCase();
-        Logger.debug2("createAccount: Saving user as: " + username.replace('.', '_').toLowerCase());
-        synchronized (accounts) {
-            Account acc = null;
-            if (!exists(accountName)) {
-                Logger.debug2("Creating new account: "+accountName);
-                try {
-                    acc = new Account(accountName);
-                } catch (IOException | InvalidConfigFileException ex) {
-                    Logger.error("Error creating account: " + ex.getMessage());
-                }
-                if (acc != null) {
-                    Logger.debug2("Account created.");
-                    acc.setPassword(password);
-                    accounts.put(accountName, acc);
-                }
+        final String accountName = normalise(username);
+        Logger.debug2("createAccount: Saving user as: " + accountName);
+        synchronized (getLock(accountName)) {
+            if (accounts.containsKey(accountName) || unloaded.contains(accountName)) {
+                return null;
+            }
+            Logger.debug2("Creating new account: " + accountName);
+            final Account created;
+            try {
+                created = loader.load(accountName);
+            } catch (IOException | InvalidConfigFileException ex) {
+                Logger.error("Error creating account: " + ex.getMessage());
+                return null;
             }
-            return acc;
+            Logger.debug2("Account created.");
+            created.setPassword(password);
+            accounts.put(accountName, created);
+            return created;
         }
     }
 
@@ -173,34 +327,127 @@ public class AccountManager {
     }
 
     /**
-     * Load all the accounts from the config
+     * Load all the accounts from the config.
+     *
+     * Accounts are checked in parallel. Only accounts that autoconnect are
+     * fully loaded now, the rest are loaded when they are first used.
+     * Autoconnects are spread out by general.autoconnectinterval
+     * milliseconds so that we don't connect to everything at once.
      */
     public void loadAccounts() {
-        final File directory = new File(DFBnc.getConfigDirName());
+        final Config defaults;
+        try {
+            defaults = new ConfigFileConfig(DFBnc.class.getResourceAsStream("/com/dfbnc/defaults.config"));
+        } catch (IOException | InvalidConfigFileException ex) {
+            Logger.error("Unable to load default config: " + ex.getMessage());
+            return;
+        }
+
+        loadAccounts(new File(DFBnc.getConfigDirName()), DFBnc.getConfigFileName(), defaults,
+                DFBnc.getBNC().getConfig().getOptionInt("general", "autoconnectinterval"));
+    }
+
+    /**
+     * Load all the accounts in a directory.
+     *
+     * @param directory Directory containing a directory for each account
+     * @param configFileName Name of the main config file, which isn't an account
+     * @param defaults Default config
+     * @param interval Milliseconds between each autoconnect
+     */
+    void loadAccounts(final File directory, final String configFileName, final Config defaults, final long interval) {
         final File[] directories = directory.listFiles();
         if (directories == null) {
             return;
         }
+
+        final ExecutorService loaders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            final Thread thread = new Thread(r, "Account Loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Map<String, Future<Account>> results = new LinkedHashMap<>();
         for (File file : directories) {
-            if (!DFBnc.getConfigFileName().equals(file.getName())) {
-                try {
-                   Account acc = new Account(file.getName());
-                   accounts.put(acc.getName(), acc);
-
-                    if (acc.getAccountConfig().getOptionBool("server", "autoconnect")) {
-                       final ServerType type = acc.getServerType();
-                       if (type != null) {
-                           try {
-                              final ConnectionHandler handler = type.newConnectionHandler(acc, -1);
-                              acc.setConnectionHandler(handler);
-                           }  catch (UnableToConnectException ex) {
-                               Logger.error("Unable to autoconnect account: " + file.getName());
-                           }
-                       }
-                   }
-               } catch (IOException | InvalidConfigFileException ex) {
-                   Logger.error("Unable to load account: " + file.getName() + "(" + ex.getMessage() + ")");
-               }
+            if (!configFileName.equals(file.getName())) {
+                results.put(file.getName(), loaders.submit(() -> preloadAccount(directory, file.getName(), defaults)));
+            }
+        }
+        loaders.shutdown();
+
+        final List<Account> autoconnect = new ArrayList<>();
+        for (Map.Entry<String, Future<Account>> result : results.entrySet()) {
+            try {
+                final Account acc = result.getValue().get();
+                if (acc == null) {
+                    unloaded.add(result.getKey());
+                } else {
+                    accounts.put(acc.getName(), acc);
+                    autoconnect.add(acc);
+                }
+            } catch (ExecutionException ex) {
+                Logger.error("Unable to load account: " + result.getKey() + "(" + ex.getCause().getMessage() + ")");
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        Logger.info("Found " + count() + " accounts, " + autoconnect.size() + " to autoconnect.");
+
+        autoconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "Account Autoconnect");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduleAutoconnects(autoconnector, autoconnect, interval);
+        autoconnector.shutdown();
+    }
+
+    /**
+     * Schedule accounts to be connected one after another.
+     *
+     * @param executor Executor to connect the accounts on
+     * @param autoconnect Accounts to connect, in order
+     * @param interval Milliseconds between each account
+     */
+    void scheduleAutoconnects(final ScheduledExecutorService executor, final List<Account> autoconnect, final long interval) {
+        final long delay = Math.max(0, interval);
+        for (int i = 0; i < autoconnect.size(); i++) {
+            final Account acc = autoconnect.get(i);
+            executor.schedule(() -> autoconnect(acc), i * delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Check if an account autoconnects, and load it if it does.
+     *
+     * @param directory Directory containing a directory for each account
+     * @param accountName Name of the account
+     * @param defaults Default config
+     * @return The loaded account if it autoconnects, else null.
+     * @throws IOException Error loading config
+     * @throws InvalidConfigFileException Error loading config
+     */
+    Account preloadAccount(final File directory, final String accountName, final Config defaults) throws IOException, InvalidConfigFileException {
+        final File confFile = new File(new File(directory, accountName), accountName + ".conf");
+        if (!new DefaultsConfig(new ConfigFileConfig(confFile), defaults).getOptionBool("server", "autoconnect")) {
+            return null;
+        }
+        return loader.load(accountName);
+    }
+
+    /**
+     * Connect an account, unless it has already been connected.
+     *
+     * @param acc Account to connect
+     */
+    void autoconnect(final Account acc) {
+        final ServerType type = acc.getServerType();
+        if (type != null && acc.getConnectionHandler() == null) {
+            try {
+                final ConnectionHandler handler = type.newConnectionHandler(acc, -1);
+                acc.setConnectionHandler(handler);
+            } catch (UnableToConnectException ex) {
+                Logger.error("Unable to autoconnect account: " + acc.getName());
             }
         }
     }
@@ -209,7 +456,7 @@ public class AccountManager {
      * Save all the accounts to the config
      */
     public void saveAccounts() {
-        for (Account acc : accounts.values()) {
+        for (Account acc : getLoadedAccounts()) {
             Logger.debug("Saving account: " + acc.getName());
             acc.save();
         }
@@ -219,7 +466,10 @@ public class AccountManager {
      * Shutdown all accounts.
      */
     public void shutdown() {
-        for (Account acc : accounts.values()) {
+        if (autoconnector != null) {
+            autoconnector.shutdownNow();
+        }
+        for (Account acc : getLoadedAccounts()) {
             ServerType st = acc.getServerType();
             if (st != null) {
                 st.close(acc, "BNC Shutting Down");
@@ -228,6 +478,7 @@ public class AccountManager {
                 acc.getConnectionHandler().shutdown("BNC Shutting Down");
                 if (acc.getServerLogger() != null) { acc.getServerLogger().disableLogging(); }
             }
+            acc.closeBackbufferStore();
         }
     }
 }
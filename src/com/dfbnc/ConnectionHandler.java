@@ -23,8 +23,8 @@ package com.dfbnc;
 
 import com.dfbnc.servers.logging.ServerLogger;
 import com.dfbnc.sockets.DebugFlag;
-import com.dfbnc.util.BackbufferMessage;
-import com.dfbnc.util.RollingList;
+import com.dfbnc.util.BackbufferHistory;
+import com.dfbnc.util.BackbufferList;
 import com.dfbnc.sockets.UnableToConnectException;
 
 import com.dmdirc.parser.interfaces.Parser;
@@ -88,12 +88,21 @@ public interface ConnectionHandler {
 
 
     /**
-     * Get the backbuffer rolling list for the given channel name.
+     * Get the backbuffer list for the given channel name.
      *
      * @param channel Channel name
      * @return Backbuffer list.
      */
-    RollingList<BackbufferMessage> getBackbufferList(final String channel);
+    BackbufferList getBackbufferList(final String channel);
+
+    /**
+     * Get the searchable history for the given channel name. This is the
+     * on-disk backbuffer if that is enabled, else the backbuffer list.
+     *
+     * @param channel Channel name
+     * @return History for the channel, or null if there is none.
+     */
+    BackbufferHistory getBackbufferHistory(final String channel);
 
     /**
      * Called to make the BNC fake lines to the client on disconnect.
@@ -28,6 +28,7 @@ import com.dfbnc.commands.admin.*;
 import com.dfbnc.commands.user.*;
 import com.dfbnc.config.Config;
 import com.dfbnc.config.ConfigFileConfig;
+import com.dfbnc.config.ConfigWriter;
 import com.dfbnc.config.DefaultsConfig;
 import com.dfbnc.config.ReadOnlyConfig;
 import com.dfbnc.servers.ServerTypeManager;
@@ -35,8 +36,9 @@ import com.dfbnc.sockets.NewSocketReadyHandler;
 import com.dfbnc.sockets.ListenSocket;
 import com.dfbnc.sockets.UserSocket;
 import com.dfbnc.sockets.secure.SSLContextManager;
+import com.dfbnc.util.BackbufferAccountant;
+import com.dfbnc.util.LogRing;
 import com.dfbnc.util.MultiWriter;
-import com.dfbnc.util.RollingWriter;
 import com.dmdirc.util.io.InvalidConfigFileException;
 import uk.org.dataforce.libs.cliparser.BooleanParam;
 import uk.org.dataforce.libs.cliparser.CLIParam;
@@ -99,6 +101,9 @@ public class DFBnc implements NewSocketReadyHandler {
     /** The provider manager for this bnc */
     private static AuthProviderManager authProviderManager = new AuthProviderManager();
 
+    /** The backbuffer memory accountant for this bnc */
+    private static BackbufferAccountant backbufferAccountant = new BackbufferAccountant();
+
     /** The arraylist of listenSockets */
     private static ArrayList<ListenSocket> listenSockets = new ArrayList<>();
 
@@ -120,11 +125,11 @@ public class DFBnc implements NewSocketReadyHandler {
     /** PID File name. */
     static String pidFile = "";
 
-    /** MultiWriter for logger. */
-    final MultiWriter multiWriter = new MultiWriter();
-
     /** Store log entries here to let the show logging command work. */
-    final RollingWriter rollingWriter = new RollingWriter(1000);
+    final LogRing logBuffer = new LogRing(1000);
+
+    /** MultiWriter for logger. */
+    final MultiWriter multiWriter = new MultiWriter(logBuffer);
 
     /** Log File Writer. */
     Writer logFileWriter;
@@ -145,7 +150,6 @@ public class DFBnc implements NewSocketReadyHandler {
      */
     private void init(final String[] args) {
         Logger.setWriter(multiWriter);
-        multiWriter.addWriter(rollingWriter);
         Logger.setLevel(LogLevel.INFO);
 
         loadVersionInfo();
@@ -275,7 +279,12 @@ public class DFBnc implements NewSocketReadyHandler {
         }
 
         // Now that we have a config file, set the log buffer capacity correctly.
-        rollingWriter.setCapacity(getConfig().getOptionInt("general", "logBuffer"));
+        logBuffer.setCapacity(getConfig().getOptionInt("general", "logBuffer"));
+        logBuffer.setBacklog(getConfig().getOptionInt("general", "logBacklog"));
+        getConfig().addChangeListener("general", "logBuffer", (config, domain, setting) -> logBuffer.setCapacity(config.getOptionInt(domain, setting)));
+        getConfig().addChangeListener("general", "logBacklog", (config, domain, setting) -> logBuffer.setBacklog(config.getOptionInt(domain, setting)));
+        updateBackbufferBudget();
+        getConfig().addChangeListener("general", "backbufferbudget", (config, domain, setting) -> updateBackbufferBudget());
 
         Logger.info("Setting up Default User Command Manager");
         userCommandManager.addCommand(new ServerTypeCommand(userCommandManager));
@@ -494,12 +503,12 @@ public class DFBnc implements NewSocketReadyHandler {
     }
 
     /**
-     * Get the rolling log.
+     * Get the log buffer.
      *
-     * @return the rolling writer used for log files.
+     * @return the ring holding recent log entries.
      */
-    public RollingWriter getRollingWriter() {
-        return rollingWriter;
+    public LogRing getLogBuffer() {
+        return logBuffer;
     }
 
     /**
@@ -558,6 +567,9 @@ public class DFBnc implements NewSocketReadyHandler {
             config.save();
         }
 
+        Logger.info("Writing config files");
+        ConfigWriter.get().flush();
+
         if (DFBncDaemon.canFork() && daemon.isDaemonized()) {
             if (!pidFile.isEmpty()) {
                 Logger.info("Removing pid file");
@@ -651,6 +663,22 @@ public class DFBnc implements NewSocketReadyHandler {
         return accountManager;
     }
 
+    /**
+     * Get the BackbufferAccountant
+     *
+     * @return The BackbufferAccountant
+     */
+    public static BackbufferAccountant getBackbufferAccountant() {
+        return backbufferAccountant;
+    }
+
+    /**
+     * Tell the BackbufferAccountant the current backbuffer budget.
+     */
+    private void updateBackbufferBudget() {
+        backbufferAccountant.setBudget(getConfig().getOptionInt("general", "backbufferbudget") * 1024L * 1024L);
+    }
+
     /**
      * Get the AuthProviderManager
      *
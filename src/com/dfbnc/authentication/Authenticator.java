@@ -213,7 +213,7 @@ public class Authenticator {
             } else {
                 userSocket.sendBotMessage("The given account does not exist, so an account has been created for you.");
             }
-            accountManager.saveAccounts();
+            acc.save();
             bnc.getConfig().save();
         }
     }
@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.backbuffer;
+
+import com.dfbnc.util.BackbufferCursor;
+import com.dfbnc.util.BackbufferHistory;
+import com.dfbnc.util.BackbufferMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import uk.org.dataforce.libs.logger.Logger;
+
+/**
+ * On-disk, append-only backbuffer for a single channel.
+ *
+ * Messages are written to a series of memory-mapped {@link BackbufferSegment}s.
+ * When the newest segment is full a new one is started, and once there are
+ * more segments than the configured limit the oldest is deleted. Only the
+ * segments themselves are mapped, so heap use does not grow with the amount of
+ * history kept.
+ *
+ * Every message is given a sequence number, which carries on across restarts.
+ * The epoch is kept alongside the segments, and only changes if the log is
+ * found empty, as sequence numbers then start again.
+ */
+public class BackbufferLog implements BackbufferHistory {
+
+    /** Number of messages a Cursor reads each time it takes the lock. */
+    private static final int CURSOR_BATCH = 64;
+
+    /** Name of the file holding the epoch. */
+    private static final String EPOCH_FILE = "epoch";
+
+    /** Directory holding the segments. */
+    private final File directory;
+
+    /** Segments, oldest first. */
+    private final List<BackbufferSegment> segments = new ArrayList<>();
+
+    /** Maximum number of segments to keep. */
+    private int segmentLimit;
+
+    /** Sequence number the next message will be given. */
+    private long nextSequence;
+
+    /** Epoch of this log, see {@link BackbufferHistory#getEpoch()}. */
+    private final String epoch;
+
+    /**
+     * Open or create the log in the given directory.
+     *
+     * @param directory Directory to keep the log in
+     * @param segmentLimit Maximum number of segments to keep
+     * @throws IOException If the log can not be opened
+     */
+    public BackbufferLog(final File directory, final int segmentLimit) throws IOException {
+        this.directory = directory;
+        this.segmentLimit = Math.max(1, segmentLimit);
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create backbuffer directory: " + directory);
+        }
+
+        final File[] files = directory.listFiles((final File dir, final String name) -> name.endsWith(".seg"));
+        final long[] sequences = files == null ? new long[0] : Arrays.stream(files).mapToLong(BackbufferSegment::getSequence).filter(l -> l >= 0).sorted().toArray();
+        for (final long sequence : sequences) {
+            try {
+                segments.add(new BackbufferSegment(directory, sequence));
+            } catch (final IOException ioe) {
+                // Don't lose everything else because one segment is bad.
+                Logger.error("Unable to open backbuffer segment " + sequence + " in " + directory + ": " + ioe.getMessage());
+            }
+        }
+        if (!segments.isEmpty()) {
+            nextSequence = segments.get(segments.size() - 1).getNextSequence();
+        }
+        epoch = readEpoch(new File(directory, EPOCH_FILE), nextSequence == 0);
+        trimSegments();
+    }
+
+    /**
+     * Read the epoch of the log, creating a new one if there isn't one yet.
+     *
+     * @param file File holding the epoch
+     * @param isNew True if the log has no messages, so a new epoch is needed.
+     * @return The epoch of the log
+     * @throws IOException If a new epoch can not be saved
+     */
+    private static String readEpoch(final File file, final boolean isNew) throws IOException {
+        if (!isNew && file.exists()) {
+            final String existing = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+            if (!existing.isEmpty()) {
+                return existing;
+            }
+        }
+        final String result = BackbufferHistory.newEpoch();
+        Files.write(file.toPath(), result.getBytes(StandardCharsets.UTF_8));
+        return result;
+    }
+
+    /**
+     * Get the maximum number of segments this log keeps.
+     *
+     * @return Maximum number of segments.
+     */
+    public synchronized int getSegmentLimit() {
+        return segmentLimit;
+    }
+
+    /**
+     * Change the maximum number of segments this log keeps, deleting the
+     * oldest segments if there are now too many.
+     *
+     * @param newValue New maximum number of segments
+     */
+    public synchronized void setSegmentLimit(final int newValue) {
+        segmentLimit = Math.max(1, newValue);
+        trimSegments();
+    }
+
+    @Override
+    public String getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public synchronized long getFirstSequence() {
+        return segments.isEmpty() ? nextSequence : segments.get(0).getFirstSequence();
+    }
+
+    @Override
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Add a message to this log.
+     *
+     * @param time Time of the message
+     * @param message Message to add
+     * @throws IOException If a new segment is needed and can not be created
+     */
+    public void add(final long time, final String message) throws IOException {
+        final byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            if (segments.isEmpty() || !segments.get(segments.size() - 1).add(time, bytes)) {
+                final BackbufferSegment segment = new BackbufferSegment(directory, nextSequence);
+                if (!segment.add(time, bytes)) {
+                    // Too big for even an empty segment, nothing we can do.
+                    segment.delete();
+                    return;
+                }
+                segments.add(segment);
+                trimSegments();
+            }
+            nextSequence++;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The cursor starts from the first message at or after
+     * {@code earliestTime}, which is found using the time index rather than
+     * reading through older messages.
+     */
+    @Override
+    public synchronized BackbufferCursor replay(final int limit, final long earliestTime) {
+        final long end = nextSequence;
+        final long start = Math.max(end - Math.min(Math.max(0, limit), end - getFirstSequence()), findSequence(earliestTime));
+        return new Cursor(start, end, earliestTime);
+    }
+
+    @Override
+    public synchronized BackbufferCursor range(final long startSequence, final long endSequence) {
+        final long start = Math.max(startSequence, getFirstSequence());
+        return new Cursor(start, Math.max(start, Math.min(endSequence, nextSequence)), Long.MIN_VALUE);
+    }
+
+    @Override
+    public synchronized long findSequence(final long time) {
+        for (final BackbufferSegment segment : segments) {
+            if (segment.size() > 0 && segment.getTime(segment.size() - 1) >= time) {
+                return segment.getFirstSequence() + segment.search(time);
+            }
+        }
+        return nextSequence;
+    }
+
+    /**
+     * Flush all segments to disk and release them.
+     */
+    public synchronized void close() {
+        for (final BackbufferSegment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    /**
+     * Find the segment holding the given sequence number.
+     *
+     * @param sequence Sequence number to look for
+     * @return The segment, or null if the message is no longer stored.
+     */
+    private BackbufferSegment findSegment(final long sequence) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final BackbufferSegment segment = segments.get(mid);
+            if (sequence < segment.getFirstSequence()) {
+                high = mid - 1;
+            } else if (sequence >= segment.getNextSequence()) {
+                low = mid + 1;
+            } else {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the first sequence number of the first segment that starts after
+     * the given sequence number.
+     *
+     * @param sequence Sequence number to look after
+     * @return First sequence number of the segment, or -1 if there is none.
+     */
+    private long getSequenceAfter(final long sequence) {
+        for (final BackbufferSegment segment : segments) {
+            if (segment.getFirstSequence() > sequence) {
+                return segment.getFirstSequence();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Delete the oldest segments until there are no more than the limit.
+     */
+    private void trimSegments() {
+        while (segments.size() > segmentLimit) {
+            final BackbufferSegment segment = segments.remove(0);
+            if (!segment.delete()) {
+                Logger.warning("Unable to delete old backbuffer segment " + segment.getFirstSequence() + " in " + directory);
+            }
+        }
+    }
+
+    /**
+     * Iterates over a range of messages in a BackbufferLog, reading a small
+     * batch at a time so that messages can be added while it is in use.
+     */
+    private class Cursor implements BackbufferCursor {
+
+        /** Sequence number of the next message to read. */
+        private long nextRead;
+
+        /** Sequence number after the last message to return. */
+        private final long endSequence;
+
+        /** Messages older than this are skipped. */
+        private final long earliestTime;
+
+        /** Number of messages in range when the cursor was created. */
+        private final int size;
+
+        /** Messages read but not yet returned. */
+        private final BackbufferMessage[] batch = new BackbufferMessage[CURSOR_BATCH];
+
+        /** Position in {@link #batch} of the next message to return. */
+        private int batchPos;
+
+        /** Number of messages in {@link #batch}. */
+        private int batchSize;
+
+        /**
+         * Create a new Cursor.
+         *
+         * @param startSequence Sequence number of the first message to return
+         * @param endSequence Sequence number after the last message to return
+         * @param earliestTime Messages older than this are skipped
+         */
+        Cursor(final long startSequence, final long endSequence, final long earliestTime) {
+            this.nextRead = startSequence;
+            this.endSequence = endSequence;
+            this.earliestTime = earliestTime;
+            this.size = (int) Math.min(Integer.MAX_VALUE, endSequence - startSequence);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (batchPos >= batchSize) {
+                fill();
+            }
+            return batchPos < batchSize;
+        }
+
+        @Override
+        public BackbufferMessage next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final BackbufferMessage message = batch[batchPos];
+            batch[batchPos++] = null;
+            return message;
+        }
+
+        /**
+         * Read the next batch of messages.
+         */
+        private void fill() {
+            batchPos = 0;
+            batchSize = 0;
+            synchronized (BackbufferLog.this) {
+                // Skip anything that has been deleted since we last looked.
+                nextRead = Math.max(nextRead, getFirstSequence());
+                while (nextRead < endSequence && batchSize < batch.length) {
+                    final BackbufferSegment segment = findSegment(nextRead);
+                    if (segment == null) {
+                        // A segment that could not be opened, skip past it.
+                        final long next = getSequenceAfter(nextRead);
+                        if (next < 0) {
+                            break;
+                        }
+                        nextRead = next;
+                        continue;
+                    }
+                    final int position = (int) (nextRead - segment.getFirstSequence());
+                    nextRead++;
+                    if (segment.getTime(position) >= earliestTime) {
+                        batch[batchSize++] = segment.get(position);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.backbuffer;
+
+import com.dfbnc.util.BackbufferMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single append-only segment of a {@link BackbufferLog}.
+ *
+ * Each segment is a pair of memory-mapped files. The ".seg" file holds each
+ * message as a length followed by its UTF-8 bytes, and the ".idx" file holds
+ * the number of messages in the segment followed by the time and data offset
+ * of every message. The index is updated after the data is written, so a
+ * message that was only partly written when the BNC died is ignored.
+ *
+ * Segments are not thread safe, {@link BackbufferLog} handles locking.
+ */
+final class BackbufferSegment {
+
+    /** Size of the data file. */
+    static final int DATA_SIZE = 1024 * 1024;
+
+    /** Maximum number of messages in a segment. */
+    static final int MAX_MESSAGES = 16384;
+
+    /** Size of the header at the start of the index file. */
+    private static final int INDEX_HEADER = 8;
+
+    /** Size of each entry in the index file. */
+    private static final int INDEX_ENTRY = 12;
+
+    /** Unsafe instance used to unmap buffers, or null if not available. */
+    private static final Object UNSAFE;
+
+    /** Unsafe.invokeCleaner, or null if not available (before Java 9). */
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        } catch (final ReflectiveOperationException | RuntimeException ex) {
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /** Sequence number of the first message in this segment. */
+    private final long firstSequence;
+
+    /** Data file. */
+    private final File dataFile;
+
+    /** Index file. */
+    private final File indexFile;
+
+    /** Mapped data file. */
+    private MappedByteBuffer data;
+
+    /** Mapped index file. */
+    private MappedByteBuffer index;
+
+    /** Number of messages in this segment. */
+    private int count;
+
+    /** Offset in the data file that the next message will be written at. */
+    private int dataEnd;
+
+    /**
+     * Open or create a segment.
+     *
+     * @param directory Directory holding the segment
+     * @param firstSequence Sequence number of the first message in the segment
+     * @throws IOException If the segment can not be opened
+     */
+    BackbufferSegment(final File directory, final long firstSequence) throws IOException {
+        this.firstSequence = firstSequence;
+        final String name = String.format("%020d", firstSequence);
+        dataFile = new File(directory, name + ".seg");
+        indexFile = new File(directory, name + ".idx");
+
+        data = map(dataFile, DATA_SIZE);
+        index = map(indexFile, INDEX_HEADER + MAX_MESSAGES * INDEX_ENTRY);
+
+        count = Math.max(0, Math.min(MAX_MESSAGES, index.getInt(0)));
+        if (count > 0) {
+            final int last = getOffset(count - 1);
+            if (last < 0 || last > DATA_SIZE - 4 || data.getInt(last) < 0 || last + 4 + data.getInt(last) > DATA_SIZE) {
+                throw new IOException("Corrupt backbuffer segment: " + dataFile);
+            }
+            dataEnd = last + 4 + data.getInt(last);
+        }
+    }
+
+    /**
+     * Map the given file, creating it if needed.
+     *
+     * @param file File to map
+     * @param size Size to map
+     * @return The mapped file
+     * @throws IOException If the file can not be mapped
+     */
+    private static MappedByteBuffer map(final File file, final int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Release a mapped file now, rather than whenever the buffer is garbage
+     * collected. Until then the file stays open, which stops it being deleted
+     * on some systems.
+     *
+     * The buffer must not be used again afterwards.
+     *
+     * @param buffer Buffer to unmap
+     */
+    private static void unmap(final MappedByteBuffer buffer) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else {
+                // Java 8
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (final ReflectiveOperationException | RuntimeException ex) {
+            // Leave it to the garbage collector.
+        }
+    }
+
+    /**
+     * Get the name of the segment for the given file, if it is a segment data
+     * file.
+     *
+     * @param file File to check
+     * @return The first sequence number of the segment, or -1 if the file is
+     *         not a segment.
+     */
+    static long getSequence(final File file) {
+        final String name = file.getName();
+        if (!name.endsWith(".seg")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - 4));
+        } catch (final NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     * Add a message to this segment.
+     *
+     * @param time Time of the message
+     * @param bytes Encoded message
+     * @return True if the message was added, false if the segment is full.
+     */
+    boolean add(final long time, final byte[] bytes) {
+        if (count >= MAX_MESSAGES || dataEnd + 4 + bytes.length > DATA_SIZE) {
+            return false;
+        }
+
+        data.putInt(dataEnd, bytes.length);
+        final ByteBuffer target = data.duplicate();
+        target.position(dataEnd + 4);
+        target.put(bytes);
+
+        final int entry = INDEX_HEADER + count * INDEX_ENTRY;
+        index.putLong(entry, time);
+        index.putInt(entry + 8, dataEnd);
+
+        dataEnd += 4 + bytes.length;
+        count++;
+        index.putInt(0, count);
+
+        return true;
+    }
+
+    /**
+     * Get the sequence number of the first message in this segment.
+     *
+     * @return Sequence number of the first message.
+     */
+    long getFirstSequence() {
+        return firstSequence;
+    }
+
+    /**
+     * Get the sequence number after the last message in this segment.
+     *
+     * @return Sequence number the next message would be given.
+     */
+    long getNextSequence() {
+        return firstSequence + count;
+    }
+
+    /**
+     * Get the number of messages in this segment.
+     *
+     * @return Number of messages.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Get the time of the given message.
+     *
+     * @param position Position of the message in this segment
+     * @return Time of the message
+     */
+    long getTime(final int position) {
+        return index.getLong(INDEX_HEADER + position * INDEX_ENTRY);
+    }
+
+    /**
+     * Get the offset in the data file of the given message.
+     *
+     * @param position Position of the message in this segment
+     * @return Offset of the message
+     */
+    private int getOffset(final int position) {
+        return index.getInt(INDEX_HEADER + position * INDEX_ENTRY + 8);
+    }
+
+    /**
+     * Read the given message.
+     *
+     * @param position Position of the message in this segment
+     * @return The message
+     */
+    BackbufferMessage get(final int position) {
+        final int offset = getOffset(position);
+        final byte[] bytes = new byte[data.getInt(offset)];
+        final ByteBuffer source = data.duplicate();
+        source.position(offset + 4);
+        source.get(bytes);
+        return new BackbufferMessage(getTime(position), new String(bytes, StandardCharsets.UTF_8), firstSequence + position);
+    }
+
+    /**
+     * Find the first message at or after the given time.
+     *
+     * Messages are appended as they arrive so the index is searched as if it
+     * is in time order.
+     *
+     * @param time Time to look for
+     * @return Position of the first message at or after the given time, or the
+     *         number of messages in the segment if there are none.
+     */
+    int search(final long time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (getTime(mid) < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Flush this segment to disk and release it.
+     */
+    void close() {
+        if (data != null) {
+            data.force();
+            index.force();
+            release();
+        }
+    }
+
+    /**
+     * Close this segment and delete its files.
+     *
+     * @return True if the files were deleted.
+     */
+    boolean delete() {
+        if (data != null) {
+            release();
+        }
+        return dataFile.delete() & indexFile.delete();
+    }
+
+    /**
+     * Unmap this segment's files.
+     */
+    private void release() {
+        unmap(data);
+        unmap(index);
+        data = null;
+        index = null;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.backbuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import uk.org.dataforce.libs.logger.Logger;
+
+/**
+ * Holds the on-disk backbuffers for an account, one {@link BackbufferLog} per
+ * channel (plus one for private messages).
+ *
+ * Messages are appended (and logs closed) in the background, in the order
+ * they were asked for, so that whoever adds a message never waits for the
+ * disk. Anything waiting is written before a log is handed out.
+ */
+public class BackbufferStore {
+
+    /** Appends messages to logs, shared by all stores. */
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "Backbuffer Writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Messages waiting to be appended, and logs waiting to be closed. */
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+
+    /** Is a background write already scheduled? */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /** Directory holding the logs. */
+    private final File directory;
+
+    /** Open logs, by name. */
+    private final Map<String, BackbufferLog> logs = new HashMap<>();
+
+    /** Maximum number of segments each log keeps. */
+    private int segmentLimit;
+
+    /**
+     * Create a new BackbufferStore.
+     *
+     * @param directory Directory to keep logs in
+     * @param segmentLimit Maximum number of segments each log keeps
+     */
+    public BackbufferStore(final File directory, final int segmentLimit) {
+        this.directory = directory;
+        this.segmentLimit = segmentLimit;
+    }
+
+    /**
+     * Get the log with the given name, opening or creating it if needed.
+     *
+     * Anything appended before this was called is written to the log first.
+     *
+     * @param name Name of the log, names are not case sensitive.
+     * @return The log
+     * @throws IOException If the log can not be opened
+     */
+    public synchronized BackbufferLog getLog(final String name) throws IOException {
+        flush();
+        return openLog(name);
+    }
+
+    /**
+     * Get the log with the given name, opening or creating it if needed,
+     * without writing anything that is waiting.
+     *
+     * @param name Name of the log, names are not case sensitive.
+     * @return The log
+     * @throws IOException If the log can not be opened
+     */
+    private BackbufferLog openLog(final String name) throws IOException {
+        final String key = name.toLowerCase();
+        BackbufferLog log = logs.get(key);
+        if (log == null) {
+            log = new BackbufferLog(new File(directory, encode(key)), segmentLimit);
+            logs.put(key, log);
+        }
+        return log;
+    }
+
+    /**
+     * Append a message to the log with the given name in the background.
+     *
+     * @param name Name of the log, names are not case sensitive.
+     * @param time Time of the message
+     * @param message Message to add
+     */
+    public void append(final String name, final long time, final String message) {
+        queue(new Pending(name, time, message));
+    }
+
+    /**
+     * Flush and close the log with the given name in the background, once
+     * anything already appended to it has been written. It will be opened
+     * again if it is asked for.
+     *
+     * @param name Name of the log, names are not case sensitive.
+     */
+    public void closeLog(final String name) {
+        queue(new Pending(name, 0, null));
+    }
+
+    /**
+     * Queue something for the background writer.
+     *
+     * @param item Message to append, or log to close
+     */
+    private void queue(final Pending item) {
+        pending.add(item);
+        if (scheduled.compareAndSet(false, true)) {
+            writer.execute(this::flush);
+        }
+    }
+
+    /**
+     * Append every waiting message, and close every waiting log, now.
+     */
+    public synchronized void flush() {
+        // Anything queued from here on needs another write.
+        scheduled.set(false);
+
+        Pending item;
+        while ((item = pending.poll()) != null) {
+            if (item.message == null) {
+                final BackbufferLog log = logs.remove(item.name.toLowerCase());
+                if (log != null) {
+                    log.close();
+                }
+                continue;
+            }
+            try {
+                openLog(item.name).add(item.time, item.message);
+            } catch (final IOException ioe) {
+                Logger.error("Unable to store persistent backbuffer in " + directory + ": " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Change the maximum number of segments each log keeps.
+     *
+     * @param newValue New maximum number of segments
+     */
+    public synchronized void setSegmentLimit(final int newValue) {
+        segmentLimit = newValue;
+        for (final BackbufferLog log : logs.values()) {
+            log.setSegmentLimit(newValue);
+        }
+    }
+
+    /**
+     * Write anything waiting, then flush and close all open logs.
+     */
+    public synchronized void close() {
+        flush();
+        for (final BackbufferLog log : logs.values()) {
+            log.close();
+        }
+        logs.clear();
+    }
+
+    /**
+     * Encode a log name so that it can be used as a directory name.
+     *
+     * Anything other than letters, numbers and a few safe symbols is replaced
+     * with "_" and its hex value, so different names never share a directory.
+     *
+     * @param name Name to encode
+     * @return Encoded name
+     */
+    private static String encode(final String name) {
+        final StringBuilder result = new StringBuilder(name.length());
+        for (final char c : name.toCharArray()) {
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '#' || c == '&' || c == '-') {
+                result.append(c);
+            } else {
+                result.append('_').append(Integer.toHexString(c)).append('_');
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * A message waiting to be appended, or a log waiting to be closed.
+     */
+    private static final class Pending {
+
+        /** Name of the log. */
+        final String name;
+
+        /** Time of the message. */
+        final long time;
+
+        /** Message to append, or null to close the log. */
+        final String message;
+
+        /**
+         * Create a new Pending.
+         *
+         * @param name Name of the log
+         * @param time Time of the message
+         * @param message Message to append, or null to close the log
+         */
+        Pending(final String name, final long time, final String message) {
+            this.name = name;
+            this.time = time;
+            this.message = message;
+        }
+    }
+}
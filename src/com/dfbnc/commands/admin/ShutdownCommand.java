@@ -53,7 +53,7 @@ public class ShutdownCommand extends AdminCommand {
         } else {
             message = Util.joinString(params, " ", 1, 1);
         }
-        for (Account account: DFBnc.getAccountManager().getAccounts()) {
+        for (Account account: DFBnc.getAccountManager().getLoadedAccounts()) {
             for (UserSocket userSocket : account.getUserSockets()) {
                 userSocket.sendBotMessage("This server is now shutting down: %s", message);
             }
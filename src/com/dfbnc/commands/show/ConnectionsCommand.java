@@ -24,6 +24,7 @@ package com.dfbnc.commands.show;
 import com.dfbnc.commands.Command;
 import com.dfbnc.commands.CommandManager;
 import com.dfbnc.commands.CommandOutputBuffer;
+import com.dfbnc.sockets.OutboundQueue;
 import com.dfbnc.sockets.UserSocket;
 
 import java.net.InetSocketAddress;
@@ -135,6 +136,9 @@ public class ConnectionsCommand extends Command {
                 output.addBotMessage("                    Local IP: %s", local.getAddress());
                 output.addBotMessage("                    Local Port: %s", local.getPort());
                 output.addBotMessage("                    SSL: %s", Boolean.toString(u.isSSL()));
+                final OutboundQueue queue = u.getOutboundQueue();
+                output.addBotMessage("                    Send Queue: %d lines, %d KB (High: %d KB, Low: %d KB, Policy: %s)", queue.getDepth(), queue.getSize() / 1024, queue.getHighWatermark() / 1024, queue.getLowWatermark() / 1024, queue.getPolicy().name().toLowerCase());
+                output.addBotMessage("                    Lines Dropped: %d%s", queue.getDropped(), queue.isCatchingUp() ? " (Catching up)" : "");
                 if (!u.getClientCertFP().isEmpty()) {
                     output.addBotMessage("                    SSL Client Cert FP: %s", u.getClientCertFP());
                 }
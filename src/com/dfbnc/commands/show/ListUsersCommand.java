@@ -28,7 +28,7 @@ import com.dfbnc.commands.CommandManager;
 import com.dfbnc.commands.CommandOutputBuffer;
 import com.dfbnc.sockets.UserSocket;
 
-import java.util.Collection;
+import java.util.List;
 
 /**
  * Shows a list of users known to the bouncer.
@@ -46,9 +46,17 @@ public class ListUsersCommand extends AdminCommand {
 
     @Override
     public void handle(final UserSocket user, final String[] params, final CommandOutputBuffer output) {
-        final Collection<Account> accounts = DFBnc.getAccountManager().getAccounts();
-        output.addBotMessage("This BNC has %s users: ", accounts.size());
-        for (Account account : accounts) {
+        // Only show details for accounts that are already loaded, so that
+        // listing users doesn't load every account from disk.
+        final List<String> names = DFBnc.getAccountManager().getAccountNames();
+        output.addBotMessage("This BNC has %s users: ", names.size());
+        for (String name : names) {
+            final Account account = DFBnc.getAccountManager().getIfLoaded(name);
+            if (account == null) {
+                output.addBotMessage("    %s  (Not loaded)", name);
+                continue;
+            }
+
             final StringBuilder sb = new StringBuilder("    ");
 
             if (account.equals(user.getAccount())) { sb.append((char)2); }
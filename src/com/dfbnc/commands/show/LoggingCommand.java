@@ -26,9 +26,10 @@ import com.dfbnc.commands.AdminCommand;
 import com.dfbnc.commands.CommandManager;
 import com.dfbnc.commands.CommandOutputBuffer;
 import com.dfbnc.sockets.UserSocket;
-import com.dfbnc.util.RollingWriter;
+import com.dfbnc.util.LogRing;
 
 import java.text.SimpleDateFormat;
+import java.util.List;
 
 /**
  * This file represents the 'logging' show command
@@ -44,10 +45,11 @@ public class LoggingCommand extends AdminCommand {
     @Override
     public void handle(final UserSocket user, final String[] params, final CommandOutputBuffer output) {
         final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        final RollingWriter rw = DFBnc.getBNC().getRollingWriter();
-        output.addBotMessage("Most recent %s (Max: %s) log entries: ", rw.size(), rw.getCapacity());
+        final LogRing logBuffer = DFBnc.getBNC().getLogBuffer();
+        final List<String> lines = logBuffer.getLines();
+        output.addBotMessage("Most recent %s (Max: %s) log entries: ", lines.size(), logBuffer.getCapacity());
         output.addBotMessage("");
-        for (final String line : rw) {
+        for (final String line : lines) {
             output.addBotMessage("    %s", line);
         }
     }
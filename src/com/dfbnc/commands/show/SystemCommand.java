@@ -27,6 +27,7 @@ import com.dfbnc.commands.AdminCommand;
 import com.dfbnc.commands.CommandManager;
 import com.dfbnc.commands.CommandOutputBuffer;
 import com.dfbnc.sockets.UserSocket;
+import com.dfbnc.util.BackbufferAccountant;
 import com.dfbnc.util.Util;
 import com.dmdirc.util.DateUtils;
 import uk.org.dataforce.libs.cliparser.CLIParam;
@@ -99,6 +100,13 @@ public class SystemCommand extends AdminCommand {
         output.addBotMessage("--------------------");
         myManager.getCommand("logging").ifPresent(c -> c.handle(user, new String[]{"connections", "full", "all"}, output));
         output.addBotMessage("----------------------------------------");
+        output.addBotMessage("Backbuffers:");
+        output.addBotMessage("--------------------");
+        final BackbufferAccountant accountant = DFBnc.getBackbufferAccountant();
+        output.addBotMessage("Memory Used: %d KB in %d backbuffers", accountant.getUsage() / 1024, accountant.getBackbufferCount());
+        output.addBotMessage("Memory Budget: %s", (accountant.getBudget() > 0 ? (accountant.getBudget() / 1024) + " KB" : "Unlimited"));
+        output.addBotMessage("Lines Evicted: %d", accountant.getEvictedLines());
+        output.addBotMessage("----------------------------------------");
 
     }
 
@@ -58,6 +58,11 @@ public class ServerSetCommand extends AbstractSetCommand {
         validParams.put("privatebackbuffer", new ParamInfo("Number of lines to store as backbuffer for private messages (0 to disable).", ParamType.INT, true));
         validParams.put("privatebackbuffertimeout", new ParamInfo("How long in seconds to permit messages to be stored in the private message backbuffer (0 to disable).", ParamType.INT, true));
         validParams.put("privatebackbuffertimestamp", new ParamInfo("Force timestamp prepends on private message backbuffers?", ParamType.BOOL, true));
+        validParams.put("backbufferhot", new ParamInfo("Number of recent lines of each backbuffer to keep uncompressed (0 to never compress).", ParamType.POSITIVEINT, false));
+        validParams.put("backbufferblock", new ParamInfo("Size in KB of each block of compressed backbuffer.", ParamType.POSITIVEINT, false));
+        validParams.put("readmarkers", new ParamInfo("Only replay backbuffer that this sub-client has not already seen?", ParamType.BOOL, true));
+        validParams.put("persistentbackbuffer", new ParamInfo("Also store backbuffers on disk, so they survive reconnects and restarts?", ParamType.BOOL, false));
+        validParams.put("backbuffersegments", new ParamInfo("Number of 1MB segments of on-disk backbuffer to keep for each channel.", ParamType.POSITIVEINT, false));
         validParams.put("userdisconnect", new ParamInfo("Disconnect user if the server disconnects us.", ParamType.BOOL, false));
         validParams.put("logging", new ParamInfo("Enable server-side logging of events.", ParamType.BOOL, false));
     }
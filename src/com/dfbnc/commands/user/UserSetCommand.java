@@ -53,6 +53,9 @@ public class UserSetCommand extends AbstractSetCommand {
         validParams.put("readonly", new ParamInfo("Prevent a sub-client being able to change any settings. (If you set this on yourself, you will be unable to unset it.)", ParamType.BOOL, false));
         validParams.put("activeclient", new ParamInfo("Is this client counted for the purposes of performing offline actions? (eg offlinenick, dperform, aperform)", ParamType.BOOL, false));
         validParams.put("autoburst", new ParamInfo("Should this client be automatically joined into channels on connect? (If FALSE then PARTs from this client just remove that client from the channel not the whole bouncer)", ParamType.BOOL, true));
+        validParams.put("sendqhigh", new ParamInfo("How many kilobytes can be waiting to be sent to this client before sendqpolicy applies? Bursts and backbuffer replays count, but are only refused if the client is already this far behind. (0 for no limit)", ParamType.POSITIVEINT, true));
+        validParams.put("sendqlow", new ParamInfo("How many kilobytes waiting to be sent to this client does sendqpolicy aim to get back down to?", ParamType.POSITIVEINT, true));
+        validParams.put("sendqpolicy", new ParamInfo("What to do when sendqhigh is exceeded: dropoldest (drop the oldest waiting lines), disconnect, or catchup (drop new channel messages, then replay them from the backbuffer)", ParamType.WORD, true));
     }
 
     /**
@@ -28,6 +28,7 @@ import com.dmdirc.util.validators.Validator;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 
 public interface Config {
@@ -71,6 +72,31 @@ public interface Config {
      */
     public String getOption(final String domain, final String option, Validator<String> validator);
 
+    /**
+     * Retrieves the first value for the specified option, without throwing
+     * an exception if there isn't one.
+     *
+     * @param domain The domain of the option
+     * @param option The name of the option
+     * <p/>
+     * @return The value of the option, or an empty Optional if no matching
+     * values exist
+     */
+    public Optional<String> findOption(final String domain, final String option);
+
+    /**
+     * Retrieves the first value for the specified option that matches the
+     * specified validator, without throwing an exception if there isn't one.
+     *
+     * @param domain The domain of the option
+     * @param option The name of the option
+     * @param validator The validator to use to check legal values
+     * <p/>
+     * @return The value of the option, or an empty Optional if no matching
+     * values exist
+     */
+    public Optional<String> findOption(final String domain, final String option, Validator<String> validator);
+
     /**
      * Sets the specified option in this configuration to the specified value.
      *
@@ -28,7 +28,14 @@ import com.dmdirc.util.validators.Validator;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 
 /**
@@ -41,6 +48,11 @@ public class ConfigFileConfig extends ConfigImpl {
      */
     private final ConfigFile config;
 
+    /**
+     * File the config is stored in, or null if it was read from a stream.
+     */
+    private final File file;
+
     /**
      * Creates a new configuration file, creating the file is needed.
      *
@@ -58,6 +70,7 @@ public class ConfigFileConfig extends ConfigImpl {
             }
          }
 
+        this.file = file;
         this.config = new ConfigFile(file.toPath());
 
         init();
@@ -70,39 +83,37 @@ public class ConfigFileConfig extends ConfigImpl {
      */
     public ConfigFileConfig(final InputStream stream) throws IOException, InvalidConfigFileException {
         super();
+        this.file = null;
         this.config = new ConfigFile(stream);
 
         init();
     }
 
     @Override
-    public String getOption(final String domain, final String option, final Validator<String> validator) {
-        String value = null;
-        try {
-            value = config.getKeyDomain(domain).get(option);
-        } catch (final Exception e) { /** Option not found in this config. */ }
+    public Optional<String> findOption(final String domain, final String option, final Validator<String> validator) {
+        final String value = config.hasDomain(domain) ? config.getKeyDomain(domain).get(option) : null;
 
-        if (validator.validate(value).isFailure()) {
-            value = null;
+        if (value == null || validator.validate(value).isFailure()) {
+            return Optional.empty();
         }
 
-        if (value == null) {
-            throw new NullPointerException("No such config option: " + domain + "." + option);
-        }
-
-        return value;
+        return Optional.of(value);
     }
 
     @Override
     public void setOption(final String domain, final String option, final String value) {
-        config.getKeyDomain(domain).put(option, value);
+        synchronized (config) {
+            config.getKeyDomain(domain).put(option, value);
+        }
 
         callListeners(domain, option);
     }
 
     @Override
     public void unsetOption(final String domain, final String option) {
-        config.getKeyDomain(domain).remove(option);
+        synchronized (config) {
+            config.getKeyDomain(domain).remove(option);
+        }
 
         callListeners(domain, option);
     }
@@ -124,15 +135,72 @@ public class ConfigFileConfig extends ConfigImpl {
         return config.getKeyDomains().keySet();
     }
 
+    /**
+     * Saves this configuration to disk in the background.
+     *
+     * @see ConfigWriter
+     */
     @Override
     public void save() {
+        if (file == null) {
+            try {
+                config.write();
+            } catch (IOException ex) {
+                //Oh shit.
+            }
+        } else {
+            ConfigWriter.get().markDirty(this);
+        }
+    }
+
+    /**
+     * Write this configuration to disk now.
+     *
+     * The config is written to a temporary file which then replaces the real
+     * one, so the file is never left half written.
+     *
+     * @throws IOException If the config can not be written
+     */
+    void write() throws IOException {
+        if (!file.getAbsoluteFile().getParentFile().exists()) {
+            // The directory has been deleted, so there is nowhere to write.
+            return;
+        }
+
+        final Path target = file.toPath();
+        final Path temp = target.resolveSibling(file.getName() + ".tmp");
+
+        final ConfigFile copy = new ConfigFile(temp);
+        copy.setAutomake(true);
+        synchronized (config) {
+            config.getKeyDomains().forEach((domain, values) -> copy.addDomain(domain, new HashMap<>(values)));
+            config.getFlatDomains().forEach((domain, values) -> copy.addDomain(domain, new ArrayList<>(values)));
+        }
+        copy.write();
+
         try {
-            config.write();
-        } catch (IOException ex) {
-            //Oh shit.
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final AtomicMoveNotSupportedException ex) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
+    /**
+     * Is this config stored in the given directory?
+     *
+     * @param directory Directory to check
+     * @return true if the config file is in the directory or below it.
+     */
+    boolean isIn(final File directory) {
+        return file != null && file.getAbsoluteFile().toPath().normalize()
+                .startsWith(directory.getAbsoluteFile().toPath().normalize());
+    }
+
+    @Override
+    public String toString() {
+        return file == null ? super.toString() : file.getPath();
+    }
+
     /**
      * Initialises the config file.
      * <p/>
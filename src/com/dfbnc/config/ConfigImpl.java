@@ -26,14 +26,24 @@ import com.dmdirc.util.io.InvalidConfigFileException;
 import com.dmdirc.util.validators.PermissiveValidator;
 import com.dmdirc.util.validators.Validator;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Single layer configuration
+ *
+ * Options looked up without a validator are cached here along with their
+ * parsed forms, so repeated lookups don't need to walk any layers or parse
+ * the value again. Cached options are dropped by {@link #callListeners} when
+ * they change, here or in any config this one is layered over.
  */
 public abstract class ConfigImpl implements Config {
 
@@ -45,6 +55,20 @@ public abstract class ConfigImpl implements Config {
      * Configuration change listeners.
      */
     private final Map<String, List<ConfigChangeListener>> listeners = new HashMap<>();
+    /**
+     * Cached options, by domain then option.
+     */
+    private final Map<String, Map<String, CachedOption>> cache = new ConcurrentHashMap<>();
+    /**
+     * Incremented whenever cached options are dropped.
+     */
+    private final AtomicLong generation = new AtomicLong();
+    /**
+     * Configs layered over this one, which need their cached options dropped
+     * when ours are. These are only weakly held, so that configs that are no
+     * longer used (eg, for deleted sub-clients) can still be collected.
+     */
+    private final List<WeakReference<ConfigImpl>> dependents = new CopyOnWriteArrayList<>();
 
     /**
      * Creates a new configuration file, creating the file is needed.
@@ -76,12 +100,12 @@ public abstract class ConfigImpl implements Config {
 
     @Override
     public Boolean getOptionBool(final String domain, final String option) {
-        return Boolean.valueOf(getOption(domain, option));
+        return getCached(domain, option).getBool(domain, option);
     }
 
     @Override
     public List<String> getOptionList(final String domain, final String option) {
-        return getOptionList(domain, option, permissiveValidator);
+        return new ArrayList<>(getCached(domain, option).getList(domain, option));
     }
 
     @Override
@@ -121,17 +145,90 @@ public abstract class ConfigImpl implements Config {
 
     @Override
     public Integer getOptionInt(final String domain, final String option) {
-        return getOptionInt(domain, option, permissiveValidator);
+        return getCached(domain, option).getInt(domain, option);
     }
 
     @Override
     public String getOption(final String domain, final String option) {
-        return getOption(domain, option, permissiveValidator);
+        return getCached(domain, option).getValue(domain, option);
+    }
+
+    @Override
+    public String getOption(final String domain, final String option, final Validator<String> validator) {
+        return findOption(domain, option, validator).orElseThrow(() -> new NullPointerException("No such config option: " + domain + "." + option));
+    }
+
+    @Override
+    public Optional<String> findOption(final String domain, final String option) {
+        return Optional.ofNullable(getCached(domain, option).value);
     }
 
     @Override
     public boolean hasOption(final String domain, final String option) {
-        return hasOption(domain, option, permissiveValidator);
+        return getCached(domain, option).value != null;
+    }
+
+    /**
+     * Get the cached copy of an option, looking it up if needed.
+     *
+     * @param domain the domain of the option
+     * @param option the name of the option
+     * @return The cached option.
+     */
+    private CachedOption getCached(final String domain, final String option) {
+        final Map<String, CachedOption> domainCache = cache.get(domain);
+        CachedOption cached = domainCache == null ? null : domainCache.get(option);
+        if (cached != null) {
+            return cached;
+        }
+
+        final long lookupGeneration = generation.get();
+        cached = new CachedOption(findOption(domain, option, permissiveValidator).orElse(null));
+
+        // If the option changed while it was being looked up, what we found
+        // may already be out of date, so don't keep it.
+        final Map<String, CachedOption> newCache = cache.computeIfAbsent(domain, k -> new ConcurrentHashMap<>());
+        if (generation.get() == lookupGeneration) {
+            newCache.putIfAbsent(option, cached);
+            if (generation.get() != lookupGeneration) {
+                newCache.remove(option, cached);
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Drop the cached copy of an option, here and in any configs layered over
+     * this one.
+     *
+     * @param domain the domain that changed
+     * @param option the option that changed
+     */
+    protected void invalidate(final String domain, final String option) {
+        generation.incrementAndGet();
+        final Map<String, CachedOption> domainCache = cache.get(domain);
+        if (domainCache != null) {
+            domainCache.remove(option);
+        }
+        for (final WeakReference<ConfigImpl> reference : dependents) {
+            final ConfigImpl dependent = reference.get();
+            if (dependent == null) {
+                dependents.remove(reference);
+            } else {
+                dependent.invalidate(domain, option);
+            }
+        }
+    }
+
+    /**
+     * Adds a config that is layered over this one, which will have its
+     * cached options dropped when they change here.
+     *
+     * @param dependent Config layered over this one
+     */
+    protected void addDependent(final ConfigImpl dependent) {
+        dependents.removeIf(reference -> reference.get() == null);
+        dependents.add(new WeakReference<>(dependent));
     }
 
     @Override
@@ -177,6 +274,8 @@ public abstract class ConfigImpl implements Config {
      * @param option the option that changed
      */
     protected void callListeners(final String domain, final String option) {
+        invalidate(domain, option);
+
         if (listeners.containsKey(domain)) {
             for (final ConfigChangeListener listener : listeners.get(domain)) {
                 listener.configChanged(this, domain, option);
@@ -193,4 +292,101 @@ public abstract class ConfigImpl implements Config {
             }
         }
     }
+
+    /**
+     * An option looked up without a validator, and its parsed forms.
+     */
+    private static final class CachedOption {
+
+        /** The value of the option, or null if it isn't set. */
+        private final String value;
+
+        /** The value as an integer, or null if it isn't one. */
+        private volatile Integer intValue;
+
+        /** Has {@link #intValue} been worked out yet? */
+        private volatile boolean intParsed;
+
+        /** The value as a list, built when first needed. */
+        private volatile List<String> list;
+
+        /**
+         * Create a new CachedOption.
+         *
+         * @param value The value of the option, or null if it isn't set
+         */
+        CachedOption(final String value) {
+            this.value = value;
+        }
+
+        /**
+         * Get the value of the option.
+         *
+         * @param domain the domain of the option
+         * @param option the name of the option
+         * @return The value of the option.
+         * @throws NullPointerException if the option isn't set
+         */
+        String getValue(final String domain, final String option) {
+            if (value == null) {
+                throw new NullPointerException("No such config option: " + domain + "." + option);
+            }
+            return value;
+        }
+
+        /**
+         * Get the value of the option as a boolean.
+         *
+         * @param domain the domain of the option
+         * @param option the name of the option
+         * @return The value of the option.
+         * @throws NullPointerException if the option isn't set
+         */
+        Boolean getBool(final String domain, final String option) {
+            return Boolean.valueOf(getValue(domain, option));
+        }
+
+        /**
+         * Get the value of the option as an integer.
+         *
+         * @param domain the domain of the option
+         * @param option the name of the option
+         * @return The value of the option, or null if it isn't a number.
+         * @throws NullPointerException if the option isn't set
+         */
+        Integer getInt(final String domain, final String option) {
+            final String number = getValue(domain, option);
+            if (!intParsed) {
+                try {
+                    intValue = Integer.parseInt(number);
+                } catch (final NumberFormatException ex) {
+                    intValue = null;
+                }
+                intParsed = true;
+            }
+            return intValue;
+        }
+
+        /**
+         * Get the value of the option as a list.
+         *
+         * @param domain the domain of the option
+         * @param option the name of the option
+         * @return The value of the option, which must not be modified.
+         * @throws NullPointerException if the option isn't set
+         */
+        List<String> getList(final String domain, final String option) {
+            List<String> result = list;
+            if (result == null) {
+                result = new ArrayList<>();
+                for (String line : getValue(domain, option).split("\n")) {
+                    if (!line.isEmpty()) {
+                        result.add(line);
+                    }
+                }
+                list = result;
+            }
+            return result;
+        }
+    }
 }
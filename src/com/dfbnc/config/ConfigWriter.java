@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.dfbnc.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import uk.org.dataforce.libs.logger.Logger;
+
+/**
+ * Writes config files to disk in the background.
+ *
+ * Saving a config just marks it as needing to be written, the write happens
+ * a short time later on a separate thread. Any other saves in that time are
+ * covered by the same write, so a burst of changes only writes each file
+ * once, and nothing that saves a config has to wait for the disk.
+ */
+public final class ConfigWriter {
+
+    /** How long to wait for more saves before writing, in milliseconds. */
+    private static final long WRITE_DELAY = 1000;
+
+    /** The writer used by all configs. */
+    private static final ConfigWriter INSTANCE = new ConfigWriter(WRITE_DELAY);
+
+    /** Thread used to write configs. */
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "Config Writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Configs that need writing. */
+    private final Set<ConfigFileConfig> dirty = ConcurrentHashMap.newKeySet();
+
+    /** Is a write already scheduled? */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /** How long to wait for more saves before writing, in milliseconds. */
+    private final long delay;
+
+    /**
+     * Create a new ConfigWriter.
+     *
+     * @param delay How long to wait for more saves before writing, in milliseconds
+     */
+    ConfigWriter(final long delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * Get the writer used by all configs.
+     *
+     * @return The config writer.
+     */
+    public static ConfigWriter get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Mark a config as needing to be written.
+     *
+     * @param config Config to write
+     */
+    void markDirty(final ConfigFileConfig config) {
+        dirty.add(config);
+        if (scheduled.compareAndSet(false, true)) {
+            executor.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write every config that needs writing now, and wait for it to finish.
+     * This should be called before the BNC exits.
+     */
+    public synchronized void flush() {
+        // Anything saved from here on needs another write.
+        scheduled.set(false);
+
+        for (final ConfigFileConfig config : dirty) {
+            dirty.remove(config);
+            try {
+                config.write();
+            } catch (final IOException | RuntimeException ex) {
+                Logger.error("Unable to write config file: " + config + " (" + ex.getMessage() + ")");
+            }
+        }
+    }
+
+    /**
+     * Forget about any unwritten changes to configs in the given directory.
+     *
+     * If a write is already happening this waits for it to finish, so once
+     * this returns nothing will write to the directory until a config in it
+     * is saved again. This should be called before deleting the directory.
+     *
+     * @param directory Directory to stop writing to
+     */
+    public synchronized void cancel(final File directory) {
+        dirty.removeIf(config -> config.isIn(directory));
+    }
+}
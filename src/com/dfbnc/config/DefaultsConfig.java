@@ -26,6 +26,7 @@ import com.dmdirc.util.io.InvalidConfigFileException;
 import com.dmdirc.util.validators.Validator;
 import java.io.IOException;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 
 /**
@@ -54,27 +55,22 @@ public class DefaultsConfig extends ConfigImpl {
             throw new InvalidConfigFileException("Null Config Given");
         }
 
+        // Options we have cached may have come from either layer, and either
+        // can be changed directly.
+        if (config instanceof ConfigImpl) {
+            ((ConfigImpl) config).addDependent(this);
+        }
+        if (defaults instanceof ConfigImpl) {
+            ((ConfigImpl) defaults).addDependent(this);
+        }
+
         init();
     }
 
     @Override
-    public String getOption(final String domain, final String option, final Validator<String> validator) {
-        String value = null;
-        try {
-            value = config.getOption(domain, option, validator);
-        } catch (final NullPointerException npe) { }
-
-        if (value == null) {
-            try {
-                value = defaults.getOption(domain, option, validator);
-            } catch (final NullPointerException npe) { }
-        }
-
-        if (value == null) {
-            throw new NullPointerException("No such config option: " + domain + "." + option);
-        }
-
-        return value;
+    public Optional<String> findOption(final String domain, final String option, final Validator<String> validator) {
+        final Optional<String> value = config.findOption(domain, option, validator);
+        return value.isPresent() ? value : defaults.findOption(domain, option, validator);
     }
 
     @Override
@@ -11,6 +11,7 @@ import com.dmdirc.util.validators.Validator;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 
 /**
@@ -44,6 +45,16 @@ public class ReadOnlyConfig implements Config {
         return config.getOption(domain, option, validator);
     }
 
+    @Override
+    public Optional<String> findOption(final String domain, final String option) {
+        return config.findOption(domain, option);
+    }
+
+    @Override
+    public Optional<String> findOption(final String domain, final String option, final Validator<String> validator) {
+        return config.findOption(domain, option, validator);
+    }
+
     @Override
     public void setOption(final String domain, final String option, final String value, final Validator<String> validator) {
         throw new UnsupportedOperationException("This config is read only.");
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.servers.irc;
+
+import com.dfbnc.sockets.UserSocket;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiPredicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps track of which sockets lines for each channel should be sent to, so
+ * that lines from the server only need to go near the sockets that want them.
+ *
+ * The sockets for a channel are worked out the first time a line for it is
+ * seen, and remembered until something that changes them is invalidated.
+ */
+class ChannelRouter {
+
+    /** Maximum number of channels to remember before starting again. */
+    static final int MAX_ROUTES = 4096;
+
+    /** Sockets for each casemapped channel name. */
+    private volatile Map<String, List<UserSocket>> routes = new ConcurrentHashMap<>();
+
+    /** Supplies all the sockets that might want lines. */
+    private final Supplier<Collection<UserSocket>> sockets;
+
+    /** Decides if a socket wants lines for a channel. */
+    private final BiPredicate<UserSocket, String> filter;
+
+    /**
+     * Create a new ChannelRouter.
+     *
+     * @param sockets Supplies all the sockets that might want lines
+     * @param filter Decides if a socket wants lines for a channel
+     */
+    ChannelRouter(final Supplier<Collection<UserSocket>> sockets, final BiPredicate<UserSocket, String> filter) {
+        this.sockets = sockets;
+        this.filter = filter;
+    }
+
+    /**
+     * Get the sockets that should be sent lines for the given channel.
+     *
+     * @param name Casemapped channel name
+     * @return Sockets that want lines for the channel.
+     */
+    List<UserSocket> getSockets(final String name) {
+        final Map<String, List<UserSocket>> current = routes;
+        if (current.size() > MAX_ROUTES && !current.containsKey(name)) {
+            invalidateAll();
+        }
+        return routes.computeIfAbsent(name, n -> Collections.unmodifiableList(sockets.get().stream()
+                .filter(socket -> filter.test(socket, n))
+                .collect(Collectors.toList())));
+    }
+
+    /**
+     * Forget the sockets for the given channel.
+     *
+     * @param name Casemapped channel name
+     */
+    void invalidate(final String name) {
+        routes.remove(name);
+    }
+
+    /**
+     * Forget the sockets for all channels.
+     */
+    void invalidateAll() {
+        routes = new ConcurrentHashMap<>();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.servers.irc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches lines against a sub-client's highlight list.
+ *
+ * Entries without any regex characters in them are plain words, and are all
+ * looked for at once with an Aho-Corasick automaton. Everything else is
+ * combined into a single Pattern. Matching is case insensitive, and entries
+ * can match anywhere in the line.
+ */
+class HighlightMatcher {
+
+    /** Characters that mean an entry needs to be treated as a regex. */
+    private static final String REGEX_CHARS = "\\^$.|?*+()[]{}";
+
+    /** Regex entries that refer back to their own groups. */
+    private static final Pattern BACKREFERENCE = Pattern.compile("\\\\([1-9]|k<)");
+
+    /** Flags used for regex entries. */
+    private static final int FLAGS = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+
+    /** Root of the automaton for plain entries. */
+    private final Node root = new Node();
+
+    /** Regexes to look for, usually just one combining all of them. */
+    private final List<Pattern> patterns = new ArrayList<>();
+
+    /**
+     * Create a new HighlightMatcher.
+     *
+     * Invalid regexes are ignored, they are rejected when they are added to
+     * the list so can only be here if the config was edited by hand.
+     *
+     * @param entries Highlight list
+     */
+    HighlightMatcher(final Collection<String> entries) {
+        final StringBuilder combined = new StringBuilder();
+        final List<Pattern> combinedPatterns = new ArrayList<>();
+        for (final String entry : entries) {
+            if (!isRegex(entry)) {
+                addWord(entry);
+                continue;
+            }
+
+            try {
+                final Pattern pattern = Pattern.compile(entry, FLAGS);
+                if (BACKREFERENCE.matcher(entry).find()) {
+                    // Group numbers change when combined, so keep it apart.
+                    patterns.add(pattern);
+                } else {
+                    // A \Q without an \E would quote everything after it.
+                    combined.append(combined.length() == 0 ? "" : "|").append("(?:").append(entry).append(entry.contains("\\Q") ? "\\E)" : ")");
+                    combinedPatterns.add(pattern);
+                }
+            } catch (final PatternSyntaxException pse) {
+                // Ignored, see above.
+            }
+        }
+        if (combined.length() > 0) {
+            try {
+                patterns.add(Pattern.compile(combined.toString(), FLAGS));
+            } catch (final PatternSyntaxException pse) {
+                // Something valid on its own isn't once combined, so don't.
+                patterns.addAll(combinedPatterns);
+            }
+        }
+        buildFailures();
+    }
+
+    /**
+     * Check if the given entry needs treating as a regex.
+     *
+     * @param entry Entry to check
+     * @return True if the entry has any regex characters in it.
+     */
+    private static boolean isRegex(final String entry) {
+        for (int i = 0; i < entry.length(); i++) {
+            if (REGEX_CHARS.indexOf(entry.charAt(i)) != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a plain word to the automaton.
+     *
+     * @param word Word to add
+     */
+    private void addWord(final String word) {
+        Node node = root;
+        for (int i = 0; i < word.length(); i++) {
+            node = node.next.computeIfAbsent(Character.toLowerCase(word.charAt(i)), c -> new Node());
+        }
+        node.output = true;
+    }
+
+    /**
+     * Link every node in the automaton to the node for the longest suffix of
+     * it that is also in the automaton, which is where a search carries on
+     * from when the next character doesn't match.
+     */
+    private void buildFailures() {
+        final Queue<Node> queue = new ArrayDeque<>();
+        for (final Node child : root.next.values()) {
+            child.failure = root;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            final Node node = queue.remove();
+            for (final Map.Entry<Character, Node> entry : node.next.entrySet()) {
+                final Node child = entry.getValue();
+                Node failure = node.failure;
+                while (failure != root && !failure.next.containsKey(entry.getKey())) {
+                    failure = failure.failure;
+                }
+                final Node target = failure.next.get(entry.getKey());
+                child.failure = (target == null) ? root : target;
+                child.output |= child.failure.output;
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Check if the given line matches any entry.
+     *
+     * @param line Line to check
+     * @return True if the line should be highlighted.
+     */
+    boolean matches(final String line) {
+        if (root.output) {
+            // An empty word matches everything.
+            return true;
+        }
+
+        if (!root.next.isEmpty()) {
+            Node node = root;
+            for (int i = 0; i < line.length(); i++) {
+                final char c = Character.toLowerCase(line.charAt(i));
+                while (node != root && !node.next.containsKey(c)) {
+                    node = node.failure;
+                }
+                node = node.next.getOrDefault(c, root);
+                if (node.output) {
+                    return true;
+                }
+            }
+        }
+
+        for (final Pattern pattern : patterns) {
+            if (pattern.matcher(line).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A node in the automaton.
+     */
+    private static class Node {
+
+        /** Nodes for each next character. */
+        final Map<Character, Node> next = new HashMap<>();
+
+        /** Node to carry on from if the next character isn't here. */
+        Node failure;
+
+        /** Does reaching this node mean a word has matched? */
+        boolean output;
+    }
+}
@@ -26,15 +26,22 @@ import com.dfbnc.Account;
 import com.dfbnc.AccountConfigChangeListener;
 import com.dfbnc.ConnectionHandler;
 import com.dfbnc.Consts;
+import com.dfbnc.DFBnc;
+import com.dfbnc.backbuffer.BackbufferLog;
 import com.dfbnc.config.Config;
 import com.dfbnc.servers.logging.ServerLogger;
+import com.dfbnc.sockets.ChatHistoryHandler;
 import com.dfbnc.sockets.DebugFlag;
+import com.dfbnc.sockets.ReadMarkerHandler;
 import com.dfbnc.sockets.UnableToConnectException;
 import com.dfbnc.sockets.UserSocket;
 import com.dfbnc.sockets.UserSocketWatcher;
+import com.dfbnc.util.BackbufferCursor;
+import com.dfbnc.util.BackbufferHistory;
+import com.dfbnc.util.BackbufferList;
 import com.dfbnc.util.BackbufferMessage;
 import com.dfbnc.util.IRCLine;
-import com.dfbnc.util.RollingList;
+import com.dfbnc.util.IRCLineBuilder;
 import com.dfbnc.util.Util;
 import com.dmdirc.parser.common.AwayState;
 import com.dmdirc.parser.common.ChannelJoinRequest;
@@ -60,6 +67,7 @@ import com.dmdirc.parser.interfaces.ChannelClientInfo;
 import com.dmdirc.parser.interfaces.ChannelInfo;
 import com.dmdirc.parser.interfaces.ClientInfo;
 import com.dmdirc.parser.interfaces.Parser;
+import com.dmdirc.parser.interfaces.StringConverter;
 import com.dmdirc.parser.irc.CapabilityState;
 import com.dmdirc.parser.irc.IRCChannelInfo;
 import com.dmdirc.parser.irc.IRCClientInfo;
@@ -79,10 +87,11 @@ import uk.org.dataforce.libs.logger.Logger;
 
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -91,7 +100,7 @@ import java.util.Random;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
@@ -104,6 +113,38 @@ import java.util.stream.Collectors;
  */
 public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatcher, AccountConfigChangeListener {
 
+    /**
+     * Numerics in reply to channel requests, indexed by numeric. These are
+     * only forwarded if a client asked for them, and each entry lists the
+     * numerics to stop forwarding once one has been. Numerics without an
+     * entry are always forwarded.
+     */
+    private static final String[][] CHANNEL_NUMERICS = new String[1000][];
+
+    static {
+        // Channel Modes, Topic, and the various lists.
+        for (final int numeric : new int[]{324, 332, 367, 348, 346, 387, 389, 344, 910, 954, 941}) {
+            CHANNEL_NUMERICS[numeric] = new String[0];
+        }
+        // List ends, which come after the list.
+        for (final int numeric : new int[]{368, 349, 347, 345, 911}) {
+            CHANNEL_NUMERICS[numeric] = new String[]{Integer.toString(numeric), Integer.toString(numeric - 1)};
+        }
+        // List ends for lists that are numbered backwards.
+        for (final int numeric : new int[]{386, 388, 953, 940}) {
+            CHANNEL_NUMERICS[numeric] = new String[]{Integer.toString(numeric), Integer.toString(numeric + 1)};
+        }
+        // Channel Create Time
+        CHANNEL_NUMERICS[329] = new String[]{"329", "324"};
+        // User Modes
+        CHANNEL_NUMERICS[221] = new String[]{"221"};
+        // Topic Time/User, No Topic
+        CHANNEL_NUMERICS[331] = new String[]{"331", "332", "333"};
+        CHANNEL_NUMERICS[333] = CHANNEL_NUMERICS[331];
+        // Names End
+        CHANNEL_NUMERICS[366] = new String[]{"366", "353"};
+    }
+
     /** Account that this IRCConnectionHandler is for. */
     private final Account myAccount;
     /** Server we were supposed to connect to. */
@@ -129,13 +170,40 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
     /** This stores a list of user sockets that we want to requeue all lines from and for temporarily. */
     private final List<UserSocket> forceRequeueList = new ArrayList<>();
     /** Private backbuffer list. */
-    private final RollingList<BackbufferMessage> privateBackbufferList;
+    private final BackbufferList privateBackbufferList;
+    /** Lines recently built when replaying backbuffers. */
+    private final ReplayLineCache replayLineCache = new ReplayLineCache();
     /** This timer handles keeping our nickname when we can't see the client. */
     private final Timer nickKeepTimer = new Timer("nickKeepTimer");
     /** Do we want to attempt to keep the nickname next time the timer fires? */
     private AtomicBoolean skipKeepNick = new AtomicBoolean(false);
-    /** This stores the list of active channels for non-bursty clients. */
-    private final Map<UserSocket,Set<String>> activeChannelList = new HashMap<>();
+    /**
+     * This stores the casemapped names of active channels for non-bursty
+     * clients.
+     */
+    private final Map<UserSocket,Set<String>> activeChannelList = new ConcurrentHashMap<>();
+    /** Casemapped channel whitelists for each subclient that has used one. */
+    private final Map<String,Set<String>> channelWhitelists = new ConcurrentHashMap<>();
+    /** Highlight matchers for each subclient that has used one. */
+    private final Map<String,HighlightMatcher> highlightMatchers = new ConcurrentHashMap<>();
+    /** The last line from or to the server that was parsed. */
+    private volatile ParsedLine lastParsedLine;
+    /** Sockets that lines for each channel are sent to. */
+    private final ChannelRouter channelRouter;
+    /**
+     * Time of the newest backbuffer message written to each connected socket,
+     * and its position among the messages at that time, by read marker name.
+     */
+    private final Map<UserSocket,Map<String,long[]>> deliveredTimes = new ConcurrentHashMap<>();
+    /**
+     * Time of the newest private backbuffer message, and how many messages
+     * have been added at that time.
+     */
+    private final long[] privateLastTime = new long[2];
+    /** Is server.persistentbackbuffer enabled? */
+    private volatile boolean persistentBackbuffer;
+    /** StringConverter that cached channel names were casemapped with. */
+    private volatile StringConverter cachedConverter;
     /**
      * Have we already closed this socket?
      * Used to prevent connection errors triggering handlerDisconnected twice.
@@ -164,7 +232,11 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
     public IRCConnectionHandler(final Account acc, final int serverNum) {
         myAccount = acc;
         myServerNum = serverNum;
-        privateBackbufferList = new RollingList<>(getConfigMaxValue("server", "privatebackbuffer"));
+        channelRouter = new ChannelRouter(() -> myAccount.getUserSockets(), this::activeAllowedChannel);
+        privateBackbufferList = new BackbufferList(getConfigMaxValue("server", "privatebackbuffer"));
+        configureBackbufferCompression(privateBackbufferList);
+        DFBnc.getBackbufferAccountant().register(privateBackbufferList);
+        persistentBackbuffer = myAccount.getAccountConfig().getOptionBool("server", "persistentbackbuffer");
     }
 
     @Override
@@ -275,6 +347,16 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
         return size;
     }
 
+    /**
+     * Configure how much of a backbuffer is kept uncompressed.
+     *
+     * @param backbufferList Backbuffer to configure
+     */
+    private void configureBackbufferCompression(final BackbufferList backbufferList) {
+        backbufferList.setBlockSize(Math.max(1, myAccount.getAccountConfig().getOptionInt("server", "backbufferblock")) * 1024);
+        backbufferList.setHotLimit(myAccount.getAccountConfig().getOptionInt("server", "backbufferhot"));
+    }
+
     /**
      * Configure the output queue according to the user settings.
      */
@@ -508,7 +590,7 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
                 } else {
                     deactivateChannel(user, line[channelPos]);
                     final ClientInfo me = myParser.getLocalClient();
-                    user.sendLine(":%s!%s@%s PART %s :Channel Deactivated", me.getNickname(), me.getUsername(), me.getHostname(), line[1]);
+                    user.sendLine(IRCLineBuilder.get().source(me.getNickname(), me.getUsername(), me.getHostname()).command("PART").param(line[1]).trailing("Channel Deactivated").build());
                     return;
                 }
             } else if (!activeAllowedChannel(user, line[channelPos])) {
@@ -998,6 +1080,7 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
     public void onChannelPart(final ChannelPartEvent event) {
         if (event.getClient().getClient() == myParser.getLocalClient()) {
             deactivateChannel(null, event.getChannel().getName());
+            closeBackbufferLog(event.getChannel());
 
             if (!isPartingAll) {
                 updateStoredChannels();
@@ -1014,6 +1097,7 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
     public void onChannelKick(final ChannelKickEvent event) {
         if (event.getClient().getClient() == myParser.getLocalClient()) {
             deactivateChannel(null, event.getChannel().getName());
+            closeBackbufferLog(event.getChannel());
 
             updateStoredChannels();
         }
@@ -1037,7 +1121,10 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
         allowLine(channel, "332");
         allowLine(channel, "333");
 
-        channel.getMap().put("backbufferList", new RollingList<BackbufferMessage>(getConfigMaxValue("server", "backbuffer")));
+        final BackbufferList backbufferList = new BackbufferList(getConfigMaxValue("server", "backbuffer"));
+        configureBackbufferCompression(backbufferList);
+        DFBnc.getBackbufferAccountant().register(backbufferList);
+        channel.getMap().put("backbufferList", backbufferList);
 
         // Fake a join.
         onChannelJoin(new ChannelJoinEvent(event.getParser(), event.getDate(), channel, channel.getChannelClient(event.getParser().getLocalClient())));
@@ -1084,36 +1171,68 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
         // Fake a join to connected clients.
         // We do this rather than passing the "JOIN" through in onDataIn so that
         // we can deal with "extended-join" where possible.
+        // Each form is only built once, and only if a client wants it.
         final ClientInfo ci = event.getClient().getClient();
-        final String accountName = ci.getAccountName() == null ? "*" : ci.getAccountName();
+        String join = null;
+        String extendedJoin = null;
 
         for (UserSocket socket : myAccount.getUserSockets()) {
             if (socket.syncCompleted()) {
                 if (!activeAllowedChannel(socket, event.getChannel().getName())) { continue; }
 
                 if (socket.getCapabilityState("extended-join") == CapabilityState.ENABLED) {
-                    socket.sendLine(":%s JOIN %s %s :%s", ci.toString(), event.getChannel().getName(), accountName, ci.getRealname());
+                    if (extendedJoin == null) {
+                        final String accountName = ci.getAccountName() == null ? "*" : ci.getAccountName();
+                        extendedJoin = IRCLineBuilder.get().source(ci).command("JOIN").param(event.getChannel().getName()).param(accountName).trailing(ci.getRealname()).build();
+                    }
+                    socket.sendLine(extendedJoin);
                 } else {
-                    socket.sendLine(":%s JOIN %s", ci.toString(), event.getChannel().getName());
+                    if (join == null) {
+                        join = IRCLineBuilder.get().source(ci).command("JOIN").param(event.getChannel().getName()).build();
+                    }
+                    socket.sendLine(join);
                 }
             }
         }
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public void accountConfigChanged(final Account account, final String subClient, final String domain, final String setting) {
         if (domain.equalsIgnoreCase("server") && setting.equalsIgnoreCase("backbuffer")) {
             final int size = getConfigMaxValue("server", "backbuffer");
             for (ChannelInfo channel : myParser.getChannels()) {
-                final RollingList<BackbufferMessage> myList = (RollingList<BackbufferMessage>)channel.getMap().get("backbufferList");
+                final BackbufferList myList = (BackbufferList)channel.getMap().get("backbufferList");
                 myList.setCapacity(size);
             }
         } else if (domain.equalsIgnoreCase("server") && setting.equalsIgnoreCase("privatebackbuffer")) {
             final int size = getConfigMaxValue("server", "privatebackbuffer");
             privateBackbufferList.setCapacity(size);
+        } else if (domain.equalsIgnoreCase("server") && (setting.equalsIgnoreCase("backbufferhot") || setting.equalsIgnoreCase("backbufferblock"))) {
+            for (ChannelInfo channel : myParser.getChannels()) {
+                configureBackbufferCompression((BackbufferList)channel.getMap().get("backbufferList"));
+            }
+            configureBackbufferCompression(privateBackbufferList);
+        } else if (domain.equalsIgnoreCase("server") && setting.equalsIgnoreCase("persistentbackbuffer")) {
+            persistentBackbuffer = myAccount.getAccountConfig().getOptionBool("server", "persistentbackbuffer");
+        } else if (domain.equalsIgnoreCase("server") && setting.equalsIgnoreCase("backbuffersegments")) {
+            myAccount.getBackbufferStore().setSegmentLimit(myAccount.getAccountConfig().getOptionInt("server", "backbuffersegments"));
         } else if (domain.equalsIgnoreCase("irc") && setting.toLowerCase().startsWith("ratelimit")) {
             setupOutputQueue();
+        } else if (domain.equalsIgnoreCase("irc") && setting.equalsIgnoreCase("channelwhitelist")) {
+            if (subClient == null) {
+                channelWhitelists.clear();
+            } else {
+                channelWhitelists.remove(subClient);
+            }
+            channelRouter.invalidateAll();
+        } else if (domain.equalsIgnoreCase("irc") && setting.equalsIgnoreCase("highlight")) {
+            if (subClient == null) {
+                highlightMatchers.clear();
+            } else {
+                highlightMatchers.remove(subClient);
+            }
+        } else if (domain.equalsIgnoreCase("user") && setting.equalsIgnoreCase("autoburst")) {
+            channelRouter.invalidateAll();
         }
     }
 
@@ -1122,19 +1241,99 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
      *
      * @param time    The time the message occurred
      * @param message The message that occurred
+     * @return Position of the message among those in the same backbuffer at
+     *         the same time, starting at 1.
      */
-    @SuppressWarnings("unchecked")
-    private void addBackbufferMessage(final ChannelInfo channel, final long time, final String message) {
+    private int addBackbufferMessage(final ChannelInfo channel, final long time, final String message) {
+        final long[] lastTime;
         if (channel != null) {
-            final RollingList<BackbufferMessage> myList = (RollingList<BackbufferMessage>)channel.getMap().get("backbufferList");
-            myList.add(new BackbufferMessage(time, message));
+            final BackbufferList myList = (BackbufferList)channel.getMap().get("backbufferList");
+            myList.add(time, message);
+            lastTime = (long[])channel.getMap().computeIfAbsent("backbufferLastTime", k -> new long[2]);
         } else {
-            privateBackbufferList.add(new BackbufferMessage(time, message));
+            privateBackbufferList.add(time, message);
+            lastTime = privateLastTime;
+        }
+
+        final int position;
+        synchronized (lastTime) {
+            if (lastTime[0] == time) {
+                lastTime[1]++;
+            } else {
+                lastTime[0] = time;
+                lastTime[1] = 1;
+            }
+            position = (int)lastTime[1];
+        }
+
+        if (persistentBackbuffer) {
+            // Written in the background, so the parser never waits for the disk.
+            myAccount.getBackbufferStore().append(getBackbufferLogName(channel), time, message);
         }
+        return position;
     }
 
     @Override
-    public RollingList<BackbufferMessage> getBackbufferList(final String channel) {
+    public BackbufferHistory getBackbufferHistory(final String channel) {
+        final ChannelInfo ci = myParser.getChannel(channel);
+        return (ci == null) ? null : getBackbufferHistory(ci, getBackbufferList(ci));
+    }
+
+    /**
+     * Get the history to replay for a given channel.
+     *
+     * @param channel Channel to get history for, or null for the private
+     *                backbuffer.
+     * @param backbufferList In-memory backbuffer for the channel
+     * @return The on-disk backbuffer if it is enabled and available, else the
+     *         in-memory backbuffer.
+     */
+    private BackbufferHistory getBackbufferHistory(final ChannelInfo channel, final BackbufferList backbufferList) {
+        if (persistentBackbuffer) {
+            try {
+                return getBackbufferLog(channel);
+            } catch (final IOException ioe) {
+                Logger.error("Unable to read persistent backbuffer for " + myAccount.getName() + ": " + ioe.getMessage());
+            }
+        }
+        return backbufferList;
+    }
+
+    /**
+     * Get the on-disk backbuffer for a given channel.
+     *
+     * @param channel Channel to get backbuffer for, or null for the private
+     *                backbuffer.
+     * @return On-disk backbuffer for the channel
+     * @throws IOException If the backbuffer can not be opened
+     */
+    private BackbufferLog getBackbufferLog(final ChannelInfo channel) throws IOException {
+        return myAccount.getBackbufferStore().getLog(getBackbufferLogName(channel));
+    }
+
+    /**
+     * Get the name of the on-disk backbuffer for a given channel.
+     *
+     * @param channel Channel to get the name for, or null for the private
+     *                backbuffer.
+     * @return Name of the on-disk backbuffer for the channel
+     */
+    private String getBackbufferLogName(final ChannelInfo channel) {
+        return (channel == null) ? "private" : myParser.getStringConverter().toLowerCase(channel.getName());
+    }
+
+    /**
+     * Close the on-disk backbuffer for a channel we are no longer in, so that
+     * its segments aren't kept mapped.
+     *
+     * @param channel Channel to close the backbuffer for
+     */
+    private void closeBackbufferLog(final ChannelInfo channel) {
+        myAccount.getBackbufferStore().closeLog(myParser.getStringConverter().toLowerCase(channel.getName()));
+    }
+
+    @Override
+    public BackbufferList getBackbufferList(final String channel) {
         final ChannelInfo ci = myParser.getChannel(channel);
         return getBackbufferList(ci);
     }
@@ -1145,16 +1344,15 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
      * @param ci ChannelInfo to get backbuffer from
      * @return backbuffer for the channel
      */
-    @SuppressWarnings("unchecked")
-    public RollingList<BackbufferMessage> getBackbufferList(final ChannelInfo ci) {
+    public BackbufferList getBackbufferList(final ChannelInfo ci) {
         if (ci != null) {
-            final RollingList<BackbufferMessage> list = (RollingList<BackbufferMessage>)ci.getMap().get("backbufferList");
+            final BackbufferList list = (BackbufferList)ci.getMap().get("backbufferList");
             if (list != null) {
                 return list;
             }
         }
 
-        return new RollingList<>(0);
+        return new BackbufferList(0);
     }
 
     @Override
@@ -1184,15 +1382,36 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
         if (!checkParser(event)) { return; }
         if (debugOut) { handleDebugData(DebugFlag.ServerDataOut, event.getData()); }
 
-        final String[] bits = IRCParser.tokeniseLine(event.getData());
-        if (bits[0].equals("PRIVMSG") && bits.length > 1) {
-            final ChannelInfo channel = event.getParser().getChannel(bits[1]);
-            if (channel != null || !event.getParser().isValidChannelName(bits[1])) {
+        final ParsedLine line = getParsedLine(event);
+        if (line.getCommand().equals("PRIVMSG") && line.getTarget() != null) {
+            final ChannelInfo channel = line.getChannel();
+            if (channel != null || !event.getParser().isValidChannelName(line.getTarget())) {
                 this.addBackbufferMessage(channel, System.currentTimeMillis(), String.format(":%s %s", this.getMyHost(), event.getData()));
             }
         }
     }
 
+    /**
+     * Get the parsed form of the line for the given event, parsing it if
+     * this is the first time it has been asked for.
+     *
+     * The last line parsed is remembered, so that everything handling the
+     * same event (eg, the {@link IRCServerLogger}) only parses it once.
+     *
+     * @param event Event to get the line for.
+     * @return The parsed line.
+     */
+    ParsedLine getParsedLine(final ParserEvent event) {
+        final ParsedLine last = lastParsedLine;
+        if (last != null && last.getEvent() == event) {
+            return last;
+        }
+
+        final ParsedLine parsed = (event instanceof IRCDataInEvent) ? ParsedLine.fromServer((IRCDataInEvent) event) : ParsedLine.toServer((DataOutEvent) event);
+        lastParsedLine = parsed;
+        return parsed;
+    }
+
     @Handler
     public void onDataIn(final IRCDataInEvent event) {
         if (!checkParser(event)) { return; }
@@ -1204,9 +1423,13 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
 
         boolean forwardLine = true;
         String channelName = null;
-        int numeric = 0;
-        boolean isNumeric = false;
-        final String[] bits = event.getTokenisedData();
+        String markerName = null;
+        long messageTime = 0;
+        int messagePosition = 0;
+        final ParsedLine line = getParsedLine(event);
+        final int numeric = line.getNumeric();
+        final boolean isNumeric = line.isNumeric();
+        final String[] bits = line.getTokens();
         if (bits.length == 1) {
             // Something is wrong, the server sent us a line that only includes its name?
             myAccount.sendBotMessage("Invalid looking line from server, ignored: %s", event.getData());
@@ -1230,146 +1453,59 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
         if (event.getAction().equals("JOIN")) { return; }
 
         if (bits.length > 2 && event.getAction().equals("PRIVMSG")) {
-            final ChannelInfo channel = event.getParser().getChannel(bits[2]);
+            final ChannelInfo channel = line.getChannel();
             if (channel != null) {
                 channelName = channel.getName();
             }
             if (channel != null || !event.getParser().isValidChannelName(bits[2])) {
-                this.addBackbufferMessage(channel, System.currentTimeMillis(), event.getData());
+                markerName = (channel == null) ? ReadMarkerHandler.PRIVATE : ReadMarkerHandler.getName(channel.getName());
+                messageTime = System.currentTimeMillis();
+                messagePosition = this.addBackbufferMessage(channel, messageTime, event.getData());
             }
         } else if (bits.length > 2 && event.getParser().isValidChannelName(bits[2])) {
             channelName = bits[2];
         }
 
-        try {
-            numeric = Integer.parseInt(event.getAction());
-            isNumeric = true;
+        if (isNumeric) {
             if (myParser instanceof IRCParser) {
-                final IRCParser ircParser = ((IRCParser) myParser);
-                final boolean supportLISTMODE = ircParser.get005().containsKey("LISTMODE");
-                if (supportLISTMODE) {
-                    if (event.getAction().equals(ircParser.get005().get("LISTMODE"))) {
-                        return;
-                    } else if (event.getAction().equals(ircParser.get005().get("LISTMODEEND"))) {
-                        return;
-                    }
+                final Map<String, String> isupport = ((IRCParser) myParser).get005();
+                if (event.getAction().equals(isupport.get("LISTMODE")) || event.getAction().equals(isupport.get("LISTMODEEND"))) {
+                    return;
                 }
             }
-            final ChannelInfo channel = (bits.length > 3) ? myParser.getChannel(bits[3]) : null;
+            final ChannelInfo channel = line.getChannel();
             if (channel != null) {
                 channelName = channel.getName();
             }
-            switch (numeric) {
-                case 433: // Nick in use
-                    forwardLine = checkAllowLine(null, event.getAction());
-                    disallowLine(null, event.getAction()); // If we allow it above, we don't want to allow it again.
-                    break;
-
-                case 324: // Channel Modes
-                case 332: // Topic
-                case 367: // Ban List
-                case 348: // Exception List
-                case 346: // Invite List
-                case 387: // Owner List
-                case 389: // Protected List
-                case 344: // Reop List
-                case 910: // Access List
-                case 954: // ExemptChanOps List
-                case 941: // Spamfilter List
-                    if (channel != null) {
-                        forwardLine = checkAllowLine(channel, event.getAction());
-                    }
-                    break;
-
-                case 353: // Names
-                    if (bits.length > 4) {
-                        channelName = bits[4];
-                        final ChannelInfo namesChannel = myParser.getChannel(bits[4]);
-                        if (namesChannel != null) {
-                            forwardLine = checkAllowLine(namesChannel, event.getAction());
-                        }
-                    } else {
-                        myAccount.sendBotMessage("Invalid 353 Response: %s", event.getData());
-                        return;
-                    }
-                    break;
-
-                case 368: // Ban List End
-                case 349: // Exception List End
-                case 347: // Invite List End
-                case 345: // Reop List
-                case 911: // Reop List
-                    if (channel != null) {
-                        forwardLine = checkAllowLine(channel, event.getAction());
-                        if (forwardLine) {
-                            disallowLine(channel, event.getAction());
-                            disallowLine(channel, Integer.toString(numeric - 1));
-                        }
+            if (numeric == 433) {
+                // Nick in use
+                forwardLine = checkAllowLine(null, event.getAction());
+                disallowLine(null, event.getAction()); // If we allow it above, we don't want to allow it again.
+            } else if (numeric == 353) {
+                // Names
+                if (bits.length > 4) {
+                    channelName = bits[4];
+                    final ChannelInfo namesChannel = myParser.getChannel(bits[4]);
+                    if (namesChannel != null) {
+                        forwardLine = checkAllowLine(namesChannel, event.getAction());
                     }
-                    break;
-
-                case 386: // Owner List (Backwards List)
-                case 388: // Protected List (Backwards List)
-                case 953: // ExemptChanOps List (Backwards List)
-                case 940: // Spamfilter List (Backwards List)
-                    if (channel != null) {
-                        forwardLine = checkAllowLine(channel, event.getAction());
-                        if (forwardLine) {
-                            disallowLine(channel, event.getAction());
-                            disallowLine(channel, Integer.toString(numeric + 1));
-                        }
-                    }
-                    break;
-
-                case 329: // Channel Create Time
-                    if (channel != null) {
-                        forwardLine = checkAllowLine(channel, event.getAction());
-                        if (forwardLine) {
-                            disallowLine(channel, event.getAction());
-                            disallowLine(channel, "324");
-                        }
-                    }
-                    break;
-
-                case 221: // User Modes
-                    if (channel != null) {
-                        forwardLine = checkAllowLine(channel, event.getAction());
-                        if (forwardLine) {
-                            disallowLine(channel, event.getAction());
-                        }
-                    }
-                    break;
-
-                case 331: // Topic Time/User
-                case 333: // No Topic
-                    if (channel != null) {
-                        forwardLine = checkAllowLine(channel, event.getAction());
-                        if (forwardLine) {
-                            disallowLine(channel, "331");
-                            disallowLine(channel, "332");
-                            disallowLine(channel, "333");
-                        }
-                    }
-                    break;
-
-                case 366: // Names End
-                    if (channel != null) {
-                        forwardLine = checkAllowLine(channel, event.getAction());
-                        if (forwardLine) {
-                            disallowLine(channel, event.getAction());
-                            disallowLine(channel, "353");
-                        }
+                } else {
+                    myAccount.sendBotMessage("Invalid 353 Response: %s", event.getData());
+                    return;
+                }
+            } else if (channel != null && CHANNEL_NUMERICS[numeric] != null) {
+                forwardLine = checkAllowLine(channel, event.getAction());
+                if (forwardLine) {
+                    for (final String disallow : CHANNEL_NUMERICS[numeric]) {
+                        disallowLine(channel, disallow);
                     }
-                    break;
+                }
             }
-        } catch (final NumberFormatException nfe) {
-            /* Non-Numeric Line. */
         }
 
         if (forwardLine) {
-            for (UserSocket socket : myAccount.getUserSockets()) {
-                if (channelName != null && !activeAllowedChannel(socket, channelName)) { continue; }
-
+            final List<UserSocket> sockets = (channelName == null) ? myAccount.getUserSockets() : channelRouter.getSockets(getStringConverter().toLowerCase(channelName));
+            for (UserSocket socket : sockets) {
                 boolean canSendMessage = socket.syncCompleted();
                 if (!socket.syncCompleted()) {
                     // If this is unrelated to a channel, send it on to clients
@@ -1378,7 +1514,17 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
                 }
 
                 if (canSendMessage) {
-                    socket.sendLine(event.getData());
+                    if (markerName != null) {
+                        // Channel messages are replayed from the backbuffer if
+                        // they have to be dropped, and only count as read
+                        // once they have actually been written.
+                        final String name = markerName;
+                        final long time = messageTime;
+                        final int position = messagePosition;
+                        socket.sendLine(event.getData(), channelName != null, () -> markDelivered(socket, name, time, position));
+                    } else {
+                        socket.sendLine(event.getData());
+                    }
 
                     if (channelName != null && bits.length > 3 && event.getAction().equals("PRIVMSG") && isHighlight(socket, bits[bits.length - 1])) {
                         final ClientInfo client = event.getParser().getClient(bits[0]);
@@ -1434,7 +1580,8 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
                 // Add our own 005.
                 // * Show support for advanced LISTMODE (http://shane.dmdirc.com/listmodes.php)
                 // * Show that this is a BNC Connection
-                final String my005 = ":" + getServerName() + " 005 " + myParser.getLocalClient().getNickname() + " LISTMODE=997 BNC=DFBNC :are supported by this server";
+                // * Show that we answer CHATHISTORY requests from our backbuffer
+                final String my005 = ":" + getServerName() + " 005 " + myParser.getLocalClient().getNickname() + " LISTMODE=997 BNC=DFBNC CHATHISTORY=" + ChatHistoryHandler.MAX_LIMIT + " :are supported by this server";
                 final String ts005 = ":" + getServerName() + " 005 " + myParser.getLocalClient().getNickname() + " TIMESTAMPEDIRC :are supported by this server";
 
                 for (UserSocket socket : myAccount.getUserSockets()) {
@@ -1497,6 +1644,7 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
         if (hasSocketClosed.compareAndSet(false, true)) {
             requeueTimer.cancel();
             nickKeepTimer.cancel();
+            replayLineCache.clear();
             myAccount.handlerDisconnected(reason);
         }
     }
@@ -1528,6 +1676,9 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
 
     @Override
     public void userConnected(final UserSocket user) {
+        channelRouter.invalidateAll();
+        deliveredTimes.put(user, new ConcurrentHashMap<>());
+
         Logger.debug2("IRC userConnected: Check for 001: " + parserReady);
         // If the parser has processed a 001, we need to send our own
         if (parserReady) {
@@ -1566,7 +1717,7 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
                     user.sendIRCLine(306, myParser.getLocalClient().getNickname(), "You have been marked as being away");
                     if (user.getCapabilityState("away-notify") == CapabilityState.ENABLED && !me.getAwayReason().isEmpty()) {
                         // Also send an actual AWAY message if we know it and the user has away-notify enabled.
-                        user.sendLine(":%s AWAY :%s", me, me.getAwayReason());
+                        user.sendLine(IRCLineBuilder.get().source(me).command("AWAY").trailing(me.getAwayReason()).build());
                     }
                     str302.append('-');
                 } else {
@@ -1586,7 +1737,12 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
                         if (!user.getSocketWrapper().isConnected()) { return; }
 
                         if (user.getClientConfig().getOptionBool("user", "autoburst")) {
+                            // Each channel is its own batch, so the first
+                            // can be written while the rest are built. Batches
+                            // count towards the send queue limit, so wait for
+                            // the client to keep up before queueing the next.
                             for (final ChannelInfo channel : channels) {
+                                if (!user.awaitSendQueue() && !user.getSocketWrapper().isConnected()) { return; }
                                 sendChannelBurst(user, channel);
                             }
                         }
@@ -1644,18 +1800,20 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
         if (!activeAllowedChannel(user, channel.getName())) { return; }
         final ClientInfo me = myParser.getLocalClient();
 
-        if (user.getCapabilityState("extended-join") == CapabilityState.ENABLED) {
-            user.sendLine(":%s JOIN %s %s :%s", me, channel, (me.getAccountName() == null ? "*" : me.getAccountName()), me.getRealname());
-        } else {
-            user.sendLine(":%s JOIN %s", me, channel);
-        }
+        user.sendBatch(() -> {
+            final IRCLineBuilder join = IRCLineBuilder.get().source(me).command("JOIN").param(channel);
+            if (user.getCapabilityState("extended-join") == CapabilityState.ENABLED) {
+                join.param(me.getAccountName() == null ? "*" : me.getAccountName()).trailing(me.getRealname());
+            }
+            user.sendLine(join.build());
 
-        sendTopic(user, channel);
-        sendNames(user, channel);
+            sendTopic(user, channel);
+            sendNames(user, channel);
 
-        if (myAccount.getAccountConfig().getOptionInt("server", "backbuffer") > 0) {
-            sendBackbuffer(user, channel);
-        }
+            if (myAccount.getAccountConfig().getOptionInt("server", "backbuffer") > 0) {
+                sendBackbuffer(user, channel);
+            }
+        });
     }
 
     /**
@@ -1680,32 +1838,36 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
      * @param channel Channel to send reply for
      */
     public void sendNames(final UserSocket user, final ChannelInfo channel) {
-        final int maxLength = 500 - (":" + getServerName() + " 353 " + myParser.getLocalClient(). getNickname() + " = " + channel + " :").length();
-        final StringBuilder names = new StringBuilder();
-        final StringBuilder name = new StringBuilder();
-        for (ChannelClientInfo cci : channel.getChannelClients()) {
-            name.setLength(0);
-            if (user.getCapabilityState("multi-prefix") == CapabilityState.ENABLED) {
-                name.append(cci.getAllModesPrefix());
-            } else {
-                name.append(cci.getImportantModePrefix());
-            }
-            if (user.getCapabilityState("userhost-in-names") == CapabilityState.ENABLED) {
-                name.append(cci.getClient().toString());
-            } else {
-                name.append(cci.getClient().getNickname());
-            }
+        user.sendBatch(() -> {
+            final int maxLength = 500 - (":" + getServerName() + " 353 " + myParser.getLocalClient().getNickname() + " = " + channel + " :").length();
+            final boolean multiPrefix = user.getCapabilityState("multi-prefix") == CapabilityState.ENABLED;
+            final boolean userhostInNames = user.getCapabilityState("userhost-in-names") == CapabilityState.ENABLED;
+            final StringBuilder names = new StringBuilder();
+            final StringBuilder name = new StringBuilder();
+            for (ChannelClientInfo cci : channel.getChannelClients()) {
+                name.setLength(0);
+                if (multiPrefix) {
+                    name.append(cci.getAllModesPrefix());
+                } else {
+                    name.append(cci.getImportantModePrefix());
+                }
+                if (userhostInNames) {
+                    name.append(cci.getClient().toString());
+                } else {
+                    name.append(cci.getClient().getNickname());
+                }
 
-            if (name.toString().length() > (maxLength - names.length())) {
+                if (name.length() > (maxLength - names.length())) {
+                    user.sendIRCLine(353, myParser.getLocalClient().getNickname() + " = " + channel, names.toString().trim());
+                    names.setLength(0);
+                }
+                names.append(name).append(' ');
+            }
+            if (names.length() > 0) {
                 user.sendIRCLine(353, myParser.getLocalClient().getNickname() + " = " + channel, names.toString().trim());
-                names.setLength(0);
             }
-            names.append(name.toString()).append(" ");
-        }
-        if (names.length() > 0) {
-            user.sendIRCLine(353, myParser.getLocalClient().getNickname() + " = " + channel, names.toString().trim());
-        }
-        user.sendIRCLine(366, myParser.getLocalClient().getNickname() + " " + channel, "End of /NAMES list. (Cached)");
+            user.sendIRCLine(366, myParser.getLocalClient().getNickname() + " " + channel, "End of /NAMES list. (Cached)");
+        });
     }
 
     /**
@@ -1715,8 +1877,8 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
      * @param channel Channel to send backbuffer for
      */
     public void sendBackbuffer(final UserSocket user, final ChannelInfo channel) {
-        final RollingList<BackbufferMessage> backbufferList = getBackbufferList(channel);
-        sendBackbuffer(user, channel, backbufferList);
+        final BackbufferList backbufferList = getBackbufferList(channel);
+        user.sendBatch(() -> sendBackbuffer(user, channel, backbufferList));
     }
 
     /**
@@ -1725,7 +1887,7 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
      * @param user User to send private backbuffer to
      */
     public void sendPrivateBackbuffer(final UserSocket user) {
-        sendBackbuffer(user, null, privateBackbufferList);
+        user.sendBatch(() -> sendBackbuffer(user, null, privateBackbufferList));
     }
 
     /**
@@ -1735,17 +1897,20 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
      * @param channel Channel to send backbuffer to
      * @param backbufferList Backbuffer to send
      */
-    private void sendBackbuffer(final UserSocket user, final ChannelInfo channel, final RollingList<BackbufferMessage> backbufferList) {
+    private void sendBackbuffer(final UserSocket user, final ChannelInfo channel, final BackbufferList backbufferList) {
         final String backbufferID = (channel == null) ? "private" : channel.getName();
-        final String batchIdentifier = "backbuffer_" + backbufferID + "_" + System.currentTimeMillis();
+        // Batches only need to be unique while they are open, keeping this
+        // the same for every replay lets clients share replayed lines.
+        final String batchIdentifier = "backbuffer_" + backbufferID;
 
         // backbufferList may contain more items than this client wants to see.
-        // Trim it to size.
-        final RollingList<BackbufferMessage> backbuffer = backbufferList.clone();
+        final int limit;
         if (channel != null) {
-            backbuffer.setCapacity(user.getClientConfig().getOptionInt("server", "backbuffer"));
+            limit = user.getClientConfig().getOptionInt("server", "backbuffer");
         } else if (user.getClientConfig().hasOption("server", "privatebackbuffertimeout")) {
-            backbuffer.setCapacity(user.getClientConfig().getOptionInt("server", "privatebackbuffer"));
+            limit = user.getClientConfig().getOptionInt("server", "privatebackbuffer");
+        } else {
+            limit = Integer.MAX_VALUE;
         }
 
         boolean firstValid = true;
@@ -1757,104 +1922,92 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
         } else {
             timeout = 0;
         }
-        final long earliestTime = (timeout > 0) ? System.currentTimeMillis() - timeout : 0;
+        long earliestTime = (timeout > 0) ? System.currentTimeMillis() - timeout : 0;
+
+        // Sub-clients that use read markers only want what they haven't seen.
+        final boolean readMarkers = user.getClientID() != null && user.getClientConfig().getOptionBool("server", "readmarkers");
+        final String markerName = (channel == null) ? ReadMarkerHandler.PRIVATE : ReadMarkerHandler.getName(channel.getName());
+        // Messages can share a time, so replay from the marker's time and skip
+        // those at that time that have already been seen.
+        long markerTime = Long.MIN_VALUE;
+        int markerCount = 0;
+        if (readMarkers) {
+            markerTime = ReadMarkerHandler.getMarker(user.getClientConfig(), markerName);
+            markerCount = ReadMarkerHandler.getMarkerCount(user.getClientConfig(), markerName);
+            earliestTime = Math.max(earliestTime, markerTime);
+        }
+        if (channel != null && user.getCapabilityState("draft/read-marker") == CapabilityState.ENABLED) {
+            ReadMarkerHandler.sendMarker(user, channel.getName(), markerName);
+        }
+
+        // Replay straight from the on-disk log (or the in-memory list if that
+        // is not enabled) rather than copying it, messages that are too old
+        // are skipped by the cursor.
+        DFBnc.getBackbufferAccountant().attached(backbufferList);
+        final BackbufferHistory history = getBackbufferHistory(channel, backbufferList);
+        final BackbufferCursor backbuffer = history.replay(limit, earliestTime);
+        replayLineCache.reserve(backbuffer.size());
         final boolean forceTimestamp = (channel == null) && user.getClientConfig().getOptionBool("server", "privatebackbuffertimestamp");
 
-        final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z");
-        final SimpleDateFormat servertime = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-        servertime.setTimeZone(TimeZone.getTimeZone("UTC"));
+        // Work out what this client understands once, rather than per line.
+        final boolean channelHistory = user.getCapabilityState("dfbnc.com/channelhistory") == CapabilityState.ENABLED;
+        final boolean serverTime = !forceTimestamp && user.getCapabilityState("server-time") == CapabilityState.ENABLED;
+        final boolean tsirc = !forceTimestamp && !serverTime && user.getCapabilityState("dfbnc.com/tsirc") == CapabilityState.ENABLED;
 
-        // TODO: per-client timezones, somehow.
-        // sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+        // Tags are only built for clients that will be sent them, so that
+        // clients with and without tags don't share cached lines.
+        final boolean allowTags = user.allowTags();
 
-        for (BackbufferMessage message : backbuffer) {
-            final String line;
-            final Map<String,String> messageTags = new HashMap<>();
+        // Tags other than the time are the same for every line.
+        final StringBuilder tagPrefix = new StringBuilder();
+        if (allowTags && user.getCapabilityState("batch") == CapabilityState.ENABLED) {
+            IRCLine.appendTag(tagPrefix, "batch", batchIdentifier);
+        }
+        if (allowTags && channelHistory) {
+            IRCLine.appendTag(tagPrefix, "dfbnc.com/channelhistory", null);
+        }
+        final boolean timeTag = allowTags && serverTime;
 
-            if (message.getTime() < earliestTime) {
-                // Message is too old.
+        final ReplayLineCache.Profile profile = new ReplayLineCache.Profile(tagPrefix.toString(), timeTag, serverTime, tsirc);
+
+        long lastTime = 0;
+        int lastPosition = 0;
+        while (backbuffer.hasNext()) {
+            final BackbufferMessage message = backbuffer.next();
+            lastPosition = (message.getTime() == lastTime) ? lastPosition + 1 : 1;
+            lastTime = message.getTime();
+            if (lastTime == markerTime && lastPosition <= markerCount) {
                 continue;
             }
 
             if (firstValid) {
                 firstValid = false;
                 startBatch(user, batchIdentifier);
-                if (user.getCapabilityState("dfbnc.com/channelhistory") == CapabilityState.ENABLED) {
+                if (channelHistory) {
                     user.sendServerLine("BEGINHISTORY", backbufferID);
                 } else if (channel != null) {
                     user.sendBotChat(channel.getName(), "NOTICE", "Beginning backbuffer...");
                 }
             }
 
-            if (user.getCapabilityState("batch") == CapabilityState.ENABLED) {
-                messageTags.put("batch", batchIdentifier);
-            }
-
-            if (!forceTimestamp && user.getCapabilityState("server-time") == CapabilityState.ENABLED) {
-                messageTags.put("time", servertime.format(message.getTime()));
-                line = message.getMessage();
-            } else if (!forceTimestamp && user.getCapabilityState("dfbnc.com/tsirc") == CapabilityState.ENABLED) {
-                line = "@" + Long.toString(message.getTime()) + "@" + message.getMessage();
-            } else {
-                final String date = "    [" + sdf.format(message.getTime()) + "]";
-
-                // If it's a CTCP (like an action), insert the timestamp before
-                // the trailing 0x01
-                if (message.getMessage().endsWith("\001")) {
-                    line = message.getMessage().substring(0, message.getMessage().length() - 1) + date + "\001";
-                } else {
-                    line = message.getMessage() + date;
-                }
-            }
-
-            if (user.getCapabilityState("dfbnc.com/channelhistory") == CapabilityState.ENABLED) {
-                messageTags.put("dfbnc.com/channelhistory", null);
-            }
-
-            // FIXME: This isn't the best way to handle this.
-            //        IRCLine as a whole needs rewriting really at some point.
-            //        But for now this will do to ensure we don't accidentally
-            //        send tags to clients that don't understand them.
-            if (!user.allowTags()) { messageTags.clear(); }
-
-            // TODO: Allow clients to specify a longer length to save us needing
-            //       to wrap things.
-            final int maxLength = 510;
-
-            if (line.length() <= maxLength) {
-                user.sendLine(new IRCLine(line, messageTags));
-            } else {
-                // Line is longer than 510...
-                // We need to split it and send it in bits.
-
-                // Firstly separate the protocol bits, and the actual message
-                final int lastarg = line.indexOf(" :");
-                final String lastBit = line.substring(lastarg + 2);
-                final String startBits = line.substring(0, lastarg) + " :";
-
-                // Now work out the allowed characters per bit.
-                final int allowed = maxLength - startBits.length();
-
-                StringBuilder sendLine = new StringBuilder(startBits);
-
-                for (int i = 0; i < lastBit.length(); i += allowed) {
-                    sendLine.append(lastBit.substring(i, Math.min(i + allowed, lastBit.length())));
-                    user.sendLine(new IRCLine(sendLine.toString(), messageTags));
-                    sendLine = new StringBuilder(startBits);
-                }
-            }
+            user.sendLine(replayLineCache.getLines(history, message, profile));
         }
 
         if (firstValid) {
-            if (backbuffer.isEmpty()) {
-                if (user.getCapabilityState("dfbnc.com/channelhistory") == CapabilityState.ENABLED) {
+            if (backbuffer.size() == 0) {
+                if (channelHistory) {
                     user.sendServerLine("EMPTYHISTORY", channel.getName());
                 } else if (channel != null) {
                     user.sendBotChat(channel.getName(), "NOTICE", "This channel has no current backbuffer.");
                 }
             }
         } else {
-            if (user.getCapabilityState("dfbnc.com/channelhistory") == CapabilityState.ENABLED) {
+            // Only count the replay as read once it has been written.
+            final long time = lastTime;
+            final int position = lastPosition;
+            user.whenWritten(() -> markDelivered(user, markerName, time, position));
+
+            if (channelHistory) {
                 user.sendServerLine("ENDHISTORY", backbufferID);
             } else if (channel != null) {
                 user.sendBotChat(channel.getName(), "NOTICE", "End of backbuffer.");
@@ -1871,7 +2024,19 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
      */
     @Override
     public void userDisconnected(final UserSocket user) {
+        activeChannelList.remove(user);
+        channelRouter.invalidateAll();
+        final Map<String, long[]> delivered = deliveredTimes.remove(user);
+
         if (parserReady) {
+            if (delivered != null && !delivered.isEmpty() && user.getClientID() != null && user.getClientConfig().getOptionBool("server", "readmarkers")) {
+                // Only mark as read what this client was actually sent.
+                for (final Map.Entry<String, long[]> entry : delivered.entrySet()) {
+                    ReadMarkerHandler.setMarker(user.getClientConfig(), entry.getKey(), entry.getValue()[0], (int)entry.getValue()[1]);
+                }
+                user.getClientConfig().save();
+            }
+
             if (user.isActiveClient() && myAccount.getActiveClientSockets().isEmpty()) {
                 List<String> myList = myAccount.getAccountConfig().getOptionList("irc", "perform.lastdetach");
                 for (String line : myList) {
@@ -1890,6 +2055,22 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
         }
     }
 
+    /**
+     * Remember that a backbuffer message has been written to a socket, so
+     * that its read marker can be moved up to it when the socket disconnects.
+     *
+     * @param user Socket the message was written to
+     * @param markerName Read marker name for the message's backbuffer
+     * @param time Time of the message
+     * @param position Position of the message among those at the same time
+     */
+    private void markDelivered(final UserSocket user, final String markerName, final long time, final int position) {
+        final Map<String, long[]> delivered = deliveredTimes.get(user);
+        if (delivered != null) {
+            delivered.merge(markerName, new long[]{time, position}, (old, now) -> (now[0] > old[0] || (now[0] == old[0] && now[1] > old[1])) ? now : old);
+        }
+    }
+
     /**
      * Filter a perform line and return the line after substitutions have occurred
      *
@@ -1907,16 +2088,16 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
     public void cleanupUser(final UserSocket user, final String reason) {
         for (ChannelInfo channel : myParser.getChannels()) {
             /*
-            user.sendLine(":%s!bot@%s JOIN %s", Util.getBotName(), Util.getServerName(myAccount), channel.getName());
-            user.sendLine(":%s!bot@%s MODE %s +o %1$s", Util.getBotName(), Util.getServerName(myAccount), channel.getName());
+            user.sendLine(IRCLineBuilder.get().source(Util.getBotName(), "bot", Util.getServerName(myAccount)).command("JOIN").param(channel.getName()).build());
+            user.sendLine(IRCLineBuilder.get().source(Util.getBotName(), "bot", Util.getServerName(myAccount)).command("MODE").param(channel.getName()).param("+o").param(Util.getBotName()).build());
             user.sendBotChat(channel.getName(), "PRIVMSG", "Disconnected from server: "+reason);
             for (ChannelClientInfo cci : channel.getChannelClients()) {
-                user.sendLine(":%s!bot@%s KICK %s %s :Socket Closed: %s", Util.getBotName(), Util.getServerName(myAccount), channel.getName(), cci.getClient().getNickname(), reason);
+                user.sendLine(IRCLineBuilder.get().source(Util.getBotName(), "bot", Util.getServerName(myAccount)).command("KICK").param(channel.getName()).param(cci.getClient().getNickname()).trailing("Socket Closed: " + reason).build());
             }
-            user.sendLine(":%s!bot@%s PART %s :My work here is done...", Util.getBotName(), Util.getServerName(myAccount), channel.getName());
+            user.sendLine(IRCLineBuilder.get().source(Util.getBotName(), "bot", Util.getServerName(myAccount)).command("PART").param(channel.getName()).trailing("My work here is done...").build());
             */
 
-            user.sendLine(":%s KICK %s %s :Socket Closed: %s", myAccount.getServerName(), channel.getName(), user.getNickname(), reason);
+            user.sendLine(IRCLineBuilder.get().source(myAccount.getServerName()).command("KICK").param(channel.getName()).param(user.getNickname()).trailing("Socket Closed: " + reason).build());
         }
     }
 
@@ -1935,19 +2116,10 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
             return allowedChannel(user, channel);
         }
 
-        if (activeChannelList.containsKey(user) && !activeChannelList.get(user).isEmpty()) {
-            for (final String c : activeChannelList.get(user)) {
-                if (c.equalsIgnoreCase(channel)) {
-                    // We check if the client is allowed in a channel on JOIN
-                    // so if they are in the active list, then they are allowed.
-                    return true;
-                }
-            }
-        }
-
-       // User has not yet joined any channels, or has parted all their
-       // channels.
-       return false;
+        // We check if the client is allowed in a channel on JOIN so if they
+        // are in the active list, then they are allowed.
+        final Set<String> acl = activeChannelList.get(user);
+        return acl != null && acl.contains(myParser.getStringConverter().toLowerCase(channel));
     }
 
     /**
@@ -1958,14 +2130,12 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
      * @param channel Channel to activate.
      */
     public void activateChannel(final UserSocket user, final String channel) {
-        synchronized (activeChannelList) {
-            final Set<String> acl = (activeChannelList.containsKey(user)) ? activeChannelList.get(user) : new LinkedHashSet<>();
-            acl.add(myParser.getStringConverter().toLowerCase(channel));
-            activeChannelList.put(user, acl);
+        final String name = getStringConverter().toLowerCase(channel);
+        activeChannelList.computeIfAbsent(user, u -> ConcurrentHashMap.newKeySet()).add(name);
+        channelRouter.invalidate(name);
 
-            if (myParser.getChannel(channel) != null) {
-                sendChannelBurst(user, myParser.getChannel(channel));
-            }
+        if (myParser.getChannel(channel) != null) {
+            sendChannelBurst(user, myParser.getChannel(channel));
         }
     }
 
@@ -1979,13 +2149,16 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
      * @param channel Channel to activate.
      */
     public void deactivateChannel(final UserSocket user, final String channel) {
-        synchronized (activeChannelList) {
-            if (user == null) {
-                activeChannelList.values().stream().forEach(acl -> acl.remove(myParser.getStringConverter().toLowerCase(channel)));
-            } else if (activeChannelList.containsKey(user)) {
-                activeChannelList.get(user).remove(myParser.getStringConverter().toLowerCase(channel));
+        final String name = getStringConverter().toLowerCase(channel);
+        if (user == null) {
+            activeChannelList.values().forEach(acl -> acl.remove(name));
+        } else {
+            final Set<String> acl = activeChannelList.get(user);
+            if (acl != null) {
+                acl.remove(name);
             }
         }
+        channelRouter.invalidate(name);
     }
 
     /**
@@ -1996,26 +2169,50 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
      * @return True if this socket is allowed, else false.
      */
     public boolean allowedChannel(final UserSocket user, final String channel) {
-        // TODO: This whole method needs optimising really... Allowed channels
-        //       need caching etc.
-        if (user.getClientID() == null || !user.getClientConfig().hasOption("irc", "channelwhitelist")) {
+        if (user.getClientID() == null) {
             // By default, we are allowed to see everywhere.
             return true;
         }
 
-        final List<String> validChannelList = user.getClientConfig().getOptionList("irc", "channelwhitelist");
+        final Set<String> whitelist = getChannelWhitelist(user);
+        return whitelist.isEmpty() || whitelist.contains(myParser.getStringConverter().toLowerCase(channel));
+    }
+
+    /**
+     * Get the parser's StringConverter, forgetting anything cached by
+     * casemapped channel name if it has changed.
+     *
+     * @return The parser's StringConverter.
+     */
+    private StringConverter getStringConverter() {
+        final StringConverter converter = myParser.getStringConverter();
+        if (converter != cachedConverter) {
+            // The server has told us about a different casemapping.
+            channelWhitelists.clear();
+            channelRouter.invalidateAll();
+            cachedConverter = converter;
+        }
+        return converter;
+    }
 
-        if (validChannelList.isEmpty()) {
-            return true;
-        } else {
-            for (final String c : validChannelList) {
-                if (c.equalsIgnoreCase(channel)) {
-                    return true;
+    /**
+     * Get the casemapped channel whitelist for the given subclient, building
+     * it if it hasn't been used since it last changed.
+     *
+     * @param user UserSocket to get the whitelist for.
+     * @return Set of allowed channel names, empty if all are allowed.
+     */
+    private Set<String> getChannelWhitelist(final UserSocket user) {
+        final StringConverter converter = getStringConverter();
+        return channelWhitelists.computeIfAbsent(user.getClientID(), id -> {
+            final Set<String> whitelist = new HashSet<>();
+            if (user.getClientConfig().hasOption("irc", "channelwhitelist")) {
+                for (final String c : user.getClientConfig().getOptionList("irc", "channelwhitelist")) {
+                    whitelist.add(converter.toLowerCase(c));
                 }
             }
-        }
-
-        return false;
+            return whitelist;
+        });
     }
 
     /**
@@ -2026,28 +2223,17 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
      * @return True if this line matches a highlight for the given user.
      */
     public boolean isHighlight(final UserSocket user, final String line) {
-        // TODO: Look at how to optimise this, similar to above.
-        //       Caching of regex matchers would be useful.
-        if (user.getClientID() == null || !user.getClientConfig().hasOption("irc", "highlight")) {
+        if (user.getClientID() == null) {
             // By default, nothing highlights.
             return false;
         }
 
-        final List<String> highlightList = user.getClientConfig().getOptionList("irc", "highlight");
-
-        if (highlightList.isEmpty()) {
-            return false;
-        } else {
-            for (final String h : highlightList) {
-                try {
-                    if (line.toLowerCase().matches(".*" + h.toLowerCase() + ".*")) {
-                        return true;
-                    }
-                } catch (final Exception e) { }
+        return highlightMatchers.computeIfAbsent(user.getClientID(), id -> {
+            if (user.getClientConfig().hasOption("irc", "highlight")) {
+                return new HighlightMatcher(user.getClientConfig().getOptionList("irc", "highlight"));
             }
-        }
-
-        return false;
+            return new HighlightMatcher(Collections.emptyList());
+        }).matches(line);
     }
 
     /**
@@ -2112,6 +2298,7 @@ public class IRCConnectionHandler implements ConnectionHandler, UserSocketWatche
             for (RequeueLine line : list) {
                 line.reprocess(connectionHandler);
             }
+            connectionHandler.replayLineCache.expire(System.currentTimeMillis());
         }
     }
 
@@ -42,7 +42,6 @@ import com.dmdirc.parser.events.PrivateActionEvent;
 
 import com.dmdirc.parser.events.DataOutEvent;
 import net.engio.mbassy.listener.Handler;
-import com.dmdirc.parser.irc.IRCParser;
 import com.dmdirc.parser.interfaces.ChannelClientInfo;
 import com.dmdirc.parser.interfaces.ChannelInfo;
 import com.dmdirc.parser.interfaces.ClientInfo;
@@ -52,6 +51,9 @@ import com.dmdirc.parser.interfaces.ClientInfo;
  */
 public class IRCServerLogger extends ServerLogger {
 
+    /** IRCConnectionHandler we are logging. */
+    private final IRCConnectionHandler ircConnectionHandler;
+
     /**
      * Create a ServerLogger
      *
@@ -61,13 +63,15 @@ public class IRCServerLogger extends ServerLogger {
      */
     public IRCServerLogger(final Account account, final IRCConnectionHandler connectionHandler) throws Exception {
         super(account, connectionHandler);
+        ircConnectionHandler = connectionHandler;
     }
 
     @Handler
     public void onDataOut(final DataOutEvent event) {
-        final String[] bits = IRCParser.tokeniseLine(event.getData());
+        final ParsedLine line = ircConnectionHandler.getParsedLine(event);
+        final String[] bits = line.getTokens();
         if ((bits[0].equals("PRIVMSG") || bits[0].equals("NOTICE")) && bits.length > 2) {
-            final ChannelInfo channel = event.getParser().getChannel(bits[1]);
+            final ChannelInfo channel = line.getChannel();
 
             boolean isAction = false;
             boolean isCTCP = false;
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.servers.irc;
+
+import com.dfbnc.util.IRCLine;
+import com.dmdirc.parser.events.DataOutEvent;
+import com.dmdirc.parser.events.ParserEvent;
+import com.dmdirc.parser.interfaces.ChannelInfo;
+import com.dmdirc.parser.interfaces.Parser;
+import com.dmdirc.parser.irc.IRCParser;
+import com.dmdirc.parser.irc.events.IRCDataInEvent;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A line to or from the server, split up once so that everything looking at
+ * the same event can share the work.
+ */
+final class ParsedLine {
+
+    /** Event the line came from. */
+    private final ParserEvent event;
+
+    /** Parser the line belongs to. */
+    private final Parser parser;
+
+    /** Escaped message tags on the line, without the leading '@'. */
+    private final String rawTags;
+
+    /** Message tags on the line, once they have been asked for. */
+    private Map<String, String> tags;
+
+    /** Tokenised line, without tags. */
+    private final String[] tokens;
+
+    /** Command (or numeric) of the line. */
+    private final String command;
+
+    /** Numeric of the line, or -1 if it is not a numeric. */
+    private final int numeric;
+
+    /** First parameter that may be a channel name, or null if there isn't one. */
+    private final String target;
+
+    /** Has the channel been looked up yet? */
+    private boolean channelResolved;
+
+    /** Channel that the target names, if any. */
+    private ChannelInfo channel;
+
+    /**
+     * Create a new ParsedLine.
+     *
+     * @param event Event the line came from
+     * @param parser Parser the line belongs to
+     * @param rawTags Escaped message tags on the line, without the leading
+     *                '@', or an empty string if there are none
+     * @param tokens Tokenised line, without tags
+     * @param commandIndex Index of the command in the tokens
+     */
+    private ParsedLine(final ParserEvent event, final Parser parser, final String rawTags, final String[] tokens, final int commandIndex) {
+        this.event = event;
+        this.parser = parser;
+        this.rawTags = rawTags;
+        this.tokens = tokens;
+        this.command = tokens.length > commandIndex ? tokens[commandIndex] : "";
+        this.numeric = parseNumeric(command);
+        final int targetIndex = commandIndex + (numeric == -1 ? 1 : 2);
+        this.target = tokens.length > targetIndex ? tokens[targetIndex] : null;
+    }
+
+    /**
+     * Parse a line received from the server.
+     *
+     * @param event Event for the line
+     * @return The parsed line.
+     */
+    static ParsedLine fromServer(final IRCDataInEvent event) {
+        return new ParsedLine(event, event.getParser(), getRawTags(event.getData()), event.getTokenisedData(), 1);
+    }
+
+    /**
+     * Parse a line sent to the server.
+     *
+     * @param event Event for the line
+     * @return The parsed line.
+     */
+    static ParsedLine toServer(final DataOutEvent event) {
+        final String data = event.getData();
+        final String line = (data.startsWith("@") && data.indexOf(' ') != -1) ? data.substring(data.indexOf(' ') + 1) : data;
+        return new ParsedLine(event, event.getParser(), getRawTags(data), IRCParser.tokeniseLine(line), 0);
+    }
+
+    /**
+     * Parse a numeric, without throwing for lines that aren't one.
+     *
+     * @param command Command to parse
+     * @return The numeric, or -1 if the command isn't three digits.
+     */
+    static int parseNumeric(final String command) {
+        if (command.length() != 3) {
+            return -1;
+        }
+        int result = 0;
+        for (int i = 0; i < 3; i++) {
+            final char c = command.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    /**
+     * Get the message tags at the start of a line, without unescaping them.
+     *
+     * @param data Line to get the tags from
+     * @return Escaped tags without the leading '@', or an empty string if
+     *         there are none.
+     */
+    static String getRawTags(final String data) {
+        if (!data.startsWith("@")) {
+            return "";
+        }
+        final int end = data.indexOf(' ');
+        return data.substring(1, end == -1 ? data.length() : end);
+    }
+
+    /**
+     * Split up and unescape message tags.
+     *
+     * @param rawTags Escaped tags, without the leading '@'
+     * @return Map of tag names to unescaped values, empty if there are none.
+     */
+    static Map<String, String> parseTags(final String rawTags) {
+        if (rawTags.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, String> result = new HashMap<>();
+        for (final String tag : rawTags.split(";")) {
+            if (tag.isEmpty()) {
+                continue;
+            }
+            final int equals = tag.indexOf('=');
+            if (equals == -1) {
+                result.put(tag, "");
+            } else {
+                result.put(tag.substring(0, equals), IRCLine.unescapeTag(tag.substring(equals + 1)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the event this line came from.
+     *
+     * @return Event for the line.
+     */
+    ParserEvent getEvent() {
+        return event;
+    }
+
+    /**
+     * Get the message tags on the line. Most lines never need their tags, so
+     * they are only split up the first time this is called.
+     *
+     * @return Map of tag names to unescaped values.
+     */
+    Map<String, String> getTags() {
+        if (tags == null) {
+            tags = parseTags(rawTags);
+        }
+        return tags;
+    }
+
+    /**
+     * Get the tokenised line, without tags.
+     *
+     * @return Tokenised line.
+     */
+    String[] getTokens() {
+        return tokens;
+    }
+
+    /**
+     * Get the command of the line.
+     *
+     * @return Command (or numeric) of the line.
+     */
+    String getCommand() {
+        return command;
+    }
+
+    /**
+     * Is this line a numeric?
+     *
+     * @return True if this line is a numeric.
+     */
+    boolean isNumeric() {
+        return numeric != -1;
+    }
+
+    /**
+     * Get the numeric of the line.
+     *
+     * @return Numeric of the line, or -1 if it is not a numeric.
+     */
+    int getNumeric() {
+        return numeric;
+    }
+
+    /**
+     * Get the first parameter that may be a channel name. For numerics this
+     * skips the nickname the numeric was sent to.
+     *
+     * @return The parameter, or null if there isn't one.
+     */
+    String getTarget() {
+        return target;
+    }
+
+    /**
+     * Get the channel that the target names.
+     *
+     * @return The channel, or null if the target isn't a channel we are in.
+     */
+    ChannelInfo getChannel() {
+        if (!channelResolved) {
+            channel = (target == null) ? null : parser.getChannel(target);
+            channelResolved = true;
+        }
+        return channel;
+    }
+}
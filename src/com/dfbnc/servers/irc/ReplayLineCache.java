@@ -0,0 +1,468 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.servers.irc;
+
+import com.dfbnc.util.BackbufferHistory;
+import com.dfbnc.util.BackbufferMessage;
+import com.dfbnc.util.IRCLine;
+import com.dfbnc.util.ServerTime;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Turns replayed backbuffer messages into the lines sent to a client.
+ *
+ * Recently built lines are remembered, so when several clients with the same
+ * capabilities attach at once (eg, after a network blip) each message is only
+ * built once and the same lines (and their encoded form) are sent to all of
+ * them.
+ *
+ * Lines are only remembered for the current wave of attaches. Each replay
+ * makes room for the messages it is about to send, up to a limit on the
+ * memory used, and once nothing has been replayed for a while everything is
+ * forgotten.
+ *
+ * Clients asking for a message that another client is already building lines
+ * for wait for those lines rather than building their own.
+ */
+class ReplayLineCache {
+
+    /** Number of messages to make room for even if less is replayed. */
+    private static final int MIN_ENTRIES = 2048;
+
+    /** Maximum number of messages to remember, however much is replayed. */
+    private static final int MAX_ENTRIES = 131072;
+
+    /** Default maximum amount of memory to use for remembered lines. */
+    private static final long MAX_BYTES = 16 * 1024 * 1024;
+
+    /** Approximate memory used by each remembered message besides its lines. */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /** Approximate memory used by each remembered line besides its text. */
+    private static final int LINE_OVERHEAD = 48;
+
+    /** How long after the last replay to forget everything, in milliseconds. */
+    static final long WAVE_TIMEOUT = 10000;
+
+    /**
+     * Format used for timestamps added to replayed lines.
+     *
+     * TODO: per-client timezones, somehow.
+     */
+    private static final DateTimeFormatter LOCAL_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss z").withZone(ZoneId.systemDefault());
+
+    /**
+     * Maximum length of a line, longer messages are split.
+     *
+     * TODO: Allow clients to specify a longer length to save us needing to
+     *       wrap things.
+     */
+    private static final int MAX_LENGTH = 510;
+
+    /** Recently built lines, least recently used first. */
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Maximum amount of memory to use for remembered lines. */
+    private final long maxBytes;
+
+    /** Number of messages to remember in this wave. Guarded by entries. */
+    private int limit = MIN_ENTRIES;
+
+    /** Approximate memory used by remembered lines. Guarded by entries. */
+    private long bytes;
+
+    /** Number of messages replays in this wave have made room for. Guarded by entries. */
+    private long reserved;
+
+    /** Time of the last replay. Guarded by entries. */
+    private long lastUsed;
+
+    /**
+     * Create a new ReplayLineCache that uses at most {@link #MAX_BYTES}.
+     */
+    ReplayLineCache() {
+        this(MAX_BYTES);
+    }
+
+    /**
+     * Create a new ReplayLineCache.
+     *
+     * @param maxBytes Maximum amount of memory to use for remembered lines
+     */
+    ReplayLineCache(final long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Make room for messages that are about to be replayed.
+     *
+     * @param count Number of messages about to be replayed
+     */
+    void reserve(final int count) {
+        synchronized (entries) {
+            reserved += count;
+            limit = (int) Math.max(limit, Math.min(MAX_ENTRIES, reserved));
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Forget everything if nothing has been replayed in the
+     * {@link #WAVE_TIMEOUT} before the given time.
+     *
+     * @param now Current time
+     */
+    void expire(final long now) {
+        synchronized (entries) {
+            if (now - lastUsed > WAVE_TIMEOUT) {
+                clear();
+            }
+        }
+    }
+
+    /**
+     * Get the number of messages that lines are remembered for.
+     *
+     * @return Number of messages remembered.
+     */
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Get the approximate amount of memory used by remembered lines.
+     *
+     * @return Memory used in bytes.
+     */
+    long getMemoryUsage() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    /**
+     * Get the lines to send for the given message.
+     *
+     * @param history History the message was replayed from
+     * @param message Message being replayed
+     * @param profile How the client wants lines built
+     * @return Lines to send
+     */
+    IRCLine[] getLines(final BackbufferHistory history, final BackbufferMessage message, final Profile profile) {
+        if (message.getSequence() < 0) {
+            return profile.build(message);
+        }
+
+        final Key key = new Key(history.getEpoch(), message.getSequence(), profile);
+        final Entry entry;
+        final boolean building;
+        synchronized (entries) {
+            lastUsed = System.currentTimeMillis();
+            final Entry existing = entries.get(key);
+            building = existing == null || existing.time != message.getTime();
+            if (building) {
+                entry = new Entry(message.getTime());
+                remove(entries.put(key, entry));
+                evict();
+            } else {
+                entry = existing;
+            }
+        }
+
+        if (!building) {
+            try {
+                return entry.lines.join();
+            } catch (CompletionException ex) {
+                // Whoever was building them failed, so try ourselves.
+                return profile.build(message);
+            }
+        }
+
+        final IRCLine[] lines;
+        try {
+            lines = profile.build(message);
+        } catch (Throwable ex) {
+            // Anyone waiting for these lines must never be left waiting,
+            // whatever went wrong.
+            synchronized (entries) {
+                entries.remove(key, entry);
+            }
+            entry.lines.completeExceptionally(ex);
+            throw ex;
+        }
+
+        synchronized (entries) {
+            // Only count the lines if they haven't been forgotten already.
+            if (entries.get(key) == entry) {
+                entry.size = getSize(lines);
+                bytes += entry.size;
+                evict();
+            }
+        }
+        entry.lines.complete(lines);
+        return lines;
+    }
+
+    /**
+     * Forget all remembered lines.
+     */
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+            limit = MIN_ENTRIES;
+            reserved = 0;
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Forget the least recently used lines until within both the number of
+     * messages and the memory limit. The lock on entries must be held.
+     */
+    private void evict() {
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext() && (entries.size() > limit || bytes > maxBytes)) {
+            remove(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Stop counting the memory used by an entry that is being forgotten. The
+     * lock on entries must be held.
+     *
+     * @param entry Entry being forgotten, may be null
+     */
+    private void remove(final Entry entry) {
+        if (entry != null) {
+            bytes -= entry.size;
+        }
+    }
+
+    /**
+     * Get the approximate amount of memory used to remember the given lines.
+     * Each line holds its tags and body, and later its encoded form too.
+     *
+     * @param lines Lines to get the size of
+     * @return Approximate memory used in bytes
+     */
+    private static int getSize(final IRCLine[] lines) {
+        int size = ENTRY_OVERHEAD;
+        for (final IRCLine line : lines) {
+            size += LINE_OVERHEAD + (line.getEncodedTags().length() + line.getBody().length()) * 4;
+        }
+        return size;
+    }
+
+    /**
+     * Describes how a client wants replayed lines built. Profiles with the
+     * same settings are equal, and share cached lines.
+     *
+     * Each profile has its own working buffers, so a profile must only be
+     * used by one thread at a time.
+     */
+    static final class Profile {
+
+        /** Escaped tags sent with every line, without the leading '@'. */
+        private final String tagPrefix;
+
+        /** Should the time be sent as a tag? */
+        private final boolean timeTag;
+
+        /** Does the client use server-time rather than in-line timestamps? */
+        private final boolean serverTime;
+
+        /** Does the client use dfbnc.com/tsirc rather than in-line timestamps? */
+        private final boolean tsirc;
+
+        /** Buffer used to build the message part of a line. */
+        private final StringBuilder line = new StringBuilder(MAX_LENGTH);
+
+        /** Buffer used to build the tags sent. */
+        private final StringBuilder tags = new StringBuilder(100);
+
+        /**
+         * Create a new Profile.
+         *
+         * @param tagPrefix Escaped tags sent with every line, without the
+         *                  leading '@', or an empty string if there are none
+         * @param timeTag Should the time be sent as a tag?
+         * @param serverTime Does the client use server-time?
+         * @param tsirc Does the client use dfbnc.com/tsirc?
+         */
+        Profile(final String tagPrefix, final boolean timeTag, final boolean serverTime, final boolean tsirc) {
+            this.tagPrefix = tagPrefix;
+            this.timeTag = timeTag;
+            this.serverTime = serverTime;
+            this.tsirc = tsirc;
+        }
+
+        /**
+         * Build the lines to send for the given message.
+         *
+         * @param message Message to build lines for
+         * @return Lines to send
+         */
+        IRCLine[] build(final BackbufferMessage message) {
+            tags.setLength(0);
+            tags.append(tagPrefix);
+            if (timeTag) {
+                // The time never needs escaping.
+                if (tags.length() > 0) { tags.append(';'); }
+                ServerTime.appendTo(tags.append("time="), message.getTime());
+            }
+            final String encodedTags = tags.toString();
+
+            line.setLength(0);
+            if (serverTime) {
+                line.append(message.getMessage());
+            } else if (tsirc) {
+                line.append('@').append(message.getTime()).append('@').append(message.getMessage());
+            } else {
+                final String date = "    [" + LOCAL_TIME_FORMAT.format(Instant.ofEpochMilli(message.getTime())) + "]";
+
+                // If it's a CTCP (like an action), insert the timestamp before
+                // the trailing 0x01
+                if (message.getMessage().endsWith("\001")) {
+                    line.append(message.getMessage(), 0, message.getMessage().length() - 1).append(date).append('\001');
+                } else {
+                    line.append(message.getMessage()).append(date);
+                }
+            }
+
+            final int lastarg = line.indexOf(" :");
+            if (line.length() <= MAX_LENGTH || lastarg < 0) {
+                return new IRCLine[]{IRCLine.fromEncoded(encodedTags, line.toString())};
+            }
+
+            // Line is longer than 510...
+            // We need to split it and send it in bits, each with the protocol
+            // bits from the start of the line.
+            final int startLength = lastarg + 2;
+
+            // Now work out the allowed characters per bit.
+            final int allowed = MAX_LENGTH - startLength;
+
+            final IRCLine[] result = new IRCLine[(line.length() - startLength + allowed - 1) / allowed];
+            final StringBuilder part = new StringBuilder(MAX_LENGTH);
+            for (int i = 0; i < result.length; i++) {
+                final int start = startLength + i * allowed;
+                part.setLength(0);
+                part.append(line, 0, startLength).append(line, start, Math.min(start + allowed, line.length()));
+                result[i] = IRCLine.fromEncoded(encodedTags, part.toString());
+            }
+            return result;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Profile)) {
+                return false;
+            }
+            final Profile other = (Profile) obj;
+            return timeTag == other.timeTag && serverTime == other.serverTime && tsirc == other.tsirc && tagPrefix.equals(other.tagPrefix);
+        }
+
+        @Override
+        public int hashCode() {
+            return tagPrefix.hashCode() * 8 + (timeTag ? 4 : 0) + (serverTime ? 2 : 0) + (tsirc ? 1 : 0);
+        }
+    }
+
+    /**
+     * Identifies a message replayed with a given profile. The history is
+     * identified by its epoch, so that remembered lines don't keep it alive.
+     */
+    private static final class Key {
+
+        /** Epoch of the history the message came from. */
+        private final String epoch;
+
+        /** Sequence number of the message. */
+        private final long sequence;
+
+        /** Profile used to build the lines. */
+        private final Profile profile;
+
+        /**
+         * Create a new Key.
+         *
+         * @param epoch Epoch of the history the message came from
+         * @param sequence Sequence number of the message
+         * @param profile Profile used to build the lines
+         */
+        Key(final String epoch, final long sequence, final Profile profile) {
+            this.epoch = epoch;
+            this.sequence = sequence;
+            this.profile = profile;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return sequence == other.sequence && epoch.equals(other.epoch) && profile.equals(other.profile);
+        }
+
+        @Override
+        public int hashCode() {
+            return (epoch.hashCode() * 31 + Long.hashCode(sequence)) * 31 + profile.hashCode();
+        }
+    }
+
+    /**
+     * Lines built, or being built, for a message.
+     */
+    private static final class Entry {
+
+        /** Time of the message, as a sanity check. */
+        private final long time;
+
+        /** Lines to send, once built. */
+        private final CompletableFuture<IRCLine[]> lines = new CompletableFuture<>();
+
+        /** Approximate memory used by the lines, 0 until built. Guarded by entries. */
+        private int size;
+
+        /**
+         * Create a new Entry.
+         *
+         * @param time Time of the message
+         */
+        Entry(final long time) {
+            this.time = time;
+        }
+    }
+}
@@ -27,6 +27,9 @@ import com.dfbnc.commands.ListOption;
 import com.dfbnc.config.Config;
 import com.dfbnc.sockets.UserSocket;
 
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
 /**
  * This file represents the 'Highlight' command
  */
@@ -43,6 +46,11 @@ public class HighlightCommand extends AbstractListEditCommand {
 
     @Override
     public ListOption checkItem(final String command, final String input, final UserSocket user) {
+        try {
+            Pattern.compile(input);
+        } catch (final PatternSyntaxException pse) {
+            return new ListOption(false, input, new String[]{"Invalid regex: " + pse.getDescription()});
+        }
         return new ListOption(true, input, null);
     }
 
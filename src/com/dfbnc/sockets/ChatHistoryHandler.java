@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.sockets;
+
+import com.dmdirc.parser.interfaces.ChannelInfo;
+import com.dmdirc.parser.irc.CapabilityState;
+
+import com.dfbnc.ConnectionHandler;
+import com.dfbnc.util.BackbufferCursor;
+import com.dfbnc.util.BackbufferHistory;
+import com.dfbnc.util.BackbufferMessage;
+import com.dfbnc.util.IRCLine;
+import com.dfbnc.util.ServerTime;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Handles IRCv3 CHATHISTORY requests from a client, answering them from the
+ * account's backbuffer.
+ *
+ * Message IDs are made from the backbuffer's epoch and the message's sequence
+ * number, so they don't change and are never reused for another message.
+ * (See: https://ircv3.net/specs/extensions/chathistory)
+ */
+public class ChatHistoryHandler {
+
+    /** Maximum number of messages returned for a single request. */
+    public static final int MAX_LIMIT = 100;
+
+    /** Socket that sent the request. */
+    private final UserSocket socket;
+
+    /**
+     * Create a new ChatHistoryHandler.
+     *
+     * @param socket Socket that sent the request
+     */
+    public ChatHistoryHandler(final UserSocket socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * Handle a CHATHISTORY request.
+     *
+     * @param line Tokenised request
+     */
+    public void handle(final String[] line) {
+        if (socket.getAccount() == null) {
+            fail("ACCOUNT_REQUIRED", "", "You must login first");
+            return;
+        }
+        if (line.length < 2) {
+            fail("NEED_MORE_PARAMS", "", "Missing parameters");
+            return;
+        }
+
+        final String subCommand = line[1].toUpperCase();
+        final int needed;
+        switch (subCommand) {
+            case "LATEST":
+            case "BEFORE":
+            case "AFTER":
+            case "AROUND":
+                needed = 5;
+                break;
+            case "BETWEEN":
+                needed = 6;
+                break;
+            default:
+                fail("INVALID_PARAMS", subCommand, "Unknown subcommand");
+                return;
+        }
+        if (line.length < needed) {
+            fail("NEED_MORE_PARAMS", subCommand, "Missing parameters");
+            return;
+        }
+
+        final String target = line[2];
+        final ConnectionHandler handler = socket.getAccount().getConnectionHandler();
+        final BackbufferHistory history = (handler == null || !handler.activeAllowedChannel(socket, target)) ? null : handler.getBackbufferHistory(target);
+        if (history == null) {
+            fail("INVALID_TARGET", subCommand + " " + target, "Messages could not be retrieved");
+            return;
+        }
+
+        final int limit;
+        try {
+            limit = Math.min(MAX_LIMIT, Integer.parseInt(line[needed - 1]));
+        } catch (final NumberFormatException nfe) {
+            fail("INVALID_PARAMS", subCommand, "Invalid limit");
+            return;
+        }
+
+        final long start;
+        final long end;
+        try {
+            switch (subCommand) {
+                case "LATEST":
+                    end = history.getNextSequence();
+                    start = Math.max(end - limit, line[3].equals("*") ? end - limit : getAfter(history, line[3]));
+                    break;
+                case "BEFORE":
+                    end = getBefore(history, line[3]);
+                    start = end - limit;
+                    break;
+                case "AFTER":
+                    start = getAfter(history, line[3]);
+                    end = start + limit;
+                    break;
+                case "AROUND":
+                    start = Math.max(history.getFirstSequence(), getBefore(history, line[3]) - limit / 2);
+                    end = start + limit;
+                    break;
+                default:
+                    // BETWEEN, which can be asked for in either direction.
+                    if (getBefore(history, line[3]) <= getBefore(history, line[4])) {
+                        start = getAfter(history, line[3]);
+                        end = Math.min(getBefore(history, line[4]), start + limit);
+                    } else {
+                        end = getBefore(history, line[3]);
+                        start = Math.max(getAfter(history, line[4]), end - limit);
+                    }
+                    break;
+            }
+        } catch (final IllegalArgumentException iae) {
+            fail("INVALID_PARAMS", subCommand, iae.getMessage());
+            return;
+        }
+
+        send(target, history, history.range(start, Math.max(start, end)));
+    }
+
+    /**
+     * Send the client every channel message since the given time, for the
+     * channels it can see. Used when lines had to be dropped because the
+     * client couldn't keep up.
+     *
+     * @param since Time to send messages since
+     */
+    public void catchUp(final long since) {
+        final ConnectionHandler handler = socket.getAccount() == null ? null : socket.getAccount().getConnectionHandler();
+        if (handler == null || handler.getParser() == null) {
+            return;
+        }
+
+        for (final ChannelInfo channel : handler.getParser().getChannels()) {
+            final BackbufferHistory history = handler.activeAllowedChannel(socket, channel.getName()) ? handler.getBackbufferHistory(channel.getName()) : null;
+            if (history != null) {
+                final long end = history.getNextSequence();
+                send(channel.getName(), history, history.range(Math.max(history.findSequence(since), end - MAX_LIMIT), end));
+            }
+        }
+    }
+
+    /**
+     * Send the given messages to the client.
+     *
+     * @param target Target the messages are for
+     * @param history History the messages are from
+     * @param cursor Messages to send
+     */
+    private void send(final String target, final BackbufferHistory history, final BackbufferCursor cursor) {
+        final boolean batch = socket.getCapabilityState("batch") == CapabilityState.ENABLED;
+        final String batchIdentifier = "chathistory" + System.currentTimeMillis();
+        if (batch) {
+            socket.sendLine(":" + socket.getServerName() + " BATCH +" + batchIdentifier + " chathistory " + target);
+        }
+
+        while (cursor.hasNext()) {
+            final BackbufferMessage message = cursor.next();
+            // Tags are stripped by the socket if it doesn't support them.
+            final StringBuilder tags = new StringBuilder();
+            if (batch) {
+                IRCLine.appendTag(tags, "batch", batchIdentifier);
+            }
+            IRCLine.appendTag(tags, "time", ServerTime.format(message.getTime()));
+            IRCLine.appendTag(tags, "msgid", getMsgid(history, message.getSequence()));
+            socket.sendLine(IRCLine.fromEncoded(tags.toString(), message.getMessage()));
+        }
+
+        if (batch) {
+            socket.sendLine(":" + socket.getServerName() + " BATCH -" + batchIdentifier);
+        }
+    }
+
+    /**
+     * Get the first sequence number after the given message reference.
+     *
+     * @param history History to search
+     * @param reference Message reference, either timestamp=... or msgid=...
+     * @return First sequence number after the referenced message
+     */
+    private static long getAfter(final BackbufferHistory history, final String reference) {
+        if (reference.startsWith("msgid=")) {
+            return parseMsgid(history, reference) + 1;
+        }
+        return history.findSequence(parseTimestamp(reference) + 1);
+    }
+
+    /**
+     * Get the sequence number of the given message reference, any messages
+     * before this come before the referenced message.
+     *
+     * @param history History to search
+     * @param reference Message reference, either timestamp=... or msgid=...
+     * @return Sequence number of the referenced message
+     */
+    private static long getBefore(final BackbufferHistory history, final String reference) {
+        if (reference.startsWith("msgid=")) {
+            return parseMsgid(history, reference);
+        }
+        return history.findSequence(parseTimestamp(reference));
+    }
+
+    /**
+     * Get the message ID for a message.
+     *
+     * @param history History the message is from
+     * @param sequence Sequence number of the message
+     * @return Message ID
+     */
+    static String getMsgid(final BackbufferHistory history, final long sequence) {
+        return history.getEpoch() + "-" + sequence;
+    }
+
+    /**
+     * Parse a msgid= message reference.
+     *
+     * @param history History the message should be in
+     * @param reference Reference to parse
+     * @return Sequence number of the referenced message
+     * @throws IllegalArgumentException If the message ID is not for a message
+     *                                  in the history.
+     */
+    private static long parseMsgid(final BackbufferHistory history, final String reference) {
+        final String msgid = reference.substring(6);
+        final int split = msgid.lastIndexOf('-');
+        if (split < 0 || !msgid.substring(0, split).equals(history.getEpoch())) {
+            throw new IllegalArgumentException("Unknown msgid");
+        }
+        final long sequence;
+        try {
+            sequence = Long.parseLong(msgid.substring(split + 1));
+        } catch (final NumberFormatException nfe) {
+            throw new IllegalArgumentException("Unknown msgid");
+        }
+        if (sequence < history.getFirstSequence() || sequence >= history.getNextSequence()) {
+            throw new IllegalArgumentException("Unknown msgid");
+        }
+        return sequence;
+    }
+
+    /**
+     * Parse a timestamp= message reference.
+     *
+     * @param reference Reference to parse
+     * @return Time referenced
+     */
+    private static long parseTimestamp(final String reference) {
+        if (!reference.startsWith("timestamp=")) {
+            throw new IllegalArgumentException("Invalid message reference");
+        }
+        try {
+            return Instant.parse(reference.substring(10)).toEpochMilli();
+        } catch (final DateTimeParseException dtpe) {
+            throw new IllegalArgumentException("Invalid timestamp");
+        }
+    }
+
+    /**
+     * Tell the client that their request failed.
+     *
+     * @param code Failure code
+     * @param context Context for the failure
+     * @param description Description of the failure
+     */
+    private void fail(final String code, final String context, final String description) {
+        socket.sendLine(":" + socket.getServerName() + " FAIL CHATHISTORY " + code + (context.isEmpty() ? "" : " " + context) + " :" + description);
+    }
+}
@@ -0,0 +1,702 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.sockets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Queue of lines waiting to be written to a socket.
+ *
+ * Lines are written in order by a single task at a time on the given
+ * executor, so whoever sends a line never waits for a slow client. Lines
+ * that are waiting together are joined with CRLF and handed to the writer in
+ * one go, so a burst of lines goes out in as few writes (and TLS records) as
+ * possible.
+ *
+ * The queue is measured in bytes. Once more than the high watermark is
+ * waiting, the overflow policy decides what happens until it is back below
+ * the low watermark. Lines queued together as a batch (eg, the burst sent
+ * when a client attaches, or a backbuffer replay) count towards the
+ * watermarks like any other line, but the policy is applied to the batch as
+ * a whole: a batch is queued or dropped in one piece, and is never dropped
+ * once the writer has started on it. Batches are sent by the BNC itself
+ * rather than because of a slow client, so the policy only applies to a
+ * batch if the queue is already over the high watermark before it is added,
+ * however big the batch is.
+ *
+ * Lines can be given an action to run once they have been written, which is
+ * not run if the line is dropped.
+ */
+public class OutboundQueue {
+
+    /** Maximum number of characters to join into a single write. */
+    private static final int MAX_WRITE = 16 * 1024;
+
+    /**
+     * With the CATCHUP policy, lines that can't be replayed are still queued
+     * until the queue is this many times the high watermark.
+     */
+    private static final int CATCHUP_HARD_LIMIT = 4;
+
+    /**
+     * What to do when the queue is too long.
+     */
+    public enum OverflowPolicy {
+        /** Drop the oldest lines, down to the low watermark. */
+        DROPOLDEST,
+        /** Disconnect the client. */
+        DISCONNECT,
+        /** Drop new lines that can be replayed, then replay them from the backbuffer. */
+        CATCHUP;
+
+        /**
+         * Get the policy with the given name.
+         *
+         * @param name Name of the policy
+         * @return The policy, or CATCHUP if the name is unknown.
+         */
+        static OverflowPolicy fromName(final String name) {
+            try {
+                return valueOf(name.toUpperCase(Locale.ROOT));
+            } catch (final IllegalArgumentException iae) {
+                return CATCHUP;
+            }
+        }
+    }
+
+    /**
+     * Told about the queue overflowing.
+     */
+    interface Listener {
+
+        /**
+         * Called when the queue overflows and the policy is DISCONNECT, or
+         * the hard limit is reached with the CATCHUP policy.
+         */
+        void queueOverflowed();
+
+        /**
+         * Called from the writer when the queue is back below the low
+         * watermark after dropping lines with the CATCHUP policy.
+         *
+         * @param since Time that lines were first dropped
+         * @param dropped Number of lines that were dropped
+         */
+        void queueCaughtUp(long since, long dropped);
+    }
+
+    /** Lines waiting to be written. */
+    private final Queue<Entry> lines = new ConcurrentLinkedQueue<>();
+
+    /** Number of lines waiting to be written. */
+    private final AtomicInteger depth = new AtomicInteger();
+
+    /** Number of bytes waiting to be written. */
+    private final AtomicLong size = new AtomicLong();
+
+    /** Is a writer task running or scheduled? */
+    private final AtomicBoolean writing = new AtomicBoolean();
+
+    /** Are new lines that can be replayed being dropped until we catch up? */
+    private final AtomicBoolean catchingUp = new AtomicBoolean();
+
+    /** Total number of lines dropped. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** Number of lines dropped since we started catching up. */
+    private final AtomicLong catchUpDropped = new AtomicLong();
+
+    /** Run by the writer once everything has been written, when closing. */
+    private final AtomicReference<Runnable> closeAction = new AtomicReference<>();
+
+    /** Executor to run writer tasks on. */
+    private final Executor executor;
+
+    /** Writes one or more CRLF separated lines to the socket. */
+    private final Consumer<String> writer;
+
+    /** Listener to tell about overflows. */
+    private final Listener listener;
+
+    /** Bytes waiting that trigger the overflow policy, or 0 for no limit. */
+    private volatile long highWatermark;
+
+    /** Bytes waiting to get back down to after overflowing. */
+    private volatile long lowWatermark;
+
+    /** What to do when the queue overflows. */
+    private volatile OverflowPolicy policy = OverflowPolicy.CATCHUP;
+
+    /** Time that lines were first dropped while catching up. */
+    private volatile long catchUpSince;
+
+    /** Has the socket been closed, or is it closing? */
+    private volatile boolean closed;
+
+    /** Has the socket been closed, so nothing more should be written? */
+    private volatile boolean discarding;
+
+    /**
+     * Create a new OutboundQueue.
+     *
+     * @param executor Executor to run writer tasks on
+     * @param writer Writes one or more CRLF separated lines to the socket
+     * @param listener Listener to tell about overflows
+     */
+    OutboundQueue(final Executor executor, final Consumer<String> writer, final Listener listener) {
+        this.executor = executor;
+        this.writer = writer;
+        this.listener = listener;
+    }
+
+    /**
+     * Change the limits of this queue.
+     *
+     * @param high Bytes waiting that trigger the overflow policy, or 0 for no
+     *             limit
+     * @param low Bytes waiting to get back down to after overflowing
+     * @param policy What to do when the queue overflows
+     */
+    void setLimits(final long high, final long low, final OverflowPolicy policy) {
+        this.highWatermark = Math.max(0, high);
+        this.lowWatermark = Math.max(0, Math.min(low, high));
+        this.policy = policy;
+    }
+
+    /**
+     * Add a line to be written.
+     *
+     * @param line Line to write
+     * @return True if the line was queued, false if it was dropped.
+     */
+    boolean add(final String line) {
+        return add(line, false);
+    }
+
+    /**
+     * Add a line to be written.
+     *
+     * @param line Line to write
+     * @param replayable Can the line be replayed from the backbuffer, so may
+     *                   be dropped with the CATCHUP policy?
+     * @return True if the line was queued, false if it was dropped.
+     */
+    boolean add(final String line, final boolean replayable) {
+        return add(line, replayable, null);
+    }
+
+    /**
+     * Add a line to be written.
+     *
+     * @param line Line to write
+     * @param replayable Can the line be replayed from the backbuffer, so may
+     *                   be dropped with the CATCHUP policy?
+     * @param written Run by the writer once the line has been written, or
+     *                null. Not run if the line is dropped.
+     * @return True if the line was queued, false if it was dropped.
+     */
+    boolean add(final String line, final boolean replayable, final Runnable written) {
+        if (closed) {
+            return false;
+        }
+        if (replayable && catchingUp.get()) {
+            drop(1);
+            return false;
+        }
+        final Entry entry = new Entry(line, null, written);
+        if (isOverLimit(entry.size) && !applyPolicy(replayable, entry.size)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        queue(entry);
+        startWriting();
+        return true;
+    }
+
+    /**
+     * Run an action from the writer once everything queued before it has
+     * been written.
+     *
+     * @param action Action to run
+     */
+    void whenWritten(final Runnable action) {
+        if (!closed) {
+            queue(new Entry(null, null, action));
+            startWriting();
+        }
+    }
+
+    /**
+     * Add a batch of lines to be written, one after the other.
+     *
+     * The overflow policy is applied once for the whole batch, which is
+     * either queued or dropped in one piece.
+     *
+     * @param newLines Lines to write
+     * @return True if the batch was queued, false if it was dropped.
+     */
+    boolean addAll(final Iterable<String> newLines) {
+        final Batch batch = new Batch();
+        for (final String line : newLines) {
+            batch.add(line);
+        }
+        return addAll(batch);
+    }
+
+    /**
+     * Add a batch of lines to be written, one after the other.
+     *
+     * The overflow policy is applied once for the whole batch, which is
+     * either queued or dropped in one piece. The policy only applies if the
+     * queue is already over the high watermark, so a large batch on its own
+     * never overflows the queue.
+     *
+     * @param batch Batch to write
+     * @return True if the batch was queued, false if it was dropped.
+     */
+    boolean addAll(final Batch batch) {
+        if (closed || batch.entries.isEmpty()) {
+            return false;
+        }
+        if (isOverLimit(0) && !applyPolicy(false, 0)) {
+            dropped.addAndGet(batch.lines);
+            return false;
+        }
+        batch.entries.forEach(this::queue);
+        startWriting();
+        return true;
+    }
+
+    /**
+     * Check if adding more to the queue would take it over the high
+     * watermark.
+     *
+     * @param adding Number of bytes being added
+     * @return True if the overflow policy applies.
+     */
+    private boolean isOverLimit(final long adding) {
+        final long high = highWatermark;
+        return high > 0 && size.get() + adding > high;
+    }
+
+    /**
+     * Wait for the queue to get back down to the low watermark, so that a
+     * burst of batches can be queued a bit at a time rather than all
+     * overflowing the queue at once. This must not be called by anything
+     * that can't wait, such as the thread that parses lines from the server.
+     *
+     * @param timeout Longest time to wait, in milliseconds
+     * @return True if the queue is at or below the low watermark.
+     */
+    boolean awaitLowWatermark(final long timeout) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (highWatermark > 0 && size.get() > lowWatermark) {
+            if (closed || System.nanoTime() >= deadline) {
+                return false;
+            }
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        return !closed;
+    }
+
+    /**
+     * Apply the overflow policy.
+     *
+     * @param replayable Can the line being added be replayed?
+     * @param adding Number of bytes being added
+     * @return True if the line (or batch) being added should still be queued.
+     */
+    private boolean applyPolicy(final boolean replayable, final long adding) {
+        switch (policy) {
+            case DROPOLDEST:
+                dropOldest();
+                return true;
+            case CATCHUP:
+                if (replayable) {
+                    if (catchingUp.compareAndSet(false, true)) {
+                        catchUpSince = System.currentTimeMillis();
+                        catchUpDropped.set(0);
+                    }
+                    catchUpDropped.incrementAndGet();
+                    return false;
+                }
+                if (size.get() + adding <= highWatermark * CATCHUP_HARD_LIMIT) {
+                    return true;
+                }
+                break;
+            default:
+                break;
+        }
+        listener.queueOverflowed();
+        return false;
+    }
+
+    /**
+     * Drop the oldest lines, and batches that the writer has not started on,
+     * until the low watermark is reached.
+     */
+    private void dropOldest() {
+        for (final Entry entry : lines) {
+            if (size.get() <= lowWatermark) {
+                break;
+            }
+            if (entry.batch != null) {
+                if (entry.batch.drop()) {
+                    for (final Entry batchEntry : entry.batch.entries) {
+                        if (batchEntry.take()) {
+                            release(batchEntry);
+                        }
+                    }
+                    dropped.addAndGet(entry.batch.lines);
+                }
+            } else if (entry.line != null && entry.take()) {
+                release(entry);
+                entry.line = null;
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Count lines dropped while catching up.
+     *
+     * @param count Number of lines dropped
+     */
+    private void drop(final int count) {
+        dropped.addAndGet(count);
+        catchUpDropped.addAndGet(count);
+    }
+
+    /**
+     * Queue an entry.
+     *
+     * @param entry Entry to queue
+     */
+    private void queue(final Entry entry) {
+        depth.incrementAndGet();
+        size.addAndGet(entry.size);
+        lines.add(entry);
+    }
+
+    /**
+     * Stop counting an entry that has been taken from the queue.
+     *
+     * @param entry Entry taken
+     */
+    private void release(final Entry entry) {
+        depth.decrementAndGet();
+        size.addAndGet(-entry.size);
+    }
+
+    /**
+     * Start a writer task, unless one is already running.
+     */
+    private void startWriting() {
+        if (writing.compareAndSet(false, true)) {
+            executor.execute(this::write);
+        }
+    }
+
+    /**
+     * Write queued lines until there are none left.
+     */
+    private void write() {
+        try {
+            final StringBuilder pending = new StringBuilder();
+            final List<Runnable> actions = new ArrayList<>();
+            Entry entry;
+            while ((entry = lines.poll()) != null) {
+                if ((entry.batch != null && !entry.batch.start()) || !entry.take()) {
+                    // Already dropped.
+                    continue;
+                }
+                release(entry);
+                if (entry.line != null) {
+                    if (pending.length() > 0) {
+                        pending.append("\r\n");
+                    }
+                    pending.append(entry.line);
+                }
+                if (entry.written != null) {
+                    actions.add(entry.written);
+                }
+                if (pending.length() >= MAX_WRITE || lines.isEmpty()) {
+                    flush(pending, actions);
+                }
+                if (size.get() <= lowWatermark && catchingUp.compareAndSet(true, false)) {
+                    listener.queueCaughtUp(catchUpSince, catchUpDropped.get());
+                }
+            }
+            flush(pending, actions);
+        } finally {
+            writing.set(false);
+        }
+
+        if (!lines.isEmpty()) {
+            // Something may have been added after we stopped looking.
+            startWriting();
+        } else if (closeAction.get() != null) {
+            final Runnable action = closeAction.getAndSet(null);
+            if (action != null) {
+                action.run();
+            }
+        }
+    }
+
+    /**
+     * Write the pending lines, then run the actions for them.
+     *
+     * @param pending CRLF separated lines to write, cleared afterwards
+     * @param actions Actions to run once they are written, cleared afterwards
+     */
+    private void flush(final StringBuilder pending, final List<Runnable> actions) {
+        if (discarding) {
+            pending.setLength(0);
+            actions.clear();
+            return;
+        }
+        if (pending.length() > 0) {
+            writer.accept(pending.toString());
+            pending.setLength(0);
+        }
+        for (final Runnable action : actions) {
+            action.run();
+        }
+        actions.clear();
+    }
+
+    /**
+     * Stop queueing new lines, and run the given action from the writer once
+     * everything already queued has been written. The caller does not wait.
+     *
+     * @param action Action to run once everything has been written
+     */
+    void closeWhenWritten(final Runnable action) {
+        closed = true;
+        closeAction.set(action);
+        if (writing.compareAndSet(false, true)) {
+            executor.execute(this::write);
+        }
+    }
+
+    /**
+     * Drop anything queued, and stop queueing new lines.
+     */
+    void close() {
+        closed = true;
+        discarding = true;
+        closeAction.set(null);
+        Entry entry;
+        while ((entry = lines.poll()) != null) {
+            if (entry.take()) {
+                release(entry);
+            }
+        }
+    }
+
+    /**
+     * Get the number of lines waiting to be written.
+     *
+     * @return Number of queued lines.
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Get the number of bytes waiting to be written.
+     *
+     * @return Number of queued bytes, including batches.
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * Get the number of bytes waiting that trigger the overflow policy.
+     *
+     * @return High watermark in bytes, or 0 for no limit.
+     */
+    public long getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * Get the number of bytes waiting to get back down to after overflowing.
+     *
+     * @return Low watermark in bytes.
+     */
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * Get the overflow policy.
+     *
+     * @return What to do when the queue overflows.
+     */
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Get the total number of lines dropped.
+     *
+     * @return Number of lines dropped.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Are new lines being dropped until we catch up?
+     *
+     * @return True if catching up.
+     */
+    public boolean isCatchingUp() {
+        return catchingUp.get();
+    }
+
+    /**
+     * A queued line. Taken exactly once, by either the writer or something
+     * dropping it.
+     */
+    private static final class Entry extends AtomicBoolean {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Line to write, cleared if it is dropped, or null for just an action. */
+        String line;
+
+        /** Size of the line, counting a byte per character, including the CRLF. */
+        final int size;
+
+        /** Batch the line was queued as part of, or null. */
+        final Batch batch;
+
+        /** Run once the line has been written, or null. */
+        final Runnable written;
+
+        /**
+         * Create a new Entry.
+         *
+         * @param line Line to write, or null for just an action
+         * @param batch Batch the line is part of, or null
+         * @param written Run once the line has been written, or null
+         */
+        Entry(final String line, final Batch batch, final Runnable written) {
+            this.line = line;
+            this.size = (line == null) ? 0 : line.length() + 2;
+            this.batch = batch;
+            this.written = written;
+        }
+
+        /**
+         * Take this entry, to write or drop it.
+         *
+         * @return True if it had not already been taken.
+         */
+        boolean take() {
+            return compareAndSet(false, true);
+        }
+    }
+
+    /**
+     * Lines collected to be queued together with {@link #addAll(Batch)}.
+     */
+    static final class Batch {
+
+        /** State of a batch the writer has not started on yet. */
+        private static final int WAITING = 0;
+
+        /** State of a batch the writer has started on. */
+        private static final int STARTED = 1;
+
+        /** State of a batch that has been dropped. */
+        private static final int DROPPED = 2;
+
+        /** Entries in the batch. */
+        private final List<Entry> entries = new ArrayList<>();
+
+        /** Is the batch waiting, started or dropped? */
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        /** Number of lines in the batch. */
+        private int lines;
+
+        /** Size of the lines in the batch. */
+        private long size;
+
+        /**
+         * Add a line to the batch.
+         *
+         * @param line Line to write
+         */
+        void add(final String line) {
+            final Entry entry = new Entry(line, this, null);
+            entries.add(entry);
+            lines++;
+            size += entry.size;
+        }
+
+        /**
+         * Run an action from the writer once everything added to the batch
+         * before it has been written. Not run if the batch is dropped.
+         *
+         * @param action Action to run
+         */
+        void whenWritten(final Runnable action) {
+            entries.add(new Entry(null, this, action));
+        }
+
+        /**
+         * Mark the batch as started by the writer, unless it was dropped.
+         *
+         * @return True if the writer can carry on with the batch.
+         */
+        boolean start() {
+            return state.get() == STARTED || state.compareAndSet(WAITING, STARTED);
+        }
+
+        /**
+         * Mark the batch as dropped, unless the writer has started on it.
+         *
+         * @return True if the batch was dropped by this call.
+         */
+        boolean drop() {
+            return state.compareAndSet(WAITING, DROPPED);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.sockets;
+
+import com.dmdirc.parser.irc.CapabilityState;
+
+import com.dfbnc.config.Config;
+import com.dfbnc.util.ServerTime;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Tracks how far through each backbuffer a sub-client has got, and handles
+ * IRCv3 MARKREAD requests to read or move those markers.
+ *
+ * Markers are stored in the sub-client config as a list of "target time"
+ * pairs, and only ever move forwards. Several messages can share a time, so
+ * markers moved by the BNC itself also store how many of the messages at
+ * that time have been sent.
+ * (See: https://ircv3.net/specs/extensions/read-marker)
+ */
+public class ReadMarkerHandler {
+
+    /** Marker name used for the private backbuffer. */
+    public static final String PRIVATE = "*";
+
+    /** Count used when every message at a marker's time has been seen. */
+    public static final int ALL = Integer.MAX_VALUE;
+
+    /** Socket that sent the request. */
+    private final UserSocket socket;
+
+    /**
+     * Create a new ReadMarkerHandler.
+     *
+     * @param socket Socket that sent the request
+     */
+    public ReadMarkerHandler(final UserSocket socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * Handle a MARKREAD request.
+     *
+     * @param line Tokenised request
+     */
+    public void handle(final String[] line) {
+        if (line.length < 2) {
+            fail("NEED_MORE_PARAMS", "", "Missing parameters");
+            return;
+        }
+
+        final String target = line[1];
+        if (socket.getClientID() == null) {
+            fail("INTERNAL_ERROR", target, "Read markers are only stored for sub-clients");
+            return;
+        }
+
+        if (line.length > 2) {
+            final long time;
+            try {
+                time = Instant.parse(line[2].startsWith("timestamp=") ? line[2].substring(10) : line[2]).toEpochMilli();
+            } catch (final DateTimeParseException dtpe) {
+                fail("INVALID_PARAMS", target, "Invalid timestamp");
+                return;
+            }
+            if (setMarker(socket.getClientConfig(), getName(target), time)) {
+                // Let all of this sub-client's connections know.
+                for (final UserSocket us : socket.getAccount().getUserSockets()) {
+                    if (us != socket && Objects.equals(us.getClientID(), socket.getClientID()) && us.getCapabilityState("draft/read-marker") == CapabilityState.ENABLED) {
+                        sendMarker(us, target, getName(target));
+                    }
+                }
+            }
+        }
+
+        sendMarker(socket, target, getName(target));
+    }
+
+    /**
+     * Get the name a target's marker is stored under.
+     *
+     * @param target Channel name
+     * @return Name to store the marker for the channel under
+     */
+    public static String getName(final String target) {
+        return target.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Get the time of the newest message the given client has seen.
+     *
+     * @param config Sub-client config
+     * @param name Name of the marker
+     * @return Time of the newest message seen, or 0 if there is no marker.
+     */
+    public static long getMarker(final Config config, final String name) {
+        final long[] marker = findMarker(config, name);
+        return (marker == null) ? 0 : marker[0];
+    }
+
+    /**
+     * Get the number of messages at the marker's time that the given client
+     * has seen. Messages can share a time, so this is needed to know which
+     * of them to replay.
+     *
+     * @param config Sub-client config
+     * @param name Name of the marker
+     * @return Number of messages seen at the marker's time, or {@link #ALL}
+     *         if all of them have been seen (or there is no marker).
+     */
+    public static int getMarkerCount(final Config config, final String name) {
+        final long[] marker = findMarker(config, name);
+        return (marker == null) ? ALL : (int) marker[1];
+    }
+
+    /**
+     * Find a stored marker.
+     *
+     * Markers are stored as "name time", or "name time count" if only some
+     * of the messages at that time have been seen.
+     *
+     * @param config Sub-client config
+     * @param name Name of the marker
+     * @return The time and count of the marker, or null if there is none.
+     */
+    private static long[] findMarker(final Config config, final String name) {
+        synchronized (config) {
+            if (!config.hasOption("readmarkers", "markers")) {
+                return null;
+            }
+            for (final String marker : config.getOptionList("readmarkers", "markers")) {
+                final String[] bits = marker.split(" ");
+                if (bits.length > 1 && bits[0].equals(name)) {
+                    try {
+                        return new long[]{Long.parseLong(bits[1]), (bits.length > 2) ? Integer.parseInt(bits[2]) : ALL};
+                    } catch (final NumberFormatException nfe) {
+                        return null;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Move the given marker forward, marking everything at the given time as
+     * seen. Markers are never moved backwards.
+     *
+     * @param config Sub-client config
+     * @param name Name of the marker
+     * @param time Time of the newest message seen
+     * @return True if the marker was moved.
+     */
+    public static boolean setMarker(final Config config, final String name, final long time) {
+        return setMarker(config, name, time, ALL);
+    }
+
+    /**
+     * Move the given marker forward. Markers are never moved backwards.
+     *
+     * @param config Sub-client config
+     * @param name Name of the marker
+     * @param time Time of the newest message seen
+     * @param count Number of messages seen at that time, or {@link #ALL}
+     * @return True if the marker was moved.
+     */
+    public static boolean setMarker(final Config config, final String name, final long time, final int count) {
+        synchronized (config) {
+            final long[] current = findMarker(config, name);
+            if (current != null && (time < current[0] || (time == current[0] && count <= current[1]))) {
+                return false;
+            }
+
+            final List<String> markers = new ArrayList<>();
+            if (config.hasOption("readmarkers", "markers")) {
+                for (final String marker : config.getOptionList("readmarkers", "markers")) {
+                    if (!marker.startsWith(name + " ")) {
+                        markers.add(marker);
+                    }
+                }
+            }
+            markers.add(name + " " + time + (count == ALL ? "" : " " + count));
+            config.setOption("readmarkers", "markers", markers);
+            return true;
+        }
+    }
+
+    /**
+     * Tell the given socket where a marker is.
+     *
+     * @param socket Socket to tell
+     * @param target Target to report the marker as
+     * @param name Name of the marker
+     */
+    public static void sendMarker(final UserSocket socket, final String target, final String name) {
+        final long time = getMarker(socket.getClientConfig(), name);
+        final String timestamp = (time == 0) ? "*" : "timestamp=" + ServerTime.format(time);
+        socket.sendLine(":" + socket.getServerName() + " MARKREAD " + target + " " + timestamp);
+    }
+
+    /**
+     * Tell the client that their request failed.
+     *
+     * @param code Failure code
+     * @param context Context for the failure
+     * @param description Description of the failure
+     */
+    private void fail(final String code, final String context, final String description) {
+        socket.sendLine(":" + socket.getServerName() + " FAIL MARKREAD " + code + (context.isEmpty() ? "" : " " + context) + " :" + description);
+    }
+}
@@ -25,6 +25,7 @@ import com.dmdirc.parser.irc.CapabilityState;
 import com.dmdirc.parser.irc.IRCParser;
 
 import com.dfbnc.Account;
+import com.dfbnc.AccountConfigChangeListener;
 import com.dfbnc.ConnectionHandler;
 import com.dfbnc.Consts;
 import com.dfbnc.DFBnc;
@@ -40,6 +41,7 @@ import com.dfbnc.config.Config;
 import com.dfbnc.sockets.secure.HandshakeCompletedEvent;
 import com.dfbnc.sockets.secure.SSLContextManager;
 import com.dfbnc.util.IRCLine;
+import com.dfbnc.util.IRCLineBuilder;
 import com.dfbnc.util.MultiWriter;
 import com.dfbnc.util.UserSocketMessageWriter;
 import com.dfbnc.util.Util;
@@ -61,6 +63,8 @@ import java.util.Random;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.net.ssl.SSLPeerUnverifiedException;
 
@@ -73,6 +77,45 @@ public class UserSocket extends ConnectedSocket {
     /** Known sockets are referenced in this HashMap. */
     private final static HashMap<String, UserSocket> knownSockets = new HashMap<>();
 
+    /**
+     * Writes queued lines to sockets. Each socket has at most one writer task
+     * at a time, so a fixed number of threads is shared between them.
+     */
+    private final static ExecutorService writers = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+        final Thread thread = new Thread(r, "UserSocket Writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** How long an attach burst waits for the send queue to drain, in milliseconds. */
+    private static final long SENDQ_WAIT = 30_000;
+
+    /** Lines being collected by sendBatch on each thread. */
+    private final ThreadLocal<OutboundQueue.Batch> batchLines = new ThreadLocal<>();
+
+    /** Lines waiting to be written to this socket. */
+    private final OutboundQueue outboundQueue = new OutboundQueue(writers, this::writeLine, new OutboundQueue.Listener() {
+        @Override
+        public void queueOverflowed() {
+            Logger.info("Send queue exceeded for: " + myInfo);
+            outboundQueue.close();
+            closeSocket("Send queue exceeded");
+        }
+
+        @Override
+        public void queueCaughtUp(final long since, final long dropped) {
+            sendBotMessage("Your connection couldn't keep up, so %d lines were skipped. Channel messages since then will be replayed.", dropped);
+            new ChatHistoryHandler(UserSocket.this).catchUp(since);
+        }
+    });
+
+    /** Updates the outbound queue limits when they are changed. */
+    private final AccountConfigChangeListener sendqListener = (account, subClient, domain, setting) -> {
+        if (setting.toLowerCase().startsWith("sendq") && (subClient == null || subClient.equalsIgnoreCase(getClientID()))) {
+            configureOutboundQueue();
+        }
+    };
+
     /** This sockets ID in the HashMap. */
     private final String myID;
 
@@ -191,6 +234,8 @@ public class UserSocket extends ConnectedSocket {
             capabilities.put("server-time", CapabilityState.DISABLED);
             capabilities.put("batch", CapabilityState.DISABLED);
             capabilities.put("dfbnc.com/channelhistory", CapabilityState.DISABLED);
+            capabilities.put("draft/chathistory", CapabilityState.DISABLED);
+            capabilities.put("draft/read-marker", CapabilityState.DISABLED);
 
             // TODO: Handle this better.
             tagCapabilities.add("server-time");
@@ -438,7 +483,7 @@ public class UserSocket extends ConnectedSocket {
         for (UserSocket socket : getUserSockets()) {
             if (++socket.inactiveCounter >= threshold) {
                 if (socket.inactiveCounter == threshold) {
-                    socket.sendLine("PING :%d", System.currentTimeMillis());
+                    socket.sendLine("PING :" + System.currentTimeMillis());
                 } else if (socket.inactiveCounter > threshold * 2) {
                     socket.close("Socket inactivity counter threshold exceeded. (" + socket.inactiveCounter + " > " + threshold * 2 + ")");
                 }
@@ -449,21 +494,165 @@ public class UserSocket extends ConnectedSocket {
     /**
      * Used to close this socket, and send a reason to the user.
      *
+     * The socket is closed by the writer once everything queued (including
+     * the reason) has been written, so this does not wait.
+     *
      * @param reason Reason for closing the socket.
      */
     public void close(final String reason) {
-        this.sendLine(":%s NOTICE :Connection terminating (%s)", getServerName(), reason);
-        this.closeSocket(reason);
+        this.sendLine(IRCLineBuilder.get().source(getServerName()).command("NOTICE").trailing("Connection terminating (" + reason + ")").build());
+        outboundQueue.closeWhenWritten(() -> closeSocket(reason));
+    }
+
+    /**
+     * Queue a line of IRC data to be written to the underlying socket.
+     *
+     * @param line Line to send
+     */
+    @Override
+    public void sendLine(final String line) {
+        if (outboundQueue == null) {
+            // Still being constructed.
+            super.sendLine(line);
+            return;
+        }
+
+        final OutboundQueue.Batch batch = batchLines.get();
+        if (batch == null) {
+            outboundQueue.add(line);
+        } else {
+            batch.add(line);
+        }
+    }
+
+    /**
+     * Queue a line that can be replayed from the backbuffer, so may be
+     * dropped if the client can't keep up and is going to be caught up.
+     *
+     * @param line Line to send
+     * @return True if the line was queued, false if it was dropped.
+     */
+    public boolean sendReplayableLine(final String line) {
+        return sendLine(line, true, null);
+    }
+
+    /**
+     * Queue a line, and run an action once it has actually been written.
+     *
+     * The action is run by the writer, and is not run at all if the line is
+     * dropped or the socket is closed first.
+     *
+     * @param line Line to send
+     * @param replayable Can the line be replayed from the backbuffer, so may
+     *                   be dropped if the client can't keep up?
+     * @param written Action to run once the line is written, or null
+     * @return True if the line was queued, false if it was dropped.
+     */
+    public boolean sendLine(final String line, final boolean replayable, final Runnable written) {
+        final OutboundQueue.Batch batch = batchLines.get();
+        if (batch == null) {
+            return outboundQueue.add(line, replayable, written);
+        }
+        batch.add(line);
+        if (written != null) {
+            batch.whenWritten(written);
+        }
+        return true;
+    }
+
+    /**
+     * Run an action once everything sent to this socket so far has actually
+     * been written. The action is not run if the socket is closed first, or
+     * if it is part of a batch that is dropped.
+     *
+     * @param action Action to run
+     */
+    public void whenWritten(final Runnable action) {
+        final OutboundQueue.Batch batch = batchLines.get();
+        if (batch == null) {
+            outboundQueue.whenWritten(action);
+        } else {
+            batch.whenWritten(action);
+        }
+    }
+
+    /**
+     * Send a burst of lines together.
+     *
+     * Lines sent to this socket by the given sender (on this thread) are
+     * collected and queued in one go once it returns, so they are written
+     * together rather than one at a time.
+     *
+     * @param sender Sends the lines
+     */
+    public void sendBatch(final Runnable sender) {
+        if (batchLines.get() != null) {
+            // Already in a batch, just add to it.
+            sender.run();
+            return;
+        }
+
+        final OutboundQueue.Batch batch = new OutboundQueue.Batch();
+        batchLines.set(batch);
+        try {
+            sender.run();
+        } finally {
+            batchLines.remove();
+            outboundQueue.addAll(batch);
+        }
+    }
+
+    /**
+     * Wait (for a while) for the lines already queued to this socket to be
+     * written, so that a long burst of batches is queued a bit at a time
+     * rather than overflowing the send queue. This must not be called from
+     * the thread that handles lines from the server.
+     *
+     * @return True if the queue drained, false if it timed out or the socket
+     *         was closed.
+     */
+    public boolean awaitSendQueue() {
+        return outboundQueue.awaitLowWatermark(SENDQ_WAIT);
+    }
+
+    /**
+     * Write a line to the underlying socket, called by the outbound queue.
+     *
+     * @param line Line to write
+     */
+    private void writeLine(final String line) {
+        super.sendLine(line);
+    }
+
+    /**
+     * Get the queue of lines waiting to be written to this socket.
+     *
+     * @return The outbound queue for this socket.
+     */
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    /**
+     * Set the outbound queue limits from the config for this socket.
+     */
+    private void configureOutboundQueue() {
+        final Config config = getClientConfig();
+        outboundQueue.setLimits(config.getOptionInt("user", "sendqhigh") * 1024L,
+                config.getOptionInt("user", "sendqlow") * 1024L,
+                OutboundQueue.OverflowPolicy.fromName(config.getOption("user", "sendqpolicy")));
     }
 
     /**
      * Used to send line(s) of IRC data to the underlying socket.
      *
+     * Tags are left off if this socket does not support them.
+     *
      * @param lines IRCLines to send
      */
     public void sendLine(final IRCLine... lines) {
         for (final IRCLine line : lines) {
-            this.sendLine(line.toString());
+            this.sendLine(line.toString(allowTags));
         }
     }
 
@@ -577,7 +766,7 @@ public class UserSocket extends ConnectedSocket {
                 if (method.equalsIgnoreCase("SNOTICE")) {
                     sendServerLine("NOTICE", data, args);
                 } else if (method.equalsIgnoreCase("AUTH")) {
-                    sendLine("NOTICE AUTH :- %s", outLine);
+                    sendLine("NOTICE AUTH :- " + outLine);
                 } else {
                     sendBotLine(method, data, args);
                 }
@@ -585,7 +774,7 @@ public class UserSocket extends ConnectedSocket {
                 sendServerLine("NOTICE", data, args);
             }
         } else {
-            sendLine("NOTICE AUTH :- %s", outLine);
+            sendLine("NOTICE AUTH :- " + outLine);
         }
     }
 
@@ -600,7 +789,7 @@ public class UserSocket extends ConnectedSocket {
      */
     public void sendBotChat(final String target, final String type, final String data, final Object... args) {
         final String outLine = args.length == 0 ? data : String.format(data, args);
-        sendLine(":%s!bot@%s %s %s :%s", Util.getBotName(), getServerName(), type, target, outLine);
+        sendLine(IRCLineBuilder.get().source(Util.getBotName(), "bot", getServerName()).command(type).param(target).trailing(outLine).build());
     }
 
     /**
@@ -665,7 +854,7 @@ public class UserSocket extends ConnectedSocket {
      */
     public void sendBotLine(final String type, final String data, final Object... args) {
         final String outLine = args.length == 0 ? data : String.format(data, args);
-        sendLine(":%s!bot@%s %s %s :%s", Util.getBotName(), getServerName(), type, nickname, outLine);
+        sendLine(IRCLineBuilder.get().source(Util.getBotName(), "bot", getServerName()).command(type).param(nickname).trailing(outLine).build());
     }
 
     /**
@@ -677,7 +866,7 @@ public class UserSocket extends ConnectedSocket {
      */
     public void sendDebugBotLine(final String type, final String data, final Object... args) {
         final String outLine = args.length == 0 ? data : String.format(data, args);
-        sendLine(":%s!bot@%s %s %s :%s", Util.getBotName() + "_DEBUG", getServerName(), type, nickname, outLine);
+        sendLine(IRCLineBuilder.get().source(Util.getBotName() + "_DEBUG", "bot", getServerName()).command(type).param(nickname).trailing(outLine).build());
     }
 
     /**
@@ -689,11 +878,13 @@ public class UserSocket extends ConnectedSocket {
      */
     public void sendServerLine(final String type, final String data, final Object... args) {
         final String outLine = args.length == 0 ? data : String.format(data, args);
-        sendLine(":%s %s %s :%s", getServerName(), type, nickname, outLine);
+        sendLine(IRCLineBuilder.get().source(getServerName()).command(type).param(nickname).trailing(outLine).build());
     }
 
     @Override
     protected void socketClosed(final boolean userRequested) {
+        outboundQueue.close();
+
         if (!closeAll) {
             synchronized (knownSockets) {
                 knownSockets.remove(myID);
@@ -704,6 +895,7 @@ public class UserSocket extends ConnectedSocket {
         getDebugFlags().stream().forEach(df -> setDebugFlag(df, false));
 
         if (myAccount != null) {
+            myAccount.removeListener(sendqListener);
             myAccount.userDisconnected(this);
         }
     }
@@ -754,11 +946,8 @@ public class UserSocket extends ConnectedSocket {
                 close("Client Quit: " + (newLine.length > 1 ? newLine[newLine.length - 1] : "No reason given."));
                 return;
             case "PING":
-                if (newLine.length > 1) {
-                    sendLine(":%s PONG %1$s :%s", getServerName(), newLine[1]);
-                } else {
-                    sendLine(":%s PONG %1$s :%s", getServerName(), System.currentTimeMillis());
-                }
+                final String token = (newLine.length > 1) ? newLine[1] : Long.toString(System.currentTimeMillis());
+                sendLine(IRCLineBuilder.get().source(getServerName()).command("PONG").param(getServerName()).trailing(token).build());
                 return;
             case "PONG":
                 return;
@@ -799,7 +988,7 @@ public class UserSocket extends ConnectedSocket {
 
                         // Respond with our capabilities, or the enabled capabilities
                         // as requested.
-                        final String prefix = String.format(":%s CAP %s %s ", getServerName(), (nickname == null) ? '*' : nickname, newLine[1]);
+                        final String prefix = IRCLineBuilder.get().source(getServerName()).command("CAP").param((nickname == null) ? "*" : nickname).param(newLine[1]).build() + " ";
 
                         final StringBuilder caps = new StringBuilder();
                         for (final String cap : capabilities.keySet()) {
@@ -848,9 +1037,9 @@ public class UserSocket extends ConnectedSocket {
                                 goodCaps.put(cap, CapabilityState.fromModifier(modifier));
                             } else {
                                 // Reject the lot, stupid standard.
-                                sendLine(":%s CAP %s NAK :%s", getServerName(), (nickname == null) ? '*' : nickname, newLine[newLine.length - 1]);
+                                sendLine(IRCLineBuilder.get().source(getServerName()).command("CAP").param((nickname == null) ? "*" : nickname).param("NAK").trailing(newLine[newLine.length - 1]).build());
 
-                                sendLine(":%s CAP_DEBUG %s NAK :%s (%s)", getServerName(), (nickname == null) ? '*' : nickname, cap, modifier);
+                                sendLine(IRCLineBuilder.get().source(getServerName()).command("CAP_DEBUG").param((nickname == null) ? "*" : nickname).param("NAK").trailing(cap + " (" + modifier + ")").build());
                                 return;
                             }
                         }
@@ -862,12 +1051,12 @@ public class UserSocket extends ConnectedSocket {
 
                             if (e.getKey().equals("dfbnc.com/tsirc")) {
                                 // Send the TSIRC timestamp.
-                                sendLine(":%s TSIRC %s %s :%s", getServerName(), "1", (System.currentTimeMillis()), "Timestamped IRC Enabled");
+                                sendLine(IRCLineBuilder.get().source(getServerName()).command("TSIRC").param("1").param(System.currentTimeMillis()).trailing("Timestamped IRC Enabled").build());
                             }
                         }
 
                         // Acknowledge the caps.
-                        sendLine(":%s CAP %s ACK :%s", getServerName(), (nickname == null) ? '*' : nickname, newLine[newLine.length - 1]);
+                        sendLine(IRCLineBuilder.get().source(getServerName()).command("CAP").param((nickname == null) ? "*" : nickname).param("ACK").trailing(newLine[newLine.length - 1]).build());
                         return;
                     case "ACK":
                         // Client acknowledges capabilities
@@ -977,6 +1166,8 @@ public class UserSocket extends ConnectedSocket {
         }
 
         myAccount = account;
+        configureOutboundQueue();
+        account.addConfigChangeListener("user", sendqListener);
 
         Logger.debug2("handleAccount - User Connected");
         account.userConnected(this);
@@ -1017,11 +1208,8 @@ public class UserSocket extends ConnectedSocket {
      * @param addColon Automatically add : before line
      */
     public final void sendIRCLine(final int numeric, final String params, final String line, final boolean addColon) {
-        if (addColon) {
-            sendLine(":%s %03d %s :%s", getServerName(), numeric, params, line);
-        } else {
-            sendLine(":%s %03d %s %s", getServerName(), numeric, params, line);
-        }
+        final IRCLineBuilder builder = IRCLineBuilder.get().source(getServerName()).command(numeric).param(params);
+        sendLine(addColon ? builder.trailing(line).build() : builder.param(line).build());
     }
 
     /**
@@ -1098,14 +1286,20 @@ public class UserSocket extends ConnectedSocket {
                     return;
                 }
                 break;
+            case "CHATHISTORY":
+                new ChatHistoryHandler(this).handle(line);
+                return;
+            case "MARKREAD":
+                new ReadMarkerHandler(this).handle(line);
+                return;
             case "TIMESTAMPEDIRC":
             case "TSIRC":
                 if (line.length < 2 && line[1].equalsIgnoreCase("OFF")) {
                     setCapabilityState("dfbnc.com/tsirc", CapabilityState.DISABLED);
-                    sendLine(":%s TSIRC %s %s :%s", getServerName(), "0", (System.currentTimeMillis()), "Timestamped IRC Disabled");
+                    sendLine(IRCLineBuilder.get().source(getServerName()).command("TSIRC").param("0").param(System.currentTimeMillis()).trailing("Timestamped IRC Disabled").build());
                 } else if (line.length < 2 || line[1].equalsIgnoreCase("ON")) {
                     setCapabilityState("dfbnc.com/tsirc", CapabilityState.ENABLED);
-                    sendLine(":%s TSIRC %s %s :%s", getServerName(), "1", (System.currentTimeMillis()), "Timestamped IRC Enabled");
+                    sendLine(IRCLineBuilder.get().source(getServerName()).command("TSIRC").param("1").param(System.currentTimeMillis()).trailing("Timestamped IRC Enabled").build());
                 }
                 return;
         }
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of roughly how much memory is used by backbuffers across the
+ * whole BNC, and drops old lines when that goes over a budget.
+ *
+ * When over budget, lines are dropped from the backbuffers that have gone
+ * longest without a client attaching first. Backbuffers last attached to
+ * within the same hour are treated alike, and the largest of them is trimmed
+ * first. Enough is dropped to get a little below the budget, so that this
+ * does not happen on every new line.
+ */
+public class BackbufferAccountant {
+
+    /** Percentage of the budget to free up below it when trimming. */
+    private static final int HEADROOM_PERCENT = 10;
+
+    /** How close together attach times are treated as the same. */
+    private static final long ATTACH_GRANULARITY = 60 * 60 * 1000;
+
+    /** Known backbuffers, and when a client last attached to each. */
+    private final Map<BackbufferList, Long> backbuffers = new WeakHashMap<>();
+
+    /** Approximate number of bytes used by all backbuffers. */
+    private final AtomicLong usage = new AtomicLong();
+
+    /** Number of lines dropped to stay within the budget. */
+    private final AtomicLong evictedLines = new AtomicLong();
+
+    /** Maximum number of bytes for all backbuffers to use, 0 for no limit. */
+    private volatile long budget;
+
+    /**
+     * Get the memory budget.
+     *
+     * @return Maximum number of bytes for all backbuffers to use, 0 for no
+     *         limit.
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Set the memory budget.
+     *
+     * @param budget Maximum number of bytes for all backbuffers to use, 0 for
+     *               no limit.
+     */
+    public void setBudget(final long budget) {
+        this.budget = Math.max(0, budget);
+        enforce();
+    }
+
+    /**
+     * Start keeping track of the given backbuffer. Backbuffers that are no
+     * longer used are forgotten about automatically.
+     *
+     * @param backbuffer Backbuffer to track
+     */
+    public void register(final BackbufferList backbuffer) {
+        synchronized (backbuffers) {
+            backbuffers.put(backbuffer, System.currentTimeMillis());
+        }
+        backbuffer.setAccountant(this);
+        adjust(backbuffer.getMemoryUsage());
+    }
+
+    /**
+     * Note that a client has just attached to the given backbuffer.
+     *
+     * @param backbuffer Backbuffer that was attached to
+     */
+    public void attached(final BackbufferList backbuffer) {
+        synchronized (backbuffers) {
+            if (backbuffers.containsKey(backbuffer)) {
+                backbuffers.put(backbuffer, System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * Get the approximate number of bytes used by all backbuffers.
+     *
+     * @return Approximate memory usage in bytes.
+     */
+    public long getUsage() {
+        long total = 0;
+        for (final BackbufferList backbuffer : getBackbuffers()) {
+            total += backbuffer.getMemoryUsage();
+        }
+        usage.set(total);
+        return total;
+    }
+
+    /**
+     * Get the number of backbuffers being tracked.
+     *
+     * @return Number of backbuffers.
+     */
+    public int getBackbufferCount() {
+        synchronized (backbuffers) {
+            return backbuffers.size();
+        }
+    }
+
+    /**
+     * Get the number of lines dropped to stay within the budget.
+     *
+     * @return Number of lines dropped.
+     */
+    public long getEvictedLines() {
+        return evictedLines.get();
+    }
+
+    /**
+     * Called by backbuffers when the memory they use changes.
+     *
+     * This must not be called while holding the lock on a backbuffer.
+     *
+     * @param delta Change in memory usage in bytes.
+     */
+    void adjust(final long delta) {
+        final long limit = budget;
+        if (usage.addAndGet(delta) > limit && limit > 0) {
+            enforce();
+        }
+    }
+
+    /**
+     * Drop lines from backbuffers until usage is within the budget.
+     */
+    private synchronized void enforce() {
+        final long limit = budget;
+        if (limit <= 0 || getUsage() <= limit) {
+            return;
+        }
+
+        // Work out usage up front, so it doesn't change while sorting.
+        final List<Candidate> candidates = new ArrayList<>();
+        synchronized (backbuffers) {
+            for (final Map.Entry<BackbufferList, Long> entry : backbuffers.entrySet()) {
+                candidates.add(new Candidate(entry.getKey(), entry.getValue() / ATTACH_GRANULARITY));
+            }
+        }
+        long total = 0;
+        for (final Candidate candidate : candidates) {
+            candidate.usage = candidate.backbuffer.getMemoryUsage();
+            total += candidate.usage;
+        }
+        candidates.sort(Comparator.<Candidate>comparingLong(c -> c.attached).thenComparing(Comparator.<Candidate>comparingLong(c -> c.usage).reversed()));
+
+        final long target = limit - limit * HEADROOM_PERCENT / 100;
+        for (final Candidate candidate : candidates) {
+            if (total <= target) {
+                break;
+            }
+            evictedLines.addAndGet(candidate.backbuffer.trim(total - target));
+            total -= candidate.usage - candidate.backbuffer.getMemoryUsage();
+        }
+        usage.set(total);
+    }
+
+    /**
+     * Get all known backbuffers.
+     *
+     * @return Copy of the known backbuffers.
+     */
+    private List<BackbufferList> getBackbuffers() {
+        synchronized (backbuffers) {
+            return new ArrayList<>(backbuffers.keySet());
+        }
+    }
+
+    /**
+     * A backbuffer that may be trimmed.
+     */
+    private static final class Candidate {
+
+        /** The backbuffer. */
+        final BackbufferList backbuffer;
+
+        /** When a client last attached, in units of ATTACH_GRANULARITY. */
+        final long attached;
+
+        /** Memory used before trimming. */
+        long usage;
+
+        /**
+         * Create a new Candidate.
+         *
+         * @param backbuffer The backbuffer
+         * @param attached When a client last attached
+         */
+        Candidate(final BackbufferList backbuffer, final long attached) {
+            this.backbuffer = backbuffer;
+            this.attached = attached;
+        }
+    }
+}
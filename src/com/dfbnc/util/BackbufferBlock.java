@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An immutable, compressed run of backbuffer messages.
+ *
+ * Message times are kept uncompressed so that blocks can be searched and
+ * filtered by time without being inflated. Message text is only inflated
+ * when it is actually needed.
+ */
+final class BackbufferBlock {
+
+    /** Sequence number of the first message in this block. */
+    private final long firstSequence;
+
+    /** Time of each message. */
+    private final long[] times;
+
+    /** Offset after the end of each message in the uncompressed data. */
+    private final int[] ends;
+
+    /** Compressed message data. */
+    private final byte[] compressed;
+
+    /**
+     * Compress the given messages into a new block.
+     *
+     * @param firstSequence Sequence number of the first message
+     * @param times Time of each message
+     * @param ends Offset after the end of each message in the data
+     * @param data UTF-8 bytes of each message, one after another
+     * @param length Number of bytes of data to use
+     */
+    BackbufferBlock(final long firstSequence, final long[] times, final int[] ends, final byte[] data, final int length) {
+        this.firstSequence = firstSequence;
+        this.times = times;
+        this.ends = ends;
+
+        final Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            byte[] output = new byte[Math.max(64, length / 2)];
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                size += deflater.deflate(output, size, output.length - size);
+            }
+            compressed = Arrays.copyOf(output, size);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Get the sequence number of the first message in this block.
+     *
+     * @return Sequence number of the first message.
+     */
+    long getFirstSequence() {
+        return firstSequence;
+    }
+
+    /**
+     * Get the number of messages in this block.
+     *
+     * @return Number of messages.
+     */
+    int size() {
+        return times.length;
+    }
+
+    /**
+     * Get the number of bytes used to store this block's messages.
+     *
+     * @return Compressed size of the messages.
+     */
+    int getCompressedSize() {
+        return compressed.length;
+    }
+
+    /**
+     * Get the time of the given message.
+     *
+     * @param position Position of the message in this block
+     * @return Time of the message
+     */
+    long getTime(final int position) {
+        return times[position];
+    }
+
+    /**
+     * Inflate the message data in this block.
+     *
+     * @return The uncompressed message data, to be passed to
+     *         {@link #get(byte[], int)}.
+     */
+    byte[] inflate() {
+        final byte[] data = new byte[ends.length == 0 ? 0 : ends[ends.length - 1]];
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int size = 0;
+            while (size < data.length && !inflater.finished()) {
+                size += inflater.inflate(data, size, data.length - size);
+            }
+        } catch (final DataFormatException dfe) {
+            // We compressed this ourselves, so this should never happen.
+            throw new IllegalStateException("Corrupt backbuffer block", dfe);
+        } finally {
+            inflater.end();
+        }
+        return data;
+    }
+
+    /**
+     * Get the given message.
+     *
+     * @param data Uncompressed data from {@link #inflate()}
+     * @param position Position of the message in this block
+     * @return The message
+     */
+    BackbufferMessage get(final byte[] data, final int position) {
+        final int start = position == 0 ? 0 : ends[position - 1];
+        return new BackbufferMessage(times[position], new String(data, start, ends[position] - start, StandardCharsets.UTF_8), firstSequence + position);
+    }
+}
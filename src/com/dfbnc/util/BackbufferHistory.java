@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A store of backbuffer messages that can be searched by time and by sequence
+ * number.
+ *
+ * Every message stored is given a sequence number one higher than the message
+ * before it. Messages are assumed to be stored in time order.
+ *
+ * Sequence numbers are only unique within a history, so each history also has
+ * an epoch. Together they identify a message, even across different histories.
+ */
+public interface BackbufferHistory {
+
+    /**
+     * Get the epoch of this history. This never changes while sequence
+     * numbers carry on from each other.
+     *
+     * @return Epoch of this history, which does not contain spaces or "-".
+     */
+    String getEpoch();
+
+    /**
+     * Get the sequence number of the oldest stored message.
+     *
+     * @return Sequence number of the oldest message.
+     */
+    long getFirstSequence();
+
+    /**
+     * Get the sequence number that the next message added will be given.
+     *
+     * @return Next sequence number.
+     */
+    long getNextSequence();
+
+    /**
+     * Find the sequence number of the first stored message at or after the
+     * given time.
+     *
+     * @param time Time to look for
+     * @return Sequence number of the first message at or after the time, or
+     *         {@link #getNextSequence()} if there is none.
+     */
+    long findSequence(long time);
+
+    /**
+     * Get a cursor over the newest stored messages.
+     *
+     * @param limit Maximum number of messages to replay
+     * @param earliestTime Messages older than this are skipped
+     * @return A cursor over the requested messages
+     */
+    BackbufferCursor replay(int limit, long earliestTime);
+
+    /**
+     * Get a cursor over a range of stored messages.
+     *
+     * @param startSequence Sequence number of the first message to return
+     * @param endSequence Sequence number after the last message to return
+     * @return A cursor over the requested messages
+     */
+    BackbufferCursor range(long startSequence, long endSequence);
+
+    /**
+     * Create a new epoch, which will not be the same as any other.
+     *
+     * @return New epoch
+     */
+    static String newEpoch() {
+        return Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+    }
+}
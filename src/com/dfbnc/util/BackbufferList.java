@@ -0,0 +1,950 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Fixed-capacity ring buffer used to store backbuffer messages.
+ *
+ * Rather than keeping a list node, a BackbufferMessage and a String for every
+ * stored line, timestamps are kept in a long[] and the UTF-8 bytes of every
+ * message are packed into a single circular byte[]. Messages are only turned
+ * back into BackbufferMessage objects as they are iterated.
+ *
+ * Once the list is at capacity, adding a new message drops the oldest one.
+ * Changing the capacity only moves the start of the ring, existing arrays are
+ * reused until they next need to be resized.
+ *
+ * Optionally only the newest messages are kept like this. With a hot limit
+ * set, once the messages beyond it add up to a block's worth of data they are
+ * compressed together into a {@link BackbufferBlock}, which is only inflated
+ * again if something reads those messages.
+ *
+ * All methods are synchronized on the list itself. Iterators are not, and
+ * callers that iterate over a list that may be modified at the same time
+ * should hold the lock, iterate over a {@link #copy()}, or use a
+ * {@link #replay(int, long)} cursor.
+ */
+public class BackbufferList implements Iterable<BackbufferMessage>, BackbufferHistory {
+
+    /** Initial number of entry slots allocated. */
+    private static final int INITIAL_SLOTS = 16;
+
+    /** Initial size of the message data area. */
+    private static final int INITIAL_DATA = 1024;
+
+    /** Number of messages a Cursor decodes each time it takes the lock. */
+    private static final int CURSOR_BATCH = 64;
+
+    /** Default amount of message data to compress into each block. */
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    /** Maximum number of messages to keep. */
+    private int capacity;
+
+    /** Timestamp of each message. */
+    private long[] times = new long[0];
+
+    /** Offset of each message within {@link #data}. */
+    private int[] offsets = new int[0];
+
+    /** Length in bytes of each message within {@link #data}. */
+    private int[] lengths = new int[0];
+
+    /**
+     * Running total of bytes added, up to and including each message. This
+     * wraps around, only the difference between two slots is meaningful.
+     */
+    private int[] ends = new int[0];
+
+    /** Running total of bytes added, as stored in {@link #ends}. */
+    private int totalBytes;
+
+    /** Slot holding the oldest message. */
+    private int head;
+
+    /** Number of messages currently stored. */
+    private int count;
+
+    /** Circular data area holding the encoded messages. */
+    private byte[] data = new byte[0];
+
+    /** Position in {@link #data} that the next message will be written at. */
+    private int writePos;
+
+    /** Number of bytes used by stored messages. */
+    private int dataBytes;
+
+    /** Modification count, used to detect changes during iteration. */
+    private int modCount;
+
+    /**
+     * Sequence number of the oldest uncompressed message. Every message added
+     * is given the next sequence number, which never changes while the
+     * message is stored.
+     */
+    private long firstSequence;
+
+    /** Number of newest messages to keep uncompressed, 0 to never compress. */
+    private int hotLimit;
+
+    /** Amount of message data to compress into each block. */
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+
+    /** Compressed blocks holding the oldest messages, oldest first. */
+    private List<BackbufferBlock> coldBlocks = new ArrayList<>();
+
+    /** Number of messages at the start of the first block that are dropped. */
+    private int coldSkip;
+
+    /** Number of messages stored in compressed blocks. */
+    private int coldCount;
+
+    /** Number of bytes used by compressed blocks. */
+    private int coldBytes;
+
+    /** Bytes of uncompressed messages beyond the hot limit. */
+    private int pendingBytes;
+
+    /** Accountant to tell about changes in memory use, if any. */
+    private BackbufferAccountant accountant;
+
+    /** Epoch of this list, see {@link BackbufferHistory#getEpoch()}. */
+    private final String epoch = BackbufferHistory.newEpoch();
+
+    /**
+     * Creates a new BackbufferList with the specified capacity.
+     *
+     * @param capacity The capacity for this list.
+     */
+    public BackbufferList(final int capacity) {
+        this.capacity = Math.max(0, capacity);
+    }
+
+    /**
+     * Get the current capacity of this list.
+     *
+     * @return Current capacity of this list.
+     */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the current capacity of this list.
+     *
+     * If the list currently holds more than the new capacity, the oldest
+     * messages are dropped.
+     *
+     * @param newValue New capacity for this list.
+     */
+    public synchronized void setCapacity(final int newValue) {
+        capacity = Math.max(0, newValue);
+        if (coldCount + count > capacity) {
+            removeOldest(coldCount + count - capacity);
+        }
+    }
+
+    /**
+     * Set the number of newest messages to keep uncompressed.
+     *
+     * Messages that are already compressed stay compressed.
+     *
+     * @param newValue Number of messages to keep uncompressed, 0 to never
+     *                 compress messages.
+     */
+    public synchronized void setHotLimit(final int newValue) {
+        hotLimit = Math.max(0, newValue);
+        pendingBytes = 0;
+        for (int i = 0; i < count - hotLimit && hotLimit > 0; i++) {
+            pendingBytes += lengths[(head + i) % times.length];
+        }
+        compressPending();
+    }
+
+    /**
+     * Set the amount of message data to compress into each block.
+     *
+     * @param newValue Uncompressed size of each block in bytes
+     */
+    public synchronized void setBlockSize(final int newValue) {
+        blockSize = Math.max(1, newValue);
+        compressPending();
+    }
+
+    /**
+     * Get the number of messages currently stored.
+     *
+     * @return Number of messages stored.
+     */
+    public synchronized int size() {
+        return coldCount + count;
+    }
+
+    /**
+     * Is this list empty?
+     *
+     * @return True if there are no stored messages.
+     */
+    public synchronized boolean isEmpty() {
+        return coldCount + count == 0;
+    }
+
+    /**
+     * Get the number of bytes used to store message data, including
+     * compressed messages.
+     *
+     * @return Number of bytes of message data stored.
+     */
+    public synchronized int getDataSize() {
+        return dataBytes + coldBytes;
+    }
+
+    /**
+     * Add a message to the end of this list, dropping the oldest message if the
+     * list is already at capacity.
+     *
+     * @param time Timestamp of the message
+     * @param message Message to add
+     */
+    public void add(final long time, final String message) {
+        // Encode outside of the lock, this is the expensive bit.
+        final byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        final BackbufferAccountant currentAccountant;
+        final long growth;
+        synchronized (this) {
+            if (capacity == 0) {
+                return;
+            }
+            currentAccountant = accountant;
+            final long oldUsage = getMemoryUsage();
+            if (coldCount + count >= capacity) {
+                removeOldest(coldCount + count - capacity + 1);
+            }
+            if (count == times.length) {
+                growSlots();
+            }
+
+            final int offset = reserve(bytes.length);
+            System.arraycopy(bytes, 0, data, offset, bytes.length);
+
+            final int slot = (head + count) % times.length;
+            times[slot] = time;
+            offsets[slot] = offset;
+            lengths[slot] = bytes.length;
+            totalBytes += bytes.length;
+            ends[slot] = totalBytes;
+
+            writePos = offset + bytes.length;
+            dataBytes += bytes.length;
+            count++;
+            modCount++;
+
+            if (hotLimit > 0 && count > hotLimit) {
+                pendingBytes += lengths[(head + count - hotLimit - 1) % times.length];
+                compressPending();
+            }
+            growth = getMemoryUsage() - oldUsage;
+        }
+
+        // The accountant may trim other lists, so must be told without
+        // holding our lock.
+        if (currentAccountant != null && growth != 0) {
+            currentAccountant.adjust(growth);
+        }
+    }
+
+    /**
+     * Add a message to the end of this list.
+     *
+     * @param message Message to add
+     */
+    public void add(final BackbufferMessage message) {
+        add(message.getTime(), message.getMessage());
+    }
+
+    /**
+     * Get the approximate amount of memory used by this list.
+     *
+     * @return Approximate memory use in bytes.
+     */
+    public synchronized long getMemoryUsage() {
+        // Each slot has a long and three ints, and each compressed message
+        // has a long and an int in its block.
+        return times.length * 20L + data.length + coldBytes + (coldCount + coldSkip) * 12L;
+    }
+
+    /**
+     * Set the accountant to tell about changes in memory use.
+     *
+     * @param accountant Accountant to tell
+     */
+    synchronized void setAccountant(final BackbufferAccountant accountant) {
+        this.accountant = accountant;
+    }
+
+    /**
+     * Drop the oldest messages to free up memory.
+     *
+     * @param bytes Amount of memory to free up
+     * @return Number of messages dropped
+     */
+    synchronized int trim(final long bytes) {
+        final int dropped = countExcess(getMemoryUsage() - bytes);
+        if (dropped > 0) {
+            removeOldest(dropped);
+        }
+
+        if (data.length > Math.max(INITIAL_DATA, dataBytes + 1)) {
+            compact(Math.max(INITIAL_DATA, dataBytes + 1));
+        }
+        if (times.length > Math.max(INITIAL_SLOTS, count)) {
+            resizeSlots(Math.max(INITIAL_SLOTS, count));
+        }
+        return dropped;
+    }
+
+    /**
+     * Get the amount of memory this list would use if its arrays were
+     * shrunk to fit what is currently stored.
+     *
+     * @return Approximate memory use in bytes.
+     */
+    private long getTrimmedMemoryUsage() {
+        return Math.max(INITIAL_SLOTS, count) * 20L + Math.max(INITIAL_DATA, dataBytes + 1) + coldBytes + (coldCount + coldSkip) * 12L;
+    }
+
+    /**
+     * Get the amount of memory this list would use once all compressed
+     * messages and the given number of uncompressed ones were dropped, and
+     * its arrays shrunk to fit.
+     *
+     * @param number Number of uncompressed messages to drop, at least 1
+     * @return Approximate memory use in bytes.
+     */
+    private long getTrimmedMemoryUsage(final int number) {
+        return Math.max(INITIAL_SLOTS, count - number) * 20L + Math.max(INITIAL_DATA, dataBytes - getBytes(number) + 1);
+    }
+
+    /**
+     * Work out how many of the oldest messages need to be dropped to bring
+     * the memory used by this list down to the given target, without
+     * dropping anything.
+     *
+     * @param target Memory use to aim for, in bytes
+     * @return Number of messages to drop, at most the number stored
+     */
+    private int countExcess(final long target) {
+        long usage = getTrimmedMemoryUsage();
+        int number = 0;
+
+        // Dropping part of a block frees nothing, so compressed messages are
+        // counted a whole block at a time.
+        int skip = coldSkip;
+        for (BackbufferBlock block : coldBlocks) {
+            if (usage <= target) {
+                return number;
+            }
+            number += block.size() - skip;
+            usage -= block.getCompressedSize() + block.size() * 12L;
+            skip = 0;
+        }
+        if (usage <= target || count == 0) {
+            return number;
+        }
+
+        // Memory use only goes down as more uncompressed messages are
+        // dropped, so find the fewest that are enough.
+        int low = 1;
+        int high = count;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (getTrimmedMemoryUsage(mid) <= target) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return number + low;
+    }
+
+    /**
+     * Remove all messages from this list and release the storage used.
+     */
+    public synchronized void clear() {
+        firstSequence += count;
+        times = new long[0];
+        offsets = new int[0];
+        lengths = new int[0];
+        ends = new int[0];
+        data = new byte[0];
+        head = 0;
+        count = 0;
+        writePos = 0;
+        dataBytes = 0;
+        coldBlocks = new ArrayList<>();
+        coldSkip = 0;
+        coldCount = 0;
+        coldBytes = 0;
+        pendingBytes = 0;
+        modCount++;
+    }
+
+    /**
+     * Get a copy of this list. The copy shares no storage with this list, and
+     * has its own epoch.
+     *
+     * @return A copy of this list.
+     */
+    public synchronized BackbufferList copy() {
+        final BackbufferList result = new BackbufferList(capacity);
+        result.times = new long[count];
+        result.offsets = new int[count];
+        result.lengths = new int[count];
+        result.ends = new int[count];
+        result.data = new byte[dataBytes + 1];
+
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            final int slot = (head + i) % times.length;
+            result.times[i] = times[slot];
+            result.offsets[i] = pos;
+            result.lengths[i] = lengths[slot];
+            result.ends[i] = ends[slot];
+            System.arraycopy(data, offsets[slot], result.data, pos, lengths[slot]);
+            pos += lengths[slot];
+        }
+        result.count = count;
+        result.firstSequence = firstSequence;
+        result.writePos = pos;
+        result.dataBytes = dataBytes;
+        result.totalBytes = totalBytes;
+
+        // Blocks never change, so can be shared.
+        result.hotLimit = hotLimit;
+        result.blockSize = blockSize;
+        result.coldBlocks = new ArrayList<>(coldBlocks);
+        result.coldSkip = coldSkip;
+        result.coldCount = coldCount;
+        result.coldBytes = coldBytes;
+        result.pendingBytes = pendingBytes;
+
+        return result;
+    }
+
+    /**
+     * Get the message at the given position, where 0 is the oldest message.
+     *
+     * @param index Position of the message
+     * @return The message at the given position
+     */
+    public synchronized BackbufferMessage get(final int index) {
+        if (index < 0 || index >= coldCount + count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + (coldCount + count));
+        }
+        if (index < coldCount) {
+            final long sequence = getColdSequence() + index;
+            final BackbufferBlock block = findBlock(sequence);
+            return block.get(block.inflate(), (int) (sequence - block.getFirstSequence()));
+        }
+        return getSlot((head + index - coldCount) % times.length, firstSequence + index - coldCount);
+    }
+
+    /**
+     * Get the time of the message at the given position, where 0 is the oldest
+     * message.
+     *
+     * @param index Position of the message
+     * @return The time of the message at the given position
+     */
+    public synchronized long getTime(final int index) {
+        if (index < 0 || index >= coldCount + count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + (coldCount + count));
+        }
+        return timeAt(index);
+    }
+
+    /**
+     * Get a cursor that replays the newest messages in this list without
+     * copying it.
+     *
+     * The cursor covers at most the last {@code limit} messages that were
+     * stored when it was created, skipping any older than
+     * {@code earliestTime}. Messages can continue to be added while the
+     * cursor is in use; anything added after it was created is not returned,
+     * and anything dropped from the list before the cursor reaches it is
+     * skipped.
+     *
+     * @param limit Maximum number of messages to replay
+     * @param earliestTime Messages older than this are skipped
+     * @return A cursor over the requested messages
+     */
+    @Override
+    public synchronized Cursor replay(final int limit, final long earliestTime) {
+        final int wanted = Math.min(coldCount + count, Math.max(0, limit));
+        return new Cursor(firstSequence + count - wanted, firstSequence + count, earliestTime);
+    }
+
+    @Override
+    public synchronized Cursor range(final long startSequence, final long endSequence) {
+        final long start = Math.max(startSequence, getColdSequence());
+        return new Cursor(start, Math.max(start, Math.min(endSequence, firstSequence + count)), Long.MIN_VALUE);
+    }
+
+    @Override
+    public String getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public synchronized long getFirstSequence() {
+        return getColdSequence();
+    }
+
+    @Override
+    public synchronized long getNextSequence() {
+        return firstSequence + count;
+    }
+
+    @Override
+    public synchronized long findSequence(final long time) {
+        int low = 0;
+        int high = coldCount + count;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (timeAt(mid) < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return getColdSequence() + low;
+    }
+
+    @Override
+    public Iterator<BackbufferMessage> iterator() {
+        final Cursor cursor;
+        final int expectedModCount;
+        synchronized (this) {
+            cursor = range(getColdSequence(), firstSequence + count);
+            expectedModCount = modCount;
+        }
+
+        return new Iterator<BackbufferMessage>() {
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public BackbufferMessage next() {
+                synchronized (BackbufferList.this) {
+                    if (modCount != expectedModCount) {
+                        throw new ConcurrentModificationException();
+                    }
+                }
+                return cursor.next();
+            }
+        };
+    }
+
+    /**
+     * Get the sequence number of the oldest message, compressed or not.
+     *
+     * @return Sequence number of the oldest message.
+     */
+    private long getColdSequence() {
+        return coldBlocks.isEmpty() ? firstSequence : coldBlocks.get(0).getFirstSequence() + coldSkip;
+    }
+
+    /**
+     * Find the compressed block holding the given message.
+     *
+     * @param sequence Sequence number of a compressed message
+     * @return The block holding the message
+     */
+    private BackbufferBlock findBlock(final long sequence) {
+        int low = 0;
+        int high = coldBlocks.size() - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (coldBlocks.get(mid).getFirstSequence() <= sequence) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return coldBlocks.get(low);
+    }
+
+    /**
+     * Get the time of the message at the given position, where 0 is the
+     * oldest message.
+     *
+     * @param index Position of the message
+     * @return The time of the message at the given position
+     */
+    private long timeAt(final int index) {
+        if (index < coldCount) {
+            final long sequence = getColdSequence() + index;
+            final BackbufferBlock block = findBlock(sequence);
+            return block.getTime((int) (sequence - block.getFirstSequence()));
+        }
+        return times[(head + index - coldCount) % times.length];
+    }
+
+    /**
+     * Decode the message stored in the given slot.
+     *
+     * @param slot Slot to decode
+     * @param sequence Sequence number of the message in the slot
+     * @return The message in the given slot
+     */
+    private BackbufferMessage getSlot(final int slot, final long sequence) {
+        return new BackbufferMessage(times[slot], new String(data, offsets[slot], lengths[slot], StandardCharsets.UTF_8), sequence);
+    }
+
+    /**
+     * Drop the given number of messages from the start of the list.
+     *
+     * @param number Number of messages to drop.
+     */
+    private void removeOldest(final int number) {
+        int remaining = Math.min(number, coldCount + count);
+
+        // Compressed messages go first, a whole block at a time.
+        int droppedBlocks = 0;
+        while (remaining > 0 && coldCount > 0) {
+            final BackbufferBlock block = coldBlocks.get(droppedBlocks);
+            final int fromBlock = Math.min(remaining, block.size() - coldSkip);
+            coldCount -= fromBlock;
+            coldSkip += fromBlock;
+            remaining -= fromBlock;
+            if (coldSkip == block.size()) {
+                coldBytes -= block.getCompressedSize();
+                coldSkip = 0;
+                droppedBlocks++;
+            }
+        }
+        coldBlocks.subList(0, droppedBlocks).clear();
+
+        // Then the uncompressed ones, in one step.
+        if (remaining > 0) {
+            if (hotLimit > 0 && count > hotLimit) {
+                pendingBytes -= getBytes(Math.min(remaining, count - hotLimit));
+            }
+            dataBytes -= getBytes(remaining);
+            head = (head + remaining) % times.length;
+            firstSequence += remaining;
+            count -= remaining;
+        }
+        if (count == 0) {
+            head = 0;
+            writePos = 0;
+        }
+        modCount++;
+    }
+
+    /**
+     * Get the number of bytes used by the oldest uncompressed messages.
+     *
+     * @param number Number of messages, at least 1 and at most the number
+     *               of uncompressed messages.
+     * @return Number of bytes used by the messages.
+     */
+    private int getBytes(final int number) {
+        return ends[(head + number - 1) % times.length] - ends[head] + lengths[head];
+    }
+
+    /**
+     * Compress the oldest uncompressed messages while there is at least a
+     * block's worth of them beyond the hot limit.
+     */
+    private void compressPending() {
+        while (hotLimit > 0 && pendingBytes >= blockSize) {
+            int number = 0;
+            int bytes = 0;
+            while (bytes < blockSize) {
+                bytes += lengths[(head + number) % times.length];
+                number++;
+            }
+
+            final long[] blockTimes = new long[number];
+            final int[] blockEnds = new int[number];
+            final byte[] blockData = new byte[bytes];
+            int pos = 0;
+            for (int i = 0; i < number; i++) {
+                final int slot = (head + i) % times.length;
+                blockTimes[i] = times[slot];
+                System.arraycopy(data, offsets[slot], blockData, pos, lengths[slot]);
+                pos += lengths[slot];
+                blockEnds[i] = pos;
+            }
+
+            final BackbufferBlock block = new BackbufferBlock(firstSequence, blockTimes, blockEnds, blockData, bytes);
+            coldBlocks.add(block);
+            coldBytes += block.getCompressedSize();
+            coldCount += number;
+
+            head = (head + number) % times.length;
+            firstSequence += number;
+            count -= number;
+            dataBytes -= bytes;
+            pendingBytes -= bytes;
+        }
+
+        // Give back the memory that the compressed messages were using.
+        if (data.length > Math.max(INITIAL_DATA, (dataBytes + 1) * 4)) {
+            compact(Math.max(INITIAL_DATA, (dataBytes + 1) * 2));
+        }
+        if (times.length > Math.max(INITIAL_SLOTS, count * 4)) {
+            resizeSlots(Math.max(INITIAL_SLOTS, count * 2));
+        }
+    }
+
+    /**
+     * Increase the number of slots available, up to the capacity of the list.
+     */
+    private void growSlots() {
+        resizeSlots(Math.min(capacity, Math.max(INITIAL_SLOTS, times.length * 2)));
+    }
+
+    /**
+     * Change the number of slots available.
+     *
+     * @param newSize New number of slots, at least the number of messages
+     *                stored.
+     */
+    private void resizeSlots(final int newSize) {
+        final long[] newTimes = new long[newSize];
+        final int[] newOffsets = new int[newSize];
+        final int[] newLengths = new int[newSize];
+        final int[] newEnds = new int[newSize];
+        for (int i = 0; i < count; i++) {
+            final int slot = (head + i) % times.length;
+            newTimes[i] = times[slot];
+            newOffsets[i] = offsets[slot];
+            newLengths[i] = lengths[slot];
+            newEnds[i] = ends[slot];
+        }
+        times = newTimes;
+        offsets = newOffsets;
+        lengths = newLengths;
+        ends = newEnds;
+        head = 0;
+    }
+
+    /**
+     * Find a contiguous region of the data area for a new message, growing
+     * the data area if needed.
+     *
+     * Messages never wrap around the end of the data area, if there is not
+     * enough room at the end a message is placed at the start instead. A gap
+     * of at least one byte is always left before the oldest message, so that
+     * the write position only ever equals the read position when the list is
+     * empty.
+     *
+     * @param length Number of bytes needed.
+     * @return Offset to write the message at.
+     */
+    private int reserve(final int length) {
+        if (count > 0) {
+            final int readPos = offsets[head];
+            if (writePos > readPos) {
+                if (data.length - writePos >= length) {
+                    return writePos;
+                } else if (length < readPos) {
+                    return 0;
+                }
+            } else if (readPos - writePos > length) {
+                return writePos;
+            }
+        } else if (data.length > length) {
+            return 0;
+        }
+
+        // Leave as much free space again as is in use, so that compacting
+        // happens rarely and the data area shrinks along with the capacity.
+        compact(Math.max(INITIAL_DATA, (dataBytes + length + 1) * 2));
+        return writePos;
+    }
+
+    /**
+     * Copy all stored messages to the start of a new data area.
+     *
+     * @param newSize Size of the new data area.
+     */
+    private void compact(final int newSize) {
+        final byte[] newData = new byte[newSize];
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            final int slot = (head + i) % times.length;
+            System.arraycopy(data, offsets[slot], newData, pos, lengths[slot]);
+            offsets[slot] = pos;
+            pos += lengths[slot];
+        }
+        data = newData;
+        writePos = pos;
+    }
+
+    /**
+     * Iterates over a range of messages in a BackbufferList without holding
+     * the lock between calls.
+     *
+     * Messages are decoded a small batch at a time, so appends from other
+     * threads are only held up for as long as it takes to decode one batch.
+     */
+    public class Cursor implements BackbufferCursor {
+
+        /** Sequence number of the next message to decode. */
+        private long nextSequence;
+
+        /** Sequence number after the last message to return. */
+        private final long endSequence;
+
+        /** Messages older than this are skipped. */
+        private final long earliestTime;
+
+        /** Number of messages in range when the cursor was created. */
+        private final int size;
+
+        /** Messages decoded but not yet returned. */
+        private final BackbufferMessage[] batch = new BackbufferMessage[CURSOR_BATCH];
+
+        /** Position in {@link #batch} of the next message to return. */
+        private int batchPos;
+
+        /** Compressed block that was most recently inflated. */
+        private BackbufferBlock inflatedBlock;
+
+        /** Uncompressed data of {@link #inflatedBlock}. */
+        private byte[] inflated;
+
+        /** Number of messages in {@link #batch}. */
+        private int batchSize;
+
+        /**
+         * Create a new Cursor.
+         *
+         * @param startSequence Sequence number of the first message to return
+         * @param endSequence Sequence number after the last message to return
+         * @param earliestTime Messages older than this are skipped
+         */
+        private Cursor(final long startSequence, final long endSequence, final long earliestTime) {
+            this.nextSequence = startSequence;
+            this.endSequence = endSequence;
+            this.earliestTime = earliestTime;
+            this.size = (int) (endSequence - startSequence);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (batchPos >= batchSize) {
+                fill();
+            }
+            return batchPos < batchSize;
+        }
+
+        @Override
+        public BackbufferMessage next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final BackbufferMessage message = batch[batchPos];
+            batch[batchPos++] = null;
+            return message;
+        }
+
+        /**
+         * Decode the next batch of messages.
+         *
+         * Compressed blocks never change once created, so they are inflated
+         * without holding the lock, and appends are not held up by them.
+         */
+        private void fill() {
+            batchPos = 0;
+            batchSize = 0;
+            while (true) {
+                final BackbufferBlock block;
+                synchronized (BackbufferList.this) {
+                    block = decode();
+                }
+                if (block == null) {
+                    return;
+                }
+                inflated = block.inflate();
+                inflatedBlock = block;
+            }
+        }
+
+        /**
+         * Decode messages into the batch until it is full, there are no more
+         * messages, or a message is in a block that has not been inflated.
+         * The lock must be held when calling this.
+         *
+         * @return The block that needs inflating, or null if none does
+         */
+        private BackbufferBlock decode() {
+            // Skip anything that has been dropped since we last looked.
+            nextSequence = Math.max(nextSequence, getColdSequence());
+            final long end = Math.min(endSequence, firstSequence + count);
+
+            // Messages are stored in time order, so rather than checking
+            // each one, skip straight past any that are too old.
+            if (nextSequence < end && timeAt((int) (nextSequence - getColdSequence())) < earliestTime) {
+                nextSequence = Math.max(nextSequence, findSequence(earliestTime));
+            }
+            while (nextSequence < end && batchSize < batch.length) {
+                if (nextSequence < firstSequence) {
+                    // Only inflate blocks that have something we want.
+                    final BackbufferBlock block = findBlock(nextSequence);
+                    final int position = (int) (nextSequence - block.getFirstSequence());
+                    if (block.getTime(position) >= earliestTime) {
+                        if (block != inflatedBlock) {
+                            return block;
+                        }
+                        batch[batchSize++] = block.get(inflated, position);
+                    }
+                } else {
+                    final int slot = (head + (int) (nextSequence - firstSequence)) % times.length;
+                    if (times[slot] >= earliestTime) {
+                        batch[batchSize++] = getSlot(slot, nextSequence);
+                    }
+                }
+                nextSequence++;
+            }
+            return null;
+        }
+    }
+}
@@ -32,6 +32,9 @@ public class BackbufferMessage {
     /** The message. */
     private final String message;
 
+    /** Sequence number of this message in its backbuffer, or -1 if unknown. */
+    private final long sequence;
+
     /**
      * Create a new BackbufferMessage.
      *
@@ -39,8 +42,20 @@ public class BackbufferMessage {
      * @param message Message.
      */
     public BackbufferMessage(final long time, final String message) {
+        this(time, message, -1);
+    }
+
+    /**
+     * Create a new BackbufferMessage.
+     *
+     * @param time Timestamp.
+     * @param message Message.
+     * @param sequence Sequence number of this message in its backbuffer.
+     */
+    public BackbufferMessage(final long time, final String message, final long sequence) {
         this.time = time;
         this.message = message;
+        this.sequence = sequence;
     }
 
     /**
@@ -60,4 +75,13 @@ public class BackbufferMessage {
     public long getTime() {
         return time;
     }
+
+    /**
+     * Get the sequence number of this message in the backbuffer it came from.
+     *
+     * @return Sequence number for this message, or -1 if unknown.
+     */
+    public long getSequence() {
+        return sequence;
+    }
 }
@@ -63,14 +63,14 @@ public abstract class ExtendableWriter extends Writer {
     public void flush() throws IOException {
         // Store lines.
         synchronized (sb) {
-            final String[] bits = sb.toString().split("\n", -1);
-            for (int i = 0; i < bits.length-1; i++) {
-                addNewLine(bits[i]);
-            }
-            sb.setLength(0);
-            if (bits[bits.length-1].length() > 0) {
-                sb.append(bits[bits.length-1]);
+            int start = 0;
+            for (int i = 0; i < sb.length(); i++) {
+                if (sb.charAt(i) == '\n') {
+                    addNewLine(sb.substring(start, i));
+                    start = i + 1;
+                }
             }
+            sb.delete(0, start);
         }
     }
 
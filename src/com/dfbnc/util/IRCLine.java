@@ -21,19 +21,25 @@
  */
 package com.dfbnc.util;
 
-import java.util.Map;
-import java.util.Map.Entry;
-
 /**
  * This class represents a line of IRC Data with support for message tags.
- * (See: http://ircv3.atheme.org/specification/message-tags-3.2)
+ * (See: http://ircv3.net/specs/core/message-tags-3.2.html)
+ *
+ * Lines are immutable. The tags are kept already escaped, separately from the
+ * rest of the line, and the full line is only put together the first time it
+ * is needed. This means a line can be sent to many clients without being
+ * rebuilt, and sent without its tags to clients that don't support them
+ * without any extra work.
  */
-public class IRCLine {
-    /** The line to send. */
-    final String line;
+public final class IRCLine {
+    /** Escaped tags for this line, without the leading '@', or "" for none. */
+    private final String tags;
+
+    /** The line without any tags. */
+    private final String body;
 
-    /** Tags for this line. */
-    final Map<String, String> messageTags;
+    /** The full line, built when first needed. */
+    private volatile String encoded;
 
     /**
      * Create a new IRCLine without any message tags.
@@ -41,18 +47,61 @@ public class IRCLine {
      * @param line Line to create.
      */
     public IRCLine(final String line) {
-        this(line, null);
+        this("", line);
     }
 
     /**
-     * Create a new IRCLine with some message tags.
+     * Create a new IRCLine.
      *
-     * @param line Line to create.
-     * @param messageTags Tags for this line.
+     * @param tags Escaped tags, without the leading '@'.
+     * @param body The line without any tags.
+     */
+    private IRCLine(final String tags, final String body) {
+        this.tags = tags == null ? "" : tags;
+        this.body = body;
+        if (this.tags.isEmpty()) {
+            encoded = body;
+        }
+    }
+
+    /**
+     * Create a new IRCLine from tags that have already been escaped.
+     *
+     * @param tags Escaped tags, without the leading '@', or null or "" for
+     *             none.
+     * @param body The line without any tags.
+     * @return The new line.
+     */
+    public static IRCLine fromEncoded(final String tags, final String body) {
+        return new IRCLine(tags, body);
+    }
+
+    /**
+     * Get the escaped tags for this line.
+     *
+     * @return Escaped tags without the leading '@', or "" if there are none.
+     */
+    public String getEncodedTags() {
+        return tags;
+    }
+
+    /**
+     * Get the line without any tags.
+     *
+     * @return The line without any tags.
+     */
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * Get the line to send to a client.
+     *
+     * @param withTags Should tags be included?
+     * @return The full line if withTags is true, else the line without tags.
      */
-    public IRCLine(final String line, final Map<String, String> messageTags) {
-        this.line = line;
-        this.messageTags = messageTags;
+    public String toString(final boolean withTags) {
+        return withTags ? toString() : body;
     }
 
     /**
@@ -64,22 +113,77 @@ public class IRCLine {
      */
     @Override
     public String toString() {
-        if (messageTags == null || messageTags.isEmpty()) { return line; }
+        String result = encoded;
+        if (result == null) {
+            result = new StringBuilder(tags.length() + body.length() + 2).append('@').append(tags).append(' ').append(body).toString();
+            encoded = result;
+        }
+        return result;
+    }
+
+    /**
+     * Append a tag to some already escaped tags.
+     *
+     * @param output Escaped tags to append to
+     * @param key Tag name
+     * @param value Tag value, or null or empty for none
+     */
+    public static void appendTag(final StringBuilder output, final String key, final String value) {
+        if (output.length() > 0) {
+            output.append(';');
+        }
+        output.append(key);
+        if (value != null && !value.isEmpty()) {
+            output.append('=');
+            appendEscaped(output, value);
+        }
+    }
 
-        final StringBuilder output = new StringBuilder("@");
-        boolean first = true;
-        for (final Entry<String,String> s : messageTags.entrySet()) {
-            if (!first) { output.append(";"); }
-            output.append(s.getKey());
-            if (s.getValue() != null && !s.getValue().isEmpty()) {
-                output.append("=");
-                output.append(s.getValue());
+    /**
+     * Escape a message tag value.
+     *
+     * @param output Where to put the escaped value
+     * @param value Value to escape
+     */
+    public static void appendEscaped(final StringBuilder output, final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case ';': output.append("\\:"); break;
+                case ' ': output.append("\\s"); break;
+                case '\\': output.append("\\\\"); break;
+                case '\r': output.append("\\r"); break;
+                case '\n': output.append("\\n"); break;
+                default: output.append(c); break;
             }
-            first = false;
         }
+    }
 
-        output.append(" ");
-        output.append(line);
-        return output.toString();
+    /**
+     * Unescape a message tag value.
+     *
+     * @param value Escaped value
+     * @return Unescaped value.
+     */
+    public static String unescapeTag(final String value) {
+        if (value.indexOf('\\') == -1) {
+            return value;
+        }
+        final StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c != '\\') {
+                result.append(c);
+            } else if (++i < value.length()) {
+                switch (value.charAt(i)) {
+                    case ':': result.append(';'); break;
+                    case 's': result.append(' '); break;
+                    case 'r': result.append('\r'); break;
+                    case 'n': result.append('\n'); break;
+                    default: result.append(value.charAt(i)); break;
+                }
+            }
+        }
+        return result.toString();
     }
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.util;
+
+/**
+ * Builds lines of IRC data piece by piece, without parsing a format string.
+ *
+ * Each thread has one builder which is reused for every line, so building a
+ * line only allocates the final String:
+ *
+ * <pre>
+ * IRCLineBuilder.get().source(server).command("NOTICE").param(nick).trailing(text).build();
+ * </pre>
+ *
+ * Tags can be added at any point, they always end up at the start.
+ *
+ * If something used while building a line (eg, a helper that formats one of
+ * its parameters) builds a line of its own, it is given a new builder rather
+ * than this thread's one, so the outer line is not disturbed.
+ */
+public final class IRCLineBuilder {
+
+    /** Builder for each thread. */
+    private static final ThreadLocal<IRCLineBuilder> BUILDERS = ThreadLocal.withInitial(IRCLineBuilder::new);
+
+    /** Largest buffer to keep between lines. */
+    private static final int MAX_KEPT = 4096;
+
+    /** Tags for the line, without the leading @. */
+    private StringBuilder tags = new StringBuilder(128);
+
+    /** The line itself. */
+    private StringBuilder line = new StringBuilder(512);
+
+    /** Is a line being built with this builder? */
+    private boolean building;
+
+    /**
+     * Create a new IRCLineBuilder.
+     */
+    private IRCLineBuilder() { }
+
+    /**
+     * Get this thread's builder, ready to build a new line.
+     *
+     * The builder must not be kept after {@link #build()} is called.
+     *
+     * @return An empty builder.
+     */
+    public static IRCLineBuilder get() {
+        final IRCLineBuilder builder = BUILDERS.get();
+        if (builder.building) {
+            // Called while this thread's line is still being built.
+            return new IRCLineBuilder();
+        }
+        builder.reset();
+        builder.building = true;
+        return builder;
+    }
+
+    /**
+     * Empty this builder, dropping any buffers that have grown too big.
+     */
+    private void reset() {
+        if (tags.capacity() > MAX_KEPT) {
+            tags = new StringBuilder(128);
+        }
+        if (line.capacity() > MAX_KEPT) {
+            line = new StringBuilder(512);
+        }
+        tags.setLength(0);
+        line.setLength(0);
+    }
+
+    /**
+     * Add a message tag.
+     *
+     * @param key Tag name
+     * @param value Tag value, or null or empty for none. This will be escaped
+     *              as needed.
+     * @return This builder.
+     */
+    public IRCLineBuilder tag(final String key, final String value) {
+        IRCLine.appendTag(tags, key, value);
+        return this;
+    }
+
+    /**
+     * Set the source of the line. This must be called before anything
+     * other than tags.
+     *
+     * @param source Source (eg, server name or nick!user@host)
+     * @return This builder.
+     */
+    public IRCLineBuilder source(final Object source) {
+        line.append(':').append(source);
+        return this;
+    }
+
+    /**
+     * Set the source of the line to a full hostmask.
+     *
+     * @param nick Nickname
+     * @param user Username
+     * @param host Hostname
+     * @return This builder.
+     */
+    public IRCLineBuilder source(final String nick, final String user, final String host) {
+        line.append(':').append(nick).append('!').append(user).append('@').append(host);
+        return this;
+    }
+
+    /**
+     * Add the command.
+     *
+     * @param command Command
+     * @return This builder.
+     */
+    public IRCLineBuilder command(final String command) {
+        return param(command);
+    }
+
+    /**
+     * Add a numeric as the command, zero padded to three digits.
+     *
+     * @param numeric Numeric
+     * @return This builder.
+     */
+    public IRCLineBuilder command(final int numeric) {
+        space();
+        if (numeric < 100) {
+            line.append('0');
+        }
+        if (numeric < 10) {
+            line.append('0');
+        }
+        line.append(numeric);
+        return this;
+    }
+
+    /**
+     * Add a middle parameter, or several already separated by spaces.
+     *
+     * @param param Parameter(s)
+     * @return This builder.
+     */
+    public IRCLineBuilder param(final Object param) {
+        space();
+        line.append(param);
+        return this;
+    }
+
+    /**
+     * Add the trailing parameter. Nothing else should be added after this.
+     *
+     * @param trailing Parameter
+     * @return This builder.
+     */
+    public IRCLineBuilder trailing(final String trailing) {
+        space();
+        line.append(':').append(trailing);
+        return this;
+    }
+
+    /**
+     * Add a separating space, if needed.
+     */
+    private void space() {
+        if (line.length() > 0) {
+            line.append(' ');
+        }
+    }
+
+    /**
+     * Get the line that has been built.
+     *
+     * @return The line, with any tags.
+     */
+    public String build() {
+        building = false;
+        if (tags.length() == 0) {
+            return line.toString();
+        }
+        return new StringBuilder(tags.length() + line.length() + 2).append('@').append(tags).append(' ').append(line).toString();
+    }
+
+    /**
+     * Get the line that has been built, with the tags kept separate so that
+     * they can be left off for clients that don't support them.
+     *
+     * @return The line.
+     */
+    public IRCLine buildLine() {
+        building = false;
+        return IRCLine.fromEncoded(tags.toString(), line.toString());
+    }
+}
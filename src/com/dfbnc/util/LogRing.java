@@ -0,0 +1,486 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Lock-free ring of log lines, written to by many threads and read by one.
+ *
+ * Writers claim the next sequence number and store their line in the slot
+ * for it, without taking any locks or allocating anything. Once the ring is
+ * full the oldest lines are overwritten. A writer that has been lapped while
+ * it was stalled drops its line rather than overwrite a newer one. A single consumer can read every
+ * line in order with {@link #read(long, Consumer, LongConsumer)}, and is told
+ * how many lines it missed if it falls more than the backlog behind. Anything
+ * can take a snapshot of the most recent lines with {@link #getLines()}.
+ */
+public class LogRing {
+
+    /** Default number of lines that the consumer can fall behind by. */
+    public static final int DEFAULT_BACKLOG = 1024;
+
+    /** Added to the next sequence number of storage that has been replaced. */
+    private static final long CLOSED = 1L << 62;
+
+    /** Sequence number of a slot that has never been written. */
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    /**
+     * Longest time to wait for lines that are still being written when
+     * resizing, in nanoseconds. Lines that take longer are dropped.
+     */
+    private static final long COPY_WAIT = 100_000_000L;
+
+    /** Number of lines to keep for {@link #getLines()}. */
+    private volatile int capacity;
+
+    /** Number of lines that the consumer can fall behind by. */
+    private volatile int backlog;
+
+    /** Current storage. */
+    private volatile Slots slots;
+
+    /** Storage being read by {@link #read(long, Consumer)}. */
+    private Slots reading;
+
+    /**
+     * Create a new LogRing.
+     *
+     * @param capacity Number of lines to keep
+     */
+    public LogRing(final int capacity) {
+        this(capacity, DEFAULT_BACKLOG);
+    }
+
+    /**
+     * Create a new LogRing.
+     *
+     * @param capacity Number of lines to keep
+     * @param backlog Number of lines that the consumer can fall behind by
+     *                before lines are dropped
+     */
+    public LogRing(final int capacity, final int backlog) {
+        this.capacity = Math.max(0, capacity);
+        this.backlog = Math.max(1, backlog);
+        this.slots = new Slots(Slots.sizeFor(this.capacity, this.backlog), 0);
+        this.reading = slots;
+    }
+
+    /**
+     * Get the number of lines kept.
+     *
+     * @return Number of lines kept.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the number of lines kept.
+     *
+     * @param newValue Number of lines to keep
+     */
+    public synchronized void setCapacity(final int newValue) {
+        resize(Math.max(0, newValue), backlog);
+    }
+
+    /**
+     * Get the number of lines that the consumer can fall behind by.
+     *
+     * @return Number of lines the consumer can fall behind by.
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Set the number of lines that the consumer can fall behind by before
+     * lines are dropped.
+     *
+     * @param newValue Number of lines the consumer can fall behind by
+     */
+    public synchronized void setBacklog(final int newValue) {
+        resize(capacity, Math.max(1, newValue));
+    }
+
+    /**
+     * Resize the storage if needed.
+     *
+     * @param newCapacity Number of lines to keep
+     * @param newBacklog Number of lines the consumer can fall behind by
+     */
+    private void resize(final int newCapacity, final int newBacklog) {
+        final Slots current = slots;
+        final int size = Slots.sizeFor(newCapacity, newBacklog);
+        if (size != current.lines.length()) {
+            // Stop anything else being added to the current storage, then
+            // copy over what is there.
+            final long end = current.close();
+            final long start = Math.max(current.getFirst(end), end - newCapacity);
+            final Slots replacement = new Slots(size, start);
+            final long deadline = System.nanoTime() + COPY_WAIT;
+            for (long sequence = start; sequence < end; sequence++) {
+                // Every sequence number up to the end has been claimed by a
+                // writer, wait (for a while) for any still being written.
+                String line;
+                while ((line = current.get(sequence)) == null && current.isPending(sequence) && System.nanoTime() < deadline) {
+                    Thread.yield();
+                }
+                if (line != null) {
+                    replacement.copy(sequence, line);
+                }
+            }
+            replacement.copied = end;
+            replacement.next.set(end);
+            current.replacement = replacement;
+            slots = replacement;
+        }
+        capacity = newCapacity;
+        backlog = newBacklog;
+    }
+
+    /**
+     * Add a line to the ring.
+     *
+     * @param line Line to add
+     */
+    public void add(final String line) {
+        while (!slots.add(line)) {
+            // Being resized, try again once the new storage is in place.
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Get the sequence number the next line will be given.
+     *
+     * @return Sequence number of the next line.
+     */
+    public long getNextSequence() {
+        return slots.getLimit();
+    }
+
+    /**
+     * Get the number of lines that {@link #getLines()} would return.
+     *
+     * @return Number of lines available.
+     */
+    public int size() {
+        final Slots current = slots;
+        final long limit = current.getLimit();
+        return (int) Math.min(capacity, limit - current.getFirst(limit));
+    }
+
+    /**
+     * Get the most recent lines.
+     *
+     * @return Up to {@link #getCapacity()} of the most recent lines, oldest
+     *         first.
+     */
+    public List<String> getLines() {
+        final Slots current = slots;
+        final long limit = current.getLimit();
+        final List<String> result = new ArrayList<>();
+        for (long sequence = Math.max(current.getFirst(limit), limit - capacity); sequence < limit; sequence++) {
+            final String line = current.get(sequence);
+            if (line != null) {
+                result.add(line);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Pass lines to the given consumer, in order, starting from the given
+     * sequence number. This must only be called by one thread at a time.
+     *
+     * Reading stops at the first line that has not finished being written.
+     * If the reader has fallen so far behind that lines have been
+     * overwritten, those lines are skipped.
+     *
+     * @param sequence Sequence number of the first line to read
+     * @param consumer Consumer to pass lines to
+     * @return Sequence number of the next line to read.
+     */
+    public long read(final long sequence, final Consumer<String> consumer) {
+        return read(sequence, consumer, count -> { });
+    }
+
+    /**
+     * Pass lines to the given consumer, in order, starting from the given
+     * sequence number. This must only be called by one thread at a time.
+     *
+     * Reading stops at the first line that has not finished being written.
+     * If the reader has fallen so far behind that lines have been
+     * overwritten (or lines were dropped by writers), those lines are
+     * skipped, and the number skipped is passed to the skipped consumer at
+     * the point they would have been read.
+     *
+     * @param sequence Sequence number of the first line to read
+     * @param consumer Consumer to pass lines to
+     * @param skipped Consumer to pass the number of lines skipped to
+     * @return Sequence number of the next line to read.
+     */
+    public long read(final long sequence, final Consumer<String> consumer, final LongConsumer skipped) {
+        long position = sequence;
+        while (true) {
+            final Slots current = reading;
+            final long limit = current.getLimit();
+            position = skip(position, current.getFirst(limit), skipped);
+            while (position < limit) {
+                final String line = current.get(position);
+                if (line == null) {
+                    final long first = current.getFirst(current.getLimit());
+                    if (position >= first && current.isPending(position)) {
+                        // Not finished being written yet.
+                        return position;
+                    }
+                    // Overwritten while we were reading, or dropped, skip
+                    // ahead.
+                    position = skip(position, Math.max(first, position + 1), skipped);
+                    continue;
+                }
+                consumer.accept(line);
+                position++;
+            }
+
+            final Slots replacement = current.replacement;
+            if (replacement == null || position < current.replacedAt) {
+                return position;
+            }
+            reading = replacement;
+        }
+    }
+
+    /**
+     * Skip ahead to the given position, if we are not already past it.
+     *
+     * @param position Current position
+     * @param target Position to skip to
+     * @param skipped Consumer to pass the number of lines skipped to
+     * @return New position
+     */
+    private static long skip(final long position, final long target, final LongConsumer skipped) {
+        if (target <= position) {
+            return position;
+        }
+        skipped.accept(target - position);
+        return target;
+    }
+
+    /**
+     * Storage for a ring. Replaced as a whole when the ring is resized.
+     */
+    private static final class Slots {
+
+        /** Lines in each slot. */
+        final AtomicReferenceArray<String> lines;
+
+        /**
+         * Sequence number of the line in each slot. While a line is being
+         * written this is the complement of its sequence number, and a slot
+         * that has never been written is EMPTY.
+         */
+        final AtomicLongArray sequences;
+
+        /** Mask to turn a sequence number into a slot. */
+        final int mask;
+
+        /** Oldest sequence number this storage has ever held. */
+        final long start;
+
+        /** Sequence number the next line will be given. */
+        final AtomicLong next;
+
+        /**
+         * Lines before this were copied in when this storage was created, so
+         * any that are missing will never be written.
+         */
+        long copied;
+
+        /** Storage that replaced this, if any. */
+        volatile Slots replacement;
+
+        /** Sequence number that the replacement starts at. */
+        volatile long replacedAt = Long.MAX_VALUE;
+
+        /**
+         * Create new Slots.
+         *
+         * @param size Number of slots, a power of two
+         * @param start Sequence number of the first line
+         */
+        Slots(final int size, final long start) {
+            lines = new AtomicReferenceArray<>(size);
+            sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, EMPTY);
+            }
+            mask = size - 1;
+            this.start = start;
+            this.copied = start;
+            next = new AtomicLong(start);
+        }
+
+        /**
+         * Get the number of slots to use for the given capacity.
+         *
+         * @param capacity Number of lines that need to be kept
+         * @param backlog Number of lines the consumer can fall behind by
+         * @return A power of two at least as big as the capacity and backlog
+         */
+        static int sizeFor(final int capacity, final int backlog) {
+            final int wanted = Math.max(capacity, backlog);
+            int size = 1;
+            while (size < wanted && size < (1 << 30)) {
+                size <<= 1;
+            }
+            return size;
+        }
+
+        /**
+         * Get the sequence number after the last line that may be stored.
+         *
+         * @return Sequence number after the last line
+         */
+        long getLimit() {
+            final long limit = next.get();
+            if (limit < CLOSED) {
+                return limit;
+            }
+            // Writers that were turned away still bumped the count, but
+            // nothing was stored for them.
+            return Math.min(replacedAt, limit - CLOSED);
+        }
+
+        /**
+         * Get the oldest sequence number that may still be stored.
+         *
+         * @param limit Sequence number after the last line
+         * @return Oldest sequence number that may be stored
+         */
+        long getFirst(final long limit) {
+            return Math.max(start, limit - lines.length());
+        }
+
+        /**
+         * Stop any more lines being added.
+         *
+         * @return Sequence number after the last line that will be stored
+         */
+        long close() {
+            final long limit = next.getAndAdd(CLOSED);
+            replacedAt = limit;
+            return limit;
+        }
+
+        /**
+         * Add a line.
+         *
+         * @param line Line to add
+         * @return False if this storage has been replaced and the line was
+         *         not added.
+         */
+        boolean add(final String line) {
+            final long sequence = next.getAndIncrement();
+            if (sequence >= CLOSED) {
+                return false;
+            }
+            final int slot = (int) sequence & mask;
+            while (true) {
+                final long current = sequences.get(slot);
+                if (current != EMPTY && decode(current) > sequence) {
+                    // Lapped while stalled, the newer line wins.
+                    return true;
+                }
+                if (current < 0 && current != EMPTY) {
+                    // The line from the previous lap is still being written.
+                    Thread.yield();
+                } else if (sequences.compareAndSet(slot, current, ~sequence)) {
+                    lines.set(slot, line);
+                    sequences.set(slot, sequence);
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Check if the line with the given sequence number may still be
+         * written to its slot.
+         *
+         * @param sequence Sequence number to check
+         * @return True if the line has not been written or dropped yet.
+         */
+        boolean isPending(final long sequence) {
+            if (sequence < copied) {
+                return false;
+            }
+            final long current = sequences.get((int) sequence & mask);
+            return current == EMPTY || decode(current) < sequence || current == ~sequence;
+        }
+
+        /**
+         * Get the sequence number a slot's value refers to.
+         *
+         * @param value Value from {@link #sequences}, other than EMPTY
+         * @return Sequence number stored or being written
+         */
+        private static long decode(final long value) {
+            return value < 0 ? ~value : value;
+        }
+
+        /**
+         * Copy a line in while this storage is being created.
+         *
+         * @param sequence Sequence number of the line
+         * @param line Line to copy
+         */
+        void copy(final long sequence, final String line) {
+            final int slot = (int) sequence & mask;
+            lines.set(slot, line);
+            sequences.set(slot, sequence);
+        }
+
+        /**
+         * Get the line with the given sequence number.
+         *
+         * @param sequence Sequence number to get
+         * @return The line, or null if it is not stored or is being written.
+         */
+        String get(final long sequence) {
+            final int slot = (int) sequence & mask;
+            if (sequences.get(slot) != sequence) {
+                return null;
+            }
+            final String line = lines.get(slot);
+            return sequences.get(slot) == sequence ? line : null;
+        }
+    }
+}
@@ -26,24 +26,61 @@ package com.dfbnc.util;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Writer that adds lines to multiple writers.
  * If a writer fails any operation, it will be removed from the list
  * automatically.
+ *
+ * Lines are added to a {@link LogRing} without locking, and a single
+ * background thread passes them on to the other writers, so threads that
+ * log never wait for slow writers (or each other). If the writers fall more
+ * than the ring's backlog behind, the lines they missed are replaced with a
+ * note saying how many were dropped.
  */
 public class MultiWriter extends Writer {
 
-    /** List of lines that have been written to this BufferedWriter. */
-    private final List<Writer> writers = new LinkedList<>();
+    /** How long to wait for lines to be written before giving up. */
+    private static final long DELIVERY_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+    /** List of writers to pass lines to. */
+    private final List<Writer> writers = new CopyOnWriteArrayList<>();
+
+    /** Ring that lines are added to. */
+    private final LogRing ring;
+
+    /** Partial line written by each thread. */
+    private final ThreadLocal<StringBuilder> partial = ThreadLocal.withInitial(StringBuilder::new);
+
+    /** Thread that passes lines to the writers. */
+    private final Thread consumer;
+
+    /** Sequence number of the next line to pass to the writers. */
+    private volatile long delivered;
+
+    /** Number of lines that were dropped before reaching the writers. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /** Is this writer still open? */
+    private volatile boolean running = true;
 
     /**
      * Create a new MultiWriter.
+     *
+     * @param ring Ring to add lines to.
      */
-    public MultiWriter() { }
+    public MultiWriter(final LogRing ring) {
+        this.ring = ring;
+        this.delivered = ring.getNextSequence();
+        consumer = new Thread(this::deliverLines, "MultiWriter");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
 
     /**
      * Add the given writer to the list of writers.
@@ -58,49 +95,135 @@ public class MultiWriter extends Writer {
 
     /**
      * Remove the given writer from the list of writers.
+     * Lines that have already been written are passed to it first.
      * NOTE: This will not close the writer.
      *
      * @param writer Writer to add.
      */
     public synchronized void removeWriter(final Writer writer) {
+        awaitDelivery();
         writers.remove(writer);
     }
 
     @Override
-    public synchronized void write(char[] cbuf, int off, int len) throws IOException {
-        for (final Iterator<Writer> i = writers.iterator(); i.hasNext(); ) {
-            final Writer w = i.next();
-            try {
-                w.write(cbuf, off, len);
-            } catch (final IOException ioe) {
-                i.remove();
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        final StringBuilder line = partial.get();
+        boolean added = false;
+        for (int i = off; i < off + len; i++) {
+            if (cbuf[i] == '\n') {
+                ring.add(line.toString());
+                line.setLength(0);
+                added = true;
+            } else {
+                line.append(cbuf[i]);
             }
         }
+        if (added) {
+            LockSupport.unpark(consumer);
+        }
     }
 
     @Override
-    public synchronized void flush() throws IOException {
-        for (final Iterator<Writer> i = writers.iterator(); i.hasNext(); ) {
-            final Writer w = i.next();
+    public void flush() throws IOException {
+        // Complete lines are passed on as soon as they are written.
+        LockSupport.unpark(consumer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        awaitDelivery();
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join(TimeUnit.NANOSECONDS.toMillis(DELIVERY_TIMEOUT));
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (!consumer.isAlive()) {
+            // Pass on anything that was written while we were waiting.
+            delivered = ring.read(delivered, this::deliverLine, this::deliverDropped);
+        }
+        for (final Writer w : writers) {
             try {
-                w.flush();
+                w.close();
             } catch (final IOException ioe) {
-                i.remove();
+                writers.remove(w);
             }
         }
     }
 
-    @Override
-    public synchronized void close() throws IOException {
-        for (final Iterator<Writer> i = writers.iterator(); i.hasNext(); ) {
-            final Writer w = i.next();
+    /**
+     * Wait for the lines that have been written so far to be passed on to
+     * the writers.
+     */
+    private void awaitDelivery() {
+        if (Thread.currentThread() == consumer) {
+            return;
+        }
+        final long target = ring.getNextSequence();
+        final long deadline = System.nanoTime() + DELIVERY_TIMEOUT;
+        while (delivered < target && consumer.isAlive() && System.nanoTime() < deadline) {
+            LockSupport.unpark(consumer);
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Pass lines from the ring to the writers until closed.
+     */
+    private void deliverLines() {
+        while (running) {
+            final long position = delivered;
+            final long next = ring.read(position, this::deliverLine, this::deliverDropped);
+            if (next == position) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                continue;
+            }
+
+            for (final Writer w : writers) {
+                try {
+                    w.flush();
+                } catch (final IOException ioe) {
+                    writers.remove(w);
+                }
+            }
+            delivered = next;
+        }
+    }
+
+    /**
+     * Tell each writer that lines were dropped.
+     *
+     * @param count Number of lines dropped.
+     */
+    private void deliverDropped(final long count) {
+        dropped.addAndGet(count);
+        deliverLine("*** " + count + " log lines dropped ***");
+    }
+
+    /**
+     * Get the number of lines that were dropped before reaching the writers.
+     *
+     * @return Number of lines dropped.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Pass a single line to each writer.
+     *
+     * @param line Line to pass on.
+     */
+    private void deliverLine(final String line) {
+        for (final Writer w : writers) {
             try {
-                w.close();
+                w.write(line);
+                w.write('\n');
             } catch (final IOException ioe) {
-                i.remove();
+                writers.remove(w);
             }
         }
     }
 
-
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.util;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Formats times for the IRCv3 server-time tag.
+ * (See: https://ircv3.net/specs/extensions/server-time)
+ *
+ * Replayed messages tend to arrive in bursts, so the date and time up to the
+ * second is cached and only the milliseconds are added for each message.
+ * This class is thread safe.
+ */
+public final class ServerTime {
+
+    /** Format used for the part of the time up to the second. */
+    private static final DateTimeFormatter SECONDS_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss").withZone(ZoneOffset.UTC);
+
+    /** Most recently formatted second. */
+    private static volatile CachedSecond cache = new CachedSecond(Long.MIN_VALUE, "");
+
+    /** Prevent instantiation. */
+    private ServerTime() {
+    }
+
+    /**
+     * Format the given time.
+     *
+     * @param time Time in milliseconds since the epoch
+     * @return The time as yyyy-MM-ddTHH:mm:ss.SSSZ in UTC
+     */
+    public static String format(final long time) {
+        return appendTo(new StringBuilder(24), time).toString();
+    }
+
+    /**
+     * Append the given time to a StringBuilder.
+     *
+     * @param output StringBuilder to append to
+     * @param time Time in milliseconds since the epoch
+     * @return The given StringBuilder
+     */
+    public static StringBuilder appendTo(final StringBuilder output, final long time) {
+        final long second = Math.floorDiv(time, 1000);
+        final int millis = (int) Math.floorMod(time, 1000);
+
+        CachedSecond cached = cache;
+        if (cached.second != second) {
+            cached = new CachedSecond(second, SECONDS_FORMAT.format(Instant.ofEpochSecond(second)));
+            cache = cached;
+        }
+
+        output.append(cached.formatted).append('.');
+        if (millis < 100) { output.append('0'); }
+        if (millis < 10) { output.append('0'); }
+        return output.append(millis).append('Z');
+    }
+
+    /**
+     * A formatted second. Immutable, so it can be shared between threads.
+     */
+    private static final class CachedSecond {
+
+        /** Seconds since the epoch. */
+        final long second;
+
+        /** Formatted second. */
+        final String formatted;
+
+        /**
+         * Create a new CachedSecond.
+         *
+         * @param second Seconds since the epoch
+         * @param formatted Formatted second
+         */
+        CachedSecond(final long second, final String formatted) {
+            this.second = second;
+            this.formatted = formatted;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc;
+
+import com.dfbnc.config.MapConfig;
+import com.dfbnc.servers.ServerType;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link com.dfbnc.AccountManager}.
+ */
+public class AccountManagerTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /** Names of accounts that have been loaded, in order. */
+    private final List<String> loaded = new CopyOnWriteArrayList<>();
+
+    private AccountManager manager;
+
+    private MapConfig defaults;
+
+    @Before
+    public void setUp() throws Exception {
+        manager = new AccountManager(name -> {
+            loaded.add(name);
+            final Account account = mock(Account.class);
+            when(account.getName()).thenReturn(name);
+            return account;
+        });
+        defaults = new MapConfig();
+        defaults.setOption("server", "autoconnect", false);
+    }
+
+    /**
+     * Create an account directory with the given autoconnect setting.
+     *
+     * @param name Account name
+     * @param autoconnect Autoconnect setting, or null to leave it unset
+     */
+    private void createAccount(final String name, final Boolean autoconnect) throws IOException {
+        final File directory = new File(folder.getRoot(), name);
+        directory.mkdirs();
+        final List<String> lines = autoconnect == null
+                ? Collections.emptyList()
+                : Arrays.asList("server:", "    autoconnect=" + autoconnect);
+        Files.write(new File(directory, name + ".conf").toPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Tests that only accounts that autoconnect are loaded at startup.
+     */
+    @Test
+    public void testLazyLoad() throws Exception {
+        // Given one account that autoconnects and two that don't
+        createAccount("alpha", true);
+        createAccount("beta", null);
+        createAccount("gamma", false);
+        folder.newFile("DFBnc.conf");
+
+        // When the accounts are loaded
+        manager.loadAccounts(folder.getRoot(), "DFBnc.conf", defaults, 0);
+
+        // Then only the autoconnect account is loaded, but all are known
+        assertEquals(Collections.singletonList("alpha"), loaded);
+        assertEquals(3, manager.count());
+        assertEquals(Arrays.asList("alpha", "beta", "gamma"), manager.getAccountNames());
+        assertNull(manager.getIfLoaded("beta"));
+        assertEquals(1, manager.getLoadedAccounts().size());
+
+        // And the others are loaded once, when first asked for
+        final Account beta = manager.get("Beta");
+        assertNotNull(beta);
+        assertSame(beta, manager.get("beta"));
+        assertSame(beta, manager.getIfLoaded("beta"));
+        assertEquals(Arrays.asList("alpha", "beta"), loaded);
+        assertEquals(3, manager.count());
+        assertEquals(Arrays.asList("alpha", "beta", "gamma"), manager.getAccountNames());
+    }
+
+    /**
+     * Tests that preloading only loads accounts that autoconnect.
+     */
+    @Test
+    public void testPreloadAccount() throws Exception {
+        // Given accounts that do and don't autoconnect
+        createAccount("on", true);
+        createAccount("off", false);
+        createAccount("unset", null);
+
+        // Then only the account that autoconnects is loaded
+        assertNotNull(manager.preloadAccount(folder.getRoot(), "on", defaults));
+        assertNull(manager.preloadAccount(folder.getRoot(), "off", defaults));
+        assertNull(manager.preloadAccount(folder.getRoot(), "unset", defaults));
+        assertEquals(Collections.singletonList("on"), loaded);
+
+        // And accounts that don't set it use the default
+        defaults.setOption("server", "autoconnect", true);
+        assertNotNull(manager.preloadAccount(folder.getRoot(), "unset", defaults));
+        assertNull(manager.preloadAccount(folder.getRoot(), "off", defaults));
+        assertEquals(Arrays.asList("on", "unset"), loaded);
+    }
+
+    /**
+     * Tests that autoconnects are spread out by the interval.
+     */
+    @Test
+    public void testAutoconnectStaggered() throws Exception {
+        // Given three accounts to autoconnect
+        final ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+        final List<Account> accounts = Arrays.asList(mock(Account.class), mock(Account.class), mock(Account.class));
+
+        // When they are scheduled
+        manager.scheduleAutoconnects(executor, accounts, 500);
+
+        // Then each is connected 500ms after the one before
+        final InOrder order = inOrder(executor);
+        order.verify(executor).schedule(any(Runnable.class), eq(0L), eq(TimeUnit.MILLISECONDS));
+        order.verify(executor).schedule(any(Runnable.class), eq(500L), eq(TimeUnit.MILLISECONDS));
+        order.verify(executor).schedule(any(Runnable.class), eq(1000L), eq(TimeUnit.MILLISECONDS));
+
+        // And a negative interval connects them all straight away
+        final ScheduledExecutorService other = mock(ScheduledExecutorService.class);
+        manager.scheduleAutoconnects(other, accounts, -1);
+        verify(other, times(3)).schedule(any(Runnable.class), eq(0L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Tests that autoconnecting skips accounts that are already connected.
+     */
+    @Test
+    public void testAutoconnect() throws Exception {
+        // Given an account that isn't connected, and one that is
+        final ServerType type = mock(ServerType.class);
+        final ConnectionHandler handler = mock(ConnectionHandler.class);
+        final Account idle = mock(Account.class);
+        final Account connected = mock(Account.class);
+        when(idle.getServerType()).thenReturn(type);
+        when(connected.getServerType()).thenReturn(type);
+        when(connected.getConnectionHandler()).thenReturn(handler);
+        when(type.newConnectionHandler(idle, -1)).thenReturn(handler);
+        final ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+        manager.scheduleAutoconnects(executor, Arrays.asList(idle, connected), 0);
+
+        // When the scheduled autoconnects run
+        final ArgumentCaptor<Runnable> tasks = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor, times(2)).schedule(tasks.capture(), eq(0L), eq(TimeUnit.MILLISECONDS));
+        tasks.getAllValues().forEach(Runnable::run);
+
+        // Then only the account that wasn't connected is connected
+        verify(idle).setConnectionHandler(handler);
+        verify(type, never()).newConnectionHandler(eq(connected), anyInt());
+        verify(connected, never()).setConnectionHandler(any());
+    }
+
+    /**
+     * Tests that an account that fails to load can be loaded later.
+     */
+    @Test
+    public void testFailedLoad() throws Exception {
+        // Given an account that fails to load the first time
+        createAccount("beta", false);
+        final AtomicInteger attempts = new AtomicInteger();
+        manager = new AccountManager(name -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IOException("Disk error");
+            }
+            return mock(Account.class);
+        });
+        manager.loadAccounts(folder.getRoot(), "DFBnc.conf", defaults, 0);
+
+        // When it is asked for
+        assertNull(manager.get("beta"));
+
+        // Then it still exists, and loads when asked for again
+        assertTrue(manager.exists("beta"));
+        assertEquals(1, manager.count());
+        assertEquals(Collections.singletonList("beta"), manager.getAccountNames());
+        assertNotNull(manager.get("beta"));
+        assertEquals(2, attempts.get());
+        assertEquals(1, manager.count());
+    }
+
+    /**
+     * Tests that an account asked for by many threads is loaded once, and
+     * that loading it doesn't hold up other accounts.
+     */
+    @Test
+    public void testConcurrentLoad() throws Exception {
+        // Given an account that is slow to load
+        createAccount("beta", false);
+        createAccount("gamma", false);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        manager = new AccountManager(name -> {
+            loaded.add(name);
+            if ("beta".equals(name)) {
+                loading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return mock(Account.class);
+        });
+        manager.loadAccounts(folder.getRoot(), "DFBnc.conf", defaults, 0);
+
+        // When many threads ask for it at once
+        final ExecutorService threads = Executors.newFixedThreadPool(8);
+        final List<Future<Account>> results = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(threads.submit(() -> manager.get("beta")));
+        }
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+        // Then another account can be loaded while it is loading
+        assertNotNull(manager.get("gamma"));
+
+        // And every thread gets the same account, which was loaded once
+        release.countDown();
+        final Account beta = results.get(0).get(5, TimeUnit.SECONDS);
+        assertNotNull(beta);
+        for (Future<Account> result : results) {
+            assertSame(beta, result.get(5, TimeUnit.SECONDS));
+        }
+        threads.shutdown();
+        assertEquals(Arrays.asList("beta", "gamma"), loaded);
+        assertEquals(2, manager.count());
+    }
+
+    /**
+     * Tests that accounts can't be created twice.
+     */
+    @Test
+    public void testCreateAccount() throws Exception {
+        // Given an account that exists but hasn't been loaded
+        createAccount("beta", false);
+        manager.loadAccounts(folder.getRoot(), "DFBnc.conf", defaults, 0);
+
+        // Then it can't be created again, but a new account can
+        assertNull(manager.createAccount("Beta", "password"));
+        final Account created = manager.createAccount("delta", "password");
+        assertNotNull(created);
+        verify(created).setPassword("password");
+        assertSame(created, manager.getIfLoaded("delta"));
+        assertNull(manager.createAccount("delta", "other"));
+        assertEquals(Arrays.asList("beta", "delta"), manager.getAccountNames());
+
+        // And removed accounts are gone
+        assertSame(created, manager.remove("delta"));
+        manager.remove("beta");
+        assertEquals(0, manager.count());
+        assertNull(manager.get("beta"));
+    }
+}
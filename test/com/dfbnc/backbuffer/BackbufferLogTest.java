@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.backbuffer;
+
+import com.dfbnc.util.BackbufferCursor;
+import com.dfbnc.util.BackbufferMessage;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link com.dfbnc.backbuffer.BackbufferLog}.
+ */
+public class BackbufferLogTest {
+
+    /** A message big enough that only a few fit in each segment. */
+    private static final String BIG;
+
+    static {
+        final char[] chars = new char[200_000];
+        Arrays.fill(chars, 'x');
+        BIG = new String(chars);
+    }
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private BackbufferLog log;
+
+    @After
+    public void tearDown() {
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    /**
+     * Tests that added messages can be replayed with their times and
+     * sequence numbers.
+     */
+    @Test
+    public void testAppendAndReplay() throws IOException {
+        // Given an empty log
+        log = new BackbufferLog(folder.getRoot(), 5);
+
+        // When messages are added
+        log.add(100, "one");
+        log.add(200, "two");
+        log.add(300, "three");
+
+        // Then they are replayed oldest first
+        final List<BackbufferMessage> messages = toList(log.replay(10, 0));
+        assertEquals(3, messages.size());
+        assertEquals("one", messages.get(0).getMessage());
+        assertEquals(100, messages.get(0).getTime());
+        assertEquals(0, messages.get(0).getSequence());
+        assertEquals("three", messages.get(2).getMessage());
+        assertEquals(2, messages.get(2).getSequence());
+        assertEquals(3, log.getNextSequence());
+
+        // And the limit and earliest time are honoured
+        assertEquals(Arrays.asList("two", "three"), toStrings(log.replay(2, 0)));
+        assertEquals(Arrays.asList("three"), toStrings(log.replay(10, 250)));
+    }
+
+    /**
+     * Tests that a log reopened from disk still has its messages and carries
+     * on with the same sequence numbers.
+     */
+    @Test
+    public void testReopenAfterRestart() throws IOException {
+        // Given a log with messages that has been closed
+        log = new BackbufferLog(folder.getRoot(), 5);
+        log.add(100, "one");
+        log.add(200, "two");
+        log.close();
+        final String epoch = log.getEpoch();
+
+        // When it is opened again
+        log = new BackbufferLog(folder.getRoot(), 5);
+
+        // Then the old messages are still there, with the same epoch
+        assertEquals(Arrays.asList("one", "two"), toStrings(log.replay(10, 0)));
+        assertEquals(2, log.getNextSequence());
+        assertEquals(epoch, log.getEpoch());
+
+        // And new messages follow on from them
+        log.add(300, "three");
+        final List<BackbufferMessage> messages = toList(log.replay(10, 0));
+        assertEquals(3, messages.size());
+        assertEquals(2, messages.get(2).getSequence());
+    }
+
+    /**
+     * Tests that a full segment rolls over to a new one without losing
+     * messages.
+     */
+    @Test
+    public void testSegmentRollover() throws IOException {
+        // Given a log
+        log = new BackbufferLog(folder.getRoot(), 10);
+
+        // When more is added than will fit in one segment
+        for (int i = 0; i < 12; i++) {
+            log.add(i, i + BIG);
+        }
+
+        // Then more than one segment is used
+        assertTrue(getSegmentFiles().length > 1);
+
+        // And every message is still available in order
+        final List<BackbufferMessage> messages = toList(log.replay(100, 0));
+        assertEquals(12, messages.size());
+        for (int i = 0; i < 12; i++) {
+            assertEquals(i, messages.get(i).getSequence());
+            assertTrue(messages.get(i).getMessage().startsWith(i + "x"));
+        }
+    }
+
+    /**
+     * Tests that the oldest segments are deleted when there are too many.
+     */
+    @Test
+    public void testOldSegmentsAreDeleted() throws IOException {
+        // Given a log that keeps two segments
+        log = new BackbufferLog(folder.getRoot(), 2);
+
+        // When enough is added to fill many segments
+        for (int i = 0; i < 30; i++) {
+            log.add(i, i + BIG);
+        }
+
+        // Then only two segments are left on disk
+        assertEquals(2, getSegmentFiles().length);
+
+        // And only their messages are replayed
+        final List<BackbufferMessage> messages = toList(log.replay(100, 0));
+        assertFalse(messages.isEmpty());
+        assertTrue(messages.size() < 30);
+        assertEquals(log.getFirstSequence(), messages.get(0).getSequence());
+        assertEquals(29, messages.get(messages.size() - 1).getSequence());
+
+        // And lowering the limit deletes more
+        log.setSegmentLimit(1);
+        assertEquals(1, getSegmentFiles().length);
+    }
+
+    private File[] getSegmentFiles() {
+        return folder.getRoot().listFiles((final File dir, final String name) -> name.endsWith(".seg"));
+    }
+
+    private static List<BackbufferMessage> toList(final BackbufferCursor cursor) {
+        final List<BackbufferMessage> result = new ArrayList<>();
+        cursor.forEachRemaining(result::add);
+        return result;
+    }
+
+    private static List<String> toStrings(final BackbufferCursor cursor) {
+        final List<String> result = new ArrayList<>();
+        cursor.forEachRemaining(m -> result.add(m.getMessage()));
+        return result;
+    }
+}
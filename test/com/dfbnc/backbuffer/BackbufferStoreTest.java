@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.backbuffer;
+
+import com.dfbnc.util.BackbufferCursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for {@link com.dfbnc.backbuffer.BackbufferStore}.
+ */
+public class BackbufferStoreTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private BackbufferStore store;
+
+    @Before
+    public void setUp() {
+        store = new BackbufferStore(folder.getRoot(), 5);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    /**
+     * Tests that log names are not case sensitive.
+     */
+    @Test
+    public void testNamesAreNotCaseSensitive() throws IOException {
+        // When the same log is asked for with different case
+        // Then the same log is returned
+        assertSame(store.getLog("#Channel"), store.getLog("#channel"));
+    }
+
+    /**
+     * Tests that a closed log is opened again with its messages when it is
+     * next asked for.
+     */
+    @Test
+    public void testClosedLogIsReopened() throws IOException {
+        // Given a log with a message
+        final BackbufferLog log = store.getLog("#channel");
+        log.add(100, "hello");
+
+        // When it is closed
+        store.closeLog("#CHANNEL");
+
+        // Then asking for it again opens a new log with the same messages
+        final BackbufferLog reopened = store.getLog("#channel");
+        assertNotSame(log, reopened);
+        assertEquals(1, reopened.getNextSequence());
+        assertEquals("hello", reopened.replay(10, 0).next().getMessage());
+    }
+
+    /**
+     * Tests that messages appended in the background are in the log when it
+     * is next asked for, in order, even if it was closed in between.
+     */
+    @Test
+    public void testAppendedMessagesAreWrittenFirst() throws IOException {
+        // When messages are appended around a close
+        store.append("#Channel", 100, "one");
+        store.closeLog("#channel");
+        store.append("#channel", 200, "two");
+
+        // Then asking for the log gives both of them
+        final BackbufferLog log = store.getLog("#channel");
+        assertEquals(2, log.getNextSequence());
+        final BackbufferCursor cursor = log.replay(10, 0);
+        assertEquals("one", cursor.next().getMessage());
+        assertEquals("two", cursor.next().getMessage());
+    }
+
+    /**
+     * Tests that logs are reopened from disk by a new store.
+     */
+    @Test
+    public void testReopenAfterRestart() throws IOException {
+        // Given a store with messages that has been closed
+        store.getLog("#channel").add(100, "hello");
+        store.getLog("private").add(200, "world");
+        store.close();
+
+        // When a new store is created in the same place
+        store = new BackbufferStore(folder.getRoot(), 5);
+
+        // Then each log has its own messages
+        assertEquals("hello", store.getLog("#channel").replay(10, 0).next().getMessage());
+        assertEquals("world", store.getLog("private").replay(10, 0).next().getMessage());
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.config;
+
+import com.dmdirc.util.io.InvalidConfigFileException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link com.dfbnc.config.ConfigWriter}.
+ */
+public class ConfigWriterTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Config that counts how often it is written.
+     */
+    private static class CountingConfig extends ConfigFileConfig {
+
+        final AtomicInteger writes = new AtomicInteger();
+
+        CountingConfig(final File file) throws IOException, InvalidConfigFileException {
+            super(file);
+        }
+
+        @Override
+        void write() throws IOException {
+            writes.incrementAndGet();
+            super.write();
+        }
+    }
+
+    /**
+     * Tests that several saves close together only write the file once.
+     */
+    @Test
+    public void testCoalescing() throws Exception {
+        // Given a writer with a short delay
+        final ConfigWriter writer = new ConfigWriter(50);
+        final CountingConfig config = new CountingConfig(folder.newFile("user.config"));
+
+        // When the config is changed and saved many times
+        for (int i = 0; i < 10; i++) {
+            config.setOption("user", "option", i);
+            writer.markDirty(config);
+        }
+
+        // Then it is written once, with the last value
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (config.writes.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        assertEquals(1, config.writes.get());
+        assertEquals("9", new ConfigFileConfig(folder.getRoot().toPath().resolve("user.config").toFile())
+                .getOption("user", "option"));
+
+        // And saving again after the write writes again
+        writer.markDirty(config);
+        writer.flush();
+        assertEquals(2, config.writes.get());
+    }
+
+    /**
+     * Tests that flushing writes everything that is pending straight away.
+     */
+    @Test
+    public void testFlush() throws Exception {
+        // Given a writer that won't write on its own for a long time
+        final ConfigWriter writer = new ConfigWriter(TimeUnit.MINUTES.toMillis(10));
+        final CountingConfig first = new CountingConfig(folder.newFile("first.config"));
+        final CountingConfig second = new CountingConfig(folder.newFile("second.config"));
+        writer.markDirty(first);
+        writer.markDirty(second);
+
+        // When it is flushed
+        writer.flush();
+
+        // Then both configs are written, and flushing again writes nothing
+        writer.flush();
+        assertEquals(1, first.writes.get());
+        assertEquals(1, second.writes.get());
+    }
+
+    /**
+     * Tests that cancelling a directory drops pending writes in it only.
+     */
+    @Test
+    public void testCancel() throws Exception {
+        // Given pending writes in two account directories
+        final ConfigWriter writer = new ConfigWriter(TimeUnit.MINUTES.toMillis(10));
+        final File deleted = folder.newFolder("deleted");
+        final File kept = folder.newFolder("kept");
+        final CountingConfig gone = new CountingConfig(new File(deleted, "user.config"));
+        final CountingConfig stays = new CountingConfig(new File(kept, "user.config"));
+        writer.markDirty(gone);
+        writer.markDirty(stays);
+
+        // When one directory is cancelled and the writer flushed
+        writer.cancel(deleted);
+        writer.flush();
+
+        // Then only the other directory is written
+        assertEquals(0, gone.writes.get());
+        assertEquals(1, stays.writes.get());
+    }
+
+    /**
+     * Tests that cancelling waits for a write that has already started.
+     */
+    @Test
+    public void testCancelWaitsForWrite() throws Exception {
+        // Given a write that is in progress
+        final ConfigWriter writer = new ConfigWriter(TimeUnit.MINUTES.toMillis(10));
+        final File directory = folder.newFolder("account");
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ConfigFileConfig config = new ConfigFileConfig(new File(directory, "user.config")) {
+            @Override
+            void write() throws IOException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                super.write();
+            }
+        };
+        writer.markDirty(config);
+        final Thread flusher = new Thread(writer::flush);
+        flusher.start();
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        // When the directory is cancelled
+        final Thread canceller = new Thread(() -> writer.cancel(directory));
+        canceller.start();
+
+        // Then cancel doesn't return until the write has finished
+        canceller.join(100);
+        assertTrue(canceller.isAlive());
+        release.countDown();
+        canceller.join(5000);
+        flusher.join(5000);
+        assertFalse(canceller.isAlive());
+    }
+
+    /**
+     * Tests that writes replace the file through a temporary file.
+     */
+    @Test
+    public void testAtomicReplace() throws Exception {
+        // Given an existing config file, and a temporary file left by a crash
+        final File file = folder.newFile("user.config");
+        Files.write(file.toPath(), Collections.singletonList("user:\n    nickname=old"), StandardCharsets.UTF_8);
+        final File temp = new File(folder.getRoot(), "user.config.tmp");
+        Files.write(temp.toPath(), Collections.singletonList("garbage"), StandardCharsets.UTF_8);
+        final ConfigFileConfig config = new ConfigFileConfig(file);
+
+        // When it is changed and written
+        config.setOption("user", "nickname", "new");
+        config.write();
+
+        // Then the file has the new contents and no temporary file is left
+        assertEquals("new", new ConfigFileConfig(file).getOption("user", "nickname"));
+        assertFalse(temp.exists());
+    }
+
+    /**
+     * Tests that a config whose directory has been deleted isn't written.
+     */
+    @Test
+    public void testDeletedDirectory() throws Exception {
+        // Given a config whose directory has gone
+        final File directory = folder.newFolder("account");
+        final ConfigFileConfig config = new ConfigFileConfig(new File(directory, "user.config"));
+        Files.delete(directory.toPath().resolve("user.config"));
+        Files.delete(directory.toPath());
+
+        // When it is written
+        config.write();
+
+        // Then the directory isn't recreated
+        assertFalse(directory.exists());
+    }
+}
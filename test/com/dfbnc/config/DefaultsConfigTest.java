@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.config;
+
+import com.dmdirc.util.io.InvalidConfigFileException;
+import com.dmdirc.util.validators.PermissiveValidator;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link com.dfbnc.config.DefaultsConfig}.
+ */
+public class DefaultsConfigTest {
+
+    private MapConfig defaults;
+
+    private DefaultsConfig account;
+
+    private DefaultsConfig subclient;
+
+    private MapConfig subclientFile;
+
+    @Before
+    public void setUp() throws IOException, InvalidConfigFileException {
+        defaults = new MapConfig();
+        defaults.setOption("server", "backbuffer", 10);
+        defaults.setOption("user", "autoburst", true);
+        account = new DefaultsConfig(new MapConfig(), defaults);
+        subclientFile = new MapConfig();
+        subclient = new DefaultsConfig(subclientFile, account);
+    }
+
+    /**
+     * Tests that options come from the first layer that has them.
+     */
+    @Test
+    public void testLayering() {
+        // Given an option set at the account level
+        account.setOption("server", "backbuffer", 20);
+
+        // Then the account and subclient see it, but the defaults don't
+        assertEquals(10, (int) defaults.getOptionInt("server", "backbuffer"));
+        assertEquals(20, (int) account.getOptionInt("server", "backbuffer"));
+        assertEquals(20, (int) subclient.getOptionInt("server", "backbuffer"));
+
+        // And options that aren't set anywhere are missing
+        assertFalse(subclient.hasOption("server", "missing"));
+    }
+
+    /**
+     * Tests that cached options are updated when a lower layer changes.
+     */
+    @Test
+    public void testLowerLayerChanges() {
+        // Given options that have already been looked up
+        assertTrue(subclient.getOptionBool("user", "autoburst"));
+        assertFalse(subclient.hasOption("irc", "highlight"));
+
+        // When they are changed at the account level
+        account.setOption("user", "autoburst", false);
+        account.setOption("irc", "highlight", Arrays.asList("one", "two"));
+
+        // Then the subclient sees the new values
+        assertFalse(subclient.getOptionBool("user", "autoburst"));
+        assertEquals(Arrays.asList("one", "two"), subclient.getOptionList("irc", "highlight"));
+
+        // And when they are changed on the subclient and then unset
+        subclient.setOption("user", "autoburst", true);
+        assertTrue(subclient.getOptionBool("user", "autoburst"));
+        subclient.unsetOption("user", "autoburst");
+
+        // Then the account value is used again
+        assertFalse(subclient.getOptionBool("user", "autoburst"));
+    }
+
+    /**
+     * Tests that cached options are updated when the wrapped config is
+     * changed directly.
+     */
+    @Test
+    public void testWrappedConfigChanges() {
+        // Given an option that has already been looked up
+        assertEquals(10, (int) subclient.getOptionInt("server", "backbuffer"));
+
+        // When it is changed in the wrapped config, rather than through the
+        // DefaultsConfig
+        subclientFile.setOption("server", "backbuffer", 30);
+
+        // Then the new value is seen
+        assertEquals(30, (int) subclient.getOptionInt("server", "backbuffer"));
+
+        // And unsetting it goes back to the lower layer
+        subclientFile.unsetOption("server", "backbuffer");
+        assertEquals(10, (int) subclient.getOptionInt("server", "backbuffer"));
+    }
+
+    /**
+     * Tests that missing options can be looked up without an exception.
+     */
+    @Test
+    public void testFindOption() {
+        assertEquals(Optional.of("10"), subclient.findOption("server", "backbuffer"));
+        assertFalse(subclient.findOption("server", "missing").isPresent());
+        assertFalse(subclient.findOption("server", "missing", new PermissiveValidator<>()).isPresent());
+    }
+
+    /**
+     * Tests that lists can be changed by callers without affecting the
+     * cached copy.
+     */
+    @Test
+    public void testListsAreCopied() {
+        account.setOption("irc", "highlight", Arrays.asList("one", "two"));
+        subclient.getOptionList("irc", "highlight").add("three");
+        assertEquals(Arrays.asList("one", "two"), subclient.getOptionList("irc", "highlight"));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.config;
+
+import com.dmdirc.util.io.InvalidConfigFileException;
+import com.dmdirc.util.validators.Validator;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * A config held in memory, for tests.
+ */
+public class MapConfig extends ConfigImpl {
+
+    private final Map<String, Map<String, String>> options = new HashMap<>();
+
+    public MapConfig() throws IOException, InvalidConfigFileException {
+        super();
+    }
+
+    @Override
+    public Optional<String> findOption(final String domain, final String option, final Validator<String> validator) {
+        final String value = getOptions(domain).get(option);
+        if (value == null || validator.validate(value).isFailure()) {
+            return Optional.empty();
+        }
+        return Optional.of(value);
+    }
+
+    @Override
+    public void setOption(final String domain, final String option, final String value) {
+        getOptions(domain).put(option, value);
+        callListeners(domain, option);
+    }
+
+    @Override
+    public void unsetOption(final String domain, final String option) {
+        getOptions(domain).remove(option);
+        callListeners(domain, option);
+    }
+
+    @Override
+    public boolean hasOption(final String domain, final String option, final Validator<String> validator) {
+        final String value = getOptions(domain).get(option);
+        return value != null && !validator.validate(value).isFailure();
+    }
+
+    @Override
+    public Map<String, String> getOptions(final String domain) {
+        return options.computeIfAbsent(domain, k -> new HashMap<>());
+    }
+
+    @Override
+    public Set<String> getDomains() {
+        return options.keySet();
+    }
+
+    @Override
+    public void save() { }
+
+    @Override
+    public void init() { }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.servers.irc;
+
+import com.dfbnc.sockets.UserSocket;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests for {@link com.dfbnc.servers.irc.ChannelRouter}.
+ */
+public class ChannelRouterTest {
+
+    private final UserSocket first = mock(UserSocket.class);
+
+    private final UserSocket second = mock(UserSocket.class);
+
+    /** Channels each socket is active in. */
+    private final Set<String> firstChannels = new HashSet<>();
+
+    private final Set<String> secondChannels = new HashSet<>();
+
+    /** Number of times the sockets have been asked for. */
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    private ChannelRouter router;
+
+    @Before
+    public void setUp() {
+        router = new ChannelRouter(() -> {
+            lookups.incrementAndGet();
+            return Arrays.asList(first, second);
+        }, (socket, name) -> (socket == first ? firstChannels : secondChannels).contains(name));
+        firstChannels.add("#chan");
+    }
+
+    /**
+     * Tests that the sockets for a channel are only worked out once.
+     */
+    @Test
+    public void testRoutesAreRemembered() {
+        // When a channel is looked up twice
+        final List<UserSocket> sockets = router.getSockets("#chan");
+
+        // Then the same sockets are returned without working them out again
+        assertEquals(Collections.singletonList(first), sockets);
+        assertSame(sockets, router.getSockets("#chan"));
+        assertEquals(1, lookups.get());
+    }
+
+    /**
+     * Tests that invalidating a channel picks up a socket joining it.
+     */
+    @Test
+    public void testJoin() {
+        // Given a remembered channel
+        router.getSockets("#chan");
+
+        // When another socket joins it and it is invalidated
+        secondChannels.add("#chan");
+        router.invalidate("#chan");
+
+        // Then both sockets get its lines
+        assertEquals(Arrays.asList(first, second), router.getSockets("#chan"));
+    }
+
+    /**
+     * Tests that invalidating a channel picks up a socket leaving it, and
+     * leaves other channels alone.
+     */
+    @Test
+    public void testPart() {
+        // Given two remembered channels
+        firstChannels.add("#other");
+        router.getSockets("#chan");
+        final List<UserSocket> other = router.getSockets("#other");
+
+        // When a socket leaves one and it is invalidated
+        firstChannels.remove("#chan");
+        router.invalidate("#chan");
+
+        // Then no sockets get its lines
+        assertEquals(Collections.emptyList(), router.getSockets("#chan"));
+
+        // And the other channel is still remembered
+        assertSame(other, router.getSockets("#other"));
+    }
+
+    /**
+     * Tests that invalidating everything picks up a whitelist change.
+     */
+    @Test
+    public void testWhitelistChange() {
+        // Given remembered channels
+        router.getSockets("#chan");
+        router.getSockets("#other");
+
+        // When a whitelist changes what the sockets see and everything is
+        // invalidated
+        firstChannels.clear();
+        secondChannels.addAll(Arrays.asList("#chan", "#other"));
+        router.invalidateAll();
+
+        // Then every channel is worked out again
+        assertEquals(Collections.singletonList(second), router.getSockets("#chan"));
+        assertEquals(Collections.singletonList(second), router.getSockets("#other"));
+        assertEquals(4, lookups.get());
+    }
+
+    /**
+     * Tests that too many channels makes the router start again.
+     */
+    @Test
+    public void testCap() {
+        // Given a remembered channel
+        final List<UserSocket> sockets = router.getSockets("#chan");
+
+        // When channels are looked up until the cap is passed
+        for (int i = 0; i < ChannelRouter.MAX_ROUTES; i++) {
+            router.getSockets("#" + i);
+        }
+
+        // Then remembered channels are still used
+        assertEquals(ChannelRouter.MAX_ROUTES + 1, lookups.get());
+        router.getSockets("#0");
+        assertEquals(ChannelRouter.MAX_ROUTES + 1, lookups.get());
+
+        // And a new channel clears them
+        router.getSockets("#new");
+        router.getSockets("#chan");
+        assertEquals(ChannelRouter.MAX_ROUTES + 3, lookups.get());
+        assertEquals(sockets, router.getSockets("#chan"));
+    }
+}
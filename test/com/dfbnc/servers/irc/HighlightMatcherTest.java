@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.servers.irc;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link com.dfbnc.servers.irc.HighlightMatcher}.
+ */
+public class HighlightMatcherTest {
+
+    /**
+     * Tests that plain words match anywhere in a line, ignoring case.
+     */
+    @Test
+    public void testWords() {
+        // Given words that share prefixes and suffixes
+        final HighlightMatcher matcher = new HighlightMatcher(Arrays.asList("dfbnc", "bnc dev", "shane", "hanes"));
+
+        // Then lines containing any of them match
+        assertTrue(matcher.matches("hello DFBnc"));
+        assertTrue(matcher.matches("the bnc developers"));
+        assertTrue(matcher.matches("shhanes"));
+        assertTrue(matcher.matches("Shane?"));
+
+        // And lines that only partly contain them don't
+        assertFalse(matcher.matches("bnc de"));
+        assertFalse(matcher.matches("shan hane"));
+    }
+
+    /**
+     * Tests that regex entries are matched alongside plain words.
+     */
+    @Test
+    public void testRegexes() {
+        // Given a mix of words, regexes and an invalid regex
+        final HighlightMatcher matcher = new HighlightMatcher(Arrays.asList("word", "^starts", "(a+)b\\1", "[invalid"));
+
+        // Then each valid entry matches as a regex would
+        assertTrue(matcher.matches("a word"));
+        assertTrue(matcher.matches("STARTS here"));
+        assertFalse(matcher.matches("not starts"));
+        assertTrue(matcher.matches("xaabaa"));
+        assertFalse(matcher.matches("xaab"));
+        assertFalse(matcher.matches("[invalid"));
+    }
+
+    /**
+     * Tests that entries that can't be combined with others still match.
+     */
+    @Test
+    public void testUncombinableRegexes() {
+        // Given an unterminated quote, which would quote everything after it
+        // if combined, and a comment that would swallow the rest
+        final HighlightMatcher matcher = new HighlightMatcher(Arrays.asList("\\Qfoo(", "bar+", "(?x) b a z # comment"));
+
+        // Then each entry still matches as it would on its own
+        assertTrue(matcher.matches("a foo( b"));
+        assertTrue(matcher.matches("barrr"));
+        assertTrue(matcher.matches("baz"));
+        assertFalse(matcher.matches("foo"));
+        assertFalse(matcher.matches("ba"));
+    }
+
+    /**
+     * Tests that an empty list matches nothing.
+     */
+    @Test
+    public void testEmpty() {
+        assertFalse(new HighlightMatcher(Collections.emptyList()).matches("anything"));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.servers.irc;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link com.dfbnc.servers.irc.ParsedLine}.
+ */
+public class ParsedLineTest {
+
+    /**
+     * Tests that only three digit commands are numerics.
+     */
+    @Test
+    public void testParseNumeric() {
+        assertEquals(1, ParsedLine.parseNumeric("001"));
+        assertEquals(353, ParsedLine.parseNumeric("353"));
+        assertEquals(-1, ParsedLine.parseNumeric("PRIVMSG"));
+        assertEquals(-1, ParsedLine.parseNumeric("35a"));
+        assertEquals(-1, ParsedLine.parseNumeric("3530"));
+    }
+
+    /**
+     * Tests that message tags are split up and unescaped.
+     */
+    @Test
+    public void testParseTags() {
+        // When a line with tags is parsed
+        final String rawTags = ParsedLine.getRawTags("@time=2017-01-01T00:00:00.000Z;+draft/x=a\\sb\\:c\\\\;flag :nick PRIVMSG #chan :hi");
+        final Map<String, String> tags = ParsedLine.parseTags(rawTags);
+
+        // Then each tag is returned with its value unescaped
+        assertEquals(3, tags.size());
+        assertEquals("2017-01-01T00:00:00.000Z", tags.get("time"));
+        assertEquals("a b;c\\", tags.get("+draft/x"));
+        assertEquals("", tags.get("flag"));
+
+        // And lines without tags have none
+        assertEquals("", ParsedLine.getRawTags(":nick PRIVMSG #chan :hi"));
+        assertTrue(ParsedLine.parseTags("").isEmpty());
+    }
+}
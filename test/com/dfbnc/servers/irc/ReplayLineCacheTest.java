@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.servers.irc;
+
+import com.dfbnc.util.BackbufferList;
+import com.dfbnc.util.BackbufferMessage;
+import com.dfbnc.util.IRCLine;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link com.dfbnc.servers.irc.ReplayLineCache}.
+ */
+public class ReplayLineCacheTest {
+
+    private final ReplayLineCache cache = new ReplayLineCache();
+
+    private final BackbufferList history = new BackbufferList(10);
+
+    /**
+     * Tests that clients with the same capabilities share built lines.
+     */
+    @Test
+    public void testSameProfileShared() {
+        // Given a message in a backbuffer
+        history.add(1488603967089L, ":nick!user@host PRIVMSG #channel :Hello");
+        final BackbufferMessage message = history.get(0);
+
+        // When it is replayed to two clients with the same capabilities
+        final IRCLine[] first = cache.getLines(history, message, new ReplayLineCache.Profile("batch=b", true, true, false));
+        final IRCLine[] second = cache.getLines(history, message, new ReplayLineCache.Profile("batch=b", true, true, false));
+
+        // Then both get the same lines
+        assertArrayEquals(new String[]{"@batch=b;time=2017-03-04T05:06:07.089Z :nick!user@host PRIVMSG #channel :Hello"}, toStrings(first));
+        assertSame(first, second);
+
+        // And a client with different capabilities gets its own lines
+        final IRCLine[] third = cache.getLines(history, message, new ReplayLineCache.Profile("", false, false, true));
+        assertNotSame(first, third);
+        assertArrayEquals(new String[]{"@1488603967089@:nick!user@host PRIVMSG #channel :Hello"}, toStrings(third));
+    }
+
+    /**
+     * Tests that long messages are split.
+     */
+    @Test
+    public void testLongLinesSplit() {
+        // Given a message that is too long to send in one line
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append((char) ('a' + (i % 26)));
+        }
+        history.add(0, ":nick!user@host PRIVMSG #channel :" + text);
+
+        // When it is replayed
+        final String[] lines = toStrings(cache.getLines(history, history.get(0), new ReplayLineCache.Profile("batch=b", false, true, false)));
+
+        // Then it is split into lines that each have the tags and prefix
+        assertEquals(3, lines.length);
+        final StringBuilder rebuilt = new StringBuilder();
+        for (final String line : lines) {
+            assertTrue(line.startsWith("@batch=b :nick!user@host PRIVMSG #channel :"));
+            assertTrue(line.length() <= 510 + "@batch=b ".length());
+            rebuilt.append(line.substring("@batch=b :nick!user@host PRIVMSG #channel :".length()));
+        }
+        assertEquals(text.toString(), rebuilt.toString());
+    }
+
+    /**
+     * Tests that a replay bigger than the default size is remembered in full.
+     */
+    @Test
+    public void testReserveMakesRoom() {
+        // Given a large backbuffer
+        final BackbufferList large = new BackbufferList(5000);
+        for (int i = 0; i < 5000; i++) {
+            large.add(i, ":nick!user@host PRIVMSG #channel :" + i);
+        }
+        final ReplayLineCache.Profile profile = new ReplayLineCache.Profile("", false, true, false);
+
+        // When all of it is replayed after making room
+        cache.reserve(5000);
+        final IRCLine[] first = cache.getLines(large, large.get(0), profile);
+        for (int i = 1; i < 5000; i++) {
+            cache.getLines(large, large.get(i), profile);
+        }
+
+        // Then every message is remembered
+        assertEquals(5000, cache.size());
+        assertSame(first, cache.getLines(large, large.get(0), profile));
+    }
+
+    /**
+     * Tests that everything is forgotten once a wave of replays is over.
+     */
+    @Test
+    public void testExpire() {
+        // Given a remembered message
+        history.add(0, ":nick!user@host PRIVMSG #channel :Hello");
+        cache.getLines(history, history.get(0), new ReplayLineCache.Profile("", false, true, false));
+
+        // When the cache is checked during the wave
+        cache.expire(System.currentTimeMillis());
+
+        // Then it is still remembered
+        assertEquals(1, cache.size());
+
+        // And when it is checked after the wave it is forgotten
+        cache.expire(System.currentTimeMillis() + ReplayLineCache.WAVE_TIMEOUT + 1000);
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Tests that a large replay does not use more than the memory limit.
+     */
+    @Test
+    public void testMemoryLimit() {
+        // Given a cache limited to 64KiB, and a large backbuffer
+        final ReplayLineCache small = new ReplayLineCache(64 * 1024);
+        final BackbufferList large = new BackbufferList(5000);
+        for (int i = 0; i < 5000; i++) {
+            large.add(i, ":nick!user@host PRIVMSG #channel :" + i);
+        }
+        final ReplayLineCache.Profile profile = new ReplayLineCache.Profile("", false, true, false);
+
+        // When all of it is replayed after making room
+        small.reserve(5000);
+        for (int i = 0; i < 5000; i++) {
+            small.getLines(large, large.get(i), profile);
+        }
+
+        // Then only the newest messages are remembered
+        assertTrue(small.getMemoryUsage() <= 64 * 1024);
+        assertTrue(small.size() > 0);
+        assertTrue(small.size() < 5000);
+        final IRCLine[] last = small.getLines(large, large.get(4999), profile);
+        assertSame(last, small.getLines(large, large.get(4999), profile));
+
+        // And nothing is counted once they are forgotten
+        small.clear();
+        assertEquals(0, small.getMemoryUsage());
+    }
+
+    /**
+     * Tests that clients replaying the same message at once share one build.
+     */
+    @Test
+    public void testConcurrentReplaysShared() throws Exception {
+        // Given a message in a backbuffer
+        history.add(0, ":nick!user@host PRIVMSG #channel :Hello");
+        final BackbufferMessage message = history.get(0);
+
+        // When lots of clients with the same capabilities replay it at once
+        final int clients = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(clients);
+        final List<Future<IRCLine[]>> results = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            results.add(executor.submit(() -> {
+                final ReplayLineCache.Profile profile = new ReplayLineCache.Profile("", false, true, false);
+                start.await();
+                return cache.getLines(history, message, profile);
+            }));
+        }
+        start.countDown();
+
+        // Then they all get the same lines
+        final IRCLine[] first = results.get(0).get();
+        for (final Future<IRCLine[]> result : results) {
+            assertSame(first, result.get());
+        }
+        executor.shutdown();
+    }
+
+    private static String[] toStrings(final IRCLine[] lines) {
+        final String[] result = new String[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            result[i] = lines[i].toString();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.sockets;
+
+import com.dfbnc.Account;
+import com.dfbnc.ConnectionHandler;
+import com.dfbnc.util.BackbufferList;
+import com.dfbnc.util.IRCLine;
+import com.dfbnc.util.ServerTime;
+import com.dmdirc.parser.irc.CapabilityState;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link com.dfbnc.sockets.ChatHistoryHandler}.
+ */
+public class ChatHistoryHandlerTest {
+
+    private UserSocket socket;
+
+    private ConnectionHandler handler;
+
+    private BackbufferList history;
+
+    private final List<IRCLine> lines = new ArrayList<>();
+
+    private final List<String> failures = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        socket = mock(UserSocket.class);
+        handler = mock(ConnectionHandler.class);
+        final Account account = mock(Account.class);
+        history = new BackbufferList(2000);
+        for (int i = 0; i < 10; i++) {
+            history.add(1000L * i, ":nick!user@host PRIVMSG #chan :" + i);
+        }
+
+        when(socket.getAccount()).thenReturn(account);
+        when(socket.getServerName()).thenReturn("bnc");
+        when(socket.getCapabilityState(anyString())).thenReturn(CapabilityState.DISABLED);
+        when(account.getConnectionHandler()).thenReturn(handler);
+        when(handler.activeAllowedChannel(eq(socket), anyString())).thenReturn(false);
+        when(handler.activeAllowedChannel(socket, "#chan")).thenReturn(true);
+        when(handler.getBackbufferHistory("#chan")).thenReturn(history);
+        doAnswer(invocation -> {
+            for (final Object line : invocation.getArguments()) {
+                lines.add((IRCLine) line);
+            }
+            return null;
+        }).when(socket).sendLine(any(IRCLine[].class));
+        doAnswer(invocation -> failures.add(invocation.getArgument(0))).when(socket).sendLine(anyString());
+    }
+
+    /**
+     * Tests that LATEST returns the newest messages, oldest first.
+     */
+    @Test
+    public void testLatest() {
+        // When the latest messages are asked for
+        request("LATEST", "#chan", "*", "3");
+
+        // Then the newest are sent
+        assertEquals(Arrays.asList("7", "8", "9"), getMessages());
+        assertEquals(ServerTime.format(9000), getTag(lines.get(2), "time"));
+    }
+
+    /**
+     * Tests that LATEST with a reference only returns messages after it.
+     */
+    @Test
+    public void testLatestAfterReference() {
+        // When the latest messages after one are asked for
+        request("LATEST", "#chan", msgid(7), "5");
+
+        // Then only the newer messages are sent
+        assertEquals(Arrays.asList("8", "9"), getMessages());
+    }
+
+    /**
+     * Tests that BEFORE returns messages before the reference.
+     */
+    @Test
+    public void testBefore() {
+        // When messages before one are asked for, by msgid and by time
+        request("BEFORE", "#chan", msgid(5), "2");
+        request("BEFORE", "#chan", "timestamp=" + ServerTime.format(5000), "2");
+
+        // Then the messages just before it are sent each time
+        assertEquals(Arrays.asList("3", "4", "3", "4"), getMessages());
+    }
+
+    /**
+     * Tests that AFTER returns messages after the reference.
+     */
+    @Test
+    public void testAfter() {
+        // When messages after one are asked for, by msgid and by time
+        request("AFTER", "#chan", msgid(5), "2");
+        request("AFTER", "#chan", "timestamp=" + ServerTime.format(5000), "2");
+
+        // Then the messages just after it are sent each time
+        assertEquals(Arrays.asList("6", "7", "6", "7"), getMessages());
+    }
+
+    /**
+     * Tests that BETWEEN returns messages between the references, in either
+     * direction.
+     */
+    @Test
+    public void testBetween() {
+        // When messages between two others are asked for
+        request("BETWEEN", "#chan", msgid(2), msgid(6), "10");
+
+        // Then the messages in between are sent
+        assertEquals(Arrays.asList("3", "4", "5"), getMessages());
+
+        // And a limit takes from the first reference's end
+        lines.clear();
+        request("BETWEEN", "#chan", msgid(2), msgid(6), "2");
+        assertEquals(Arrays.asList("3", "4"), getMessages());
+        lines.clear();
+        request("BETWEEN", "#chan", msgid(6), msgid(2), "2");
+        assertEquals(Arrays.asList("4", "5"), getMessages());
+    }
+
+    /**
+     * Tests that no more than the maximum number of messages are sent.
+     */
+    @Test
+    public void testLimitIsClamped() {
+        // Given more messages than the maximum
+        for (int i = 10; i < 1000; i++) {
+            history.add(1000L * i, ":nick!user@host PRIVMSG #chan :" + i);
+        }
+
+        // When more than the maximum are asked for
+        request("LATEST", "#chan", "*", "500");
+
+        // Then only the maximum are sent
+        assertEquals(ChatHistoryHandler.MAX_LIMIT, lines.size());
+        assertEquals("999", getMessages().get(ChatHistoryHandler.MAX_LIMIT - 1));
+    }
+
+    /**
+     * Tests that message IDs stay the same between requests and are not
+     * shared with other histories.
+     */
+    @Test
+    public void testMsgidsAreStableAndUnique() {
+        // When the same message is sent twice
+        request("LATEST", "#chan", "*", "1");
+        request("BEFORE", "#chan", "timestamp=" + ServerTime.format(10000), "1");
+
+        // Then it has the same ID both times
+        assertEquals(getTag(lines.get(0), "msgid"), getTag(lines.get(1), "msgid"));
+        assertEquals(msgid(9), "msgid=" + getTag(lines.get(0), "msgid"));
+
+        // And a message with the same sequence in another history doesn't
+        final BackbufferList other = new BackbufferList(10);
+        other.add(1, "other");
+        assertNotEquals(ChatHistoryHandler.getMsgid(history, 0), ChatHistoryHandler.getMsgid(other, 0));
+    }
+
+    /**
+     * Tests that unknown message IDs are rejected.
+     */
+    @Test
+    public void testUnknownMsgidIsRejected() {
+        // Given a message ID from another history
+        final BackbufferList other = new BackbufferList(10);
+        other.add(1, "other");
+
+        // When it, or IDs that were never given out, are used
+        request("AFTER", "#chan", "msgid=" + ChatHistoryHandler.getMsgid(other, 0), "5");
+        request("AFTER", "#chan", msgid(10), "5");
+        request("AFTER", "#chan", "msgid=5", "5");
+
+        // Then each request fails
+        assertTrue(lines.isEmpty());
+        assertEquals(Collections.nCopies(3, ":bnc FAIL CHATHISTORY INVALID_PARAMS AFTER :Unknown msgid"), failures);
+    }
+
+    /**
+     * Tests that targets that can't be seen are rejected.
+     */
+    @Test
+    public void testInvalidTarget() {
+        // When a channel the socket can't see is asked for
+        request("LATEST", "#other", "*", "5");
+
+        // Then the request fails
+        assertTrue(lines.isEmpty());
+        assertEquals(Collections.singletonList(":bnc FAIL CHATHISTORY INVALID_TARGET LATEST #other :Messages could not be retrieved"), failures);
+    }
+
+    /**
+     * Tests that requests are rejected before the client has logged in.
+     */
+    @Test
+    public void testRequiresLogin() {
+        // Given a socket that hasn't logged in
+        when(socket.getAccount()).thenReturn(null);
+
+        // When history is asked for
+        request("LATEST", "#chan", "*", "5");
+
+        // Then the request fails
+        assertTrue(lines.isEmpty());
+        assertEquals(Collections.singletonList(":bnc FAIL CHATHISTORY ACCOUNT_REQUIRED :You must login first"), failures);
+    }
+
+    private void request(final String... params) {
+        final String[] line = new String[params.length + 1];
+        line[0] = "CHATHISTORY";
+        System.arraycopy(params, 0, line, 1, params.length);
+        new ChatHistoryHandler(socket).handle(line);
+    }
+
+    private static String getTag(final IRCLine line, final String key) {
+        for (final String tag : line.getEncodedTags().split(";")) {
+            if (tag.startsWith(key + "=")) {
+                return IRCLine.unescapeTag(tag.substring(key.length() + 1));
+            }
+        }
+        return null;
+    }
+
+    private String msgid(final long sequence) {
+        return "msgid=" + ChatHistoryHandler.getMsgid(history, sequence);
+    }
+
+    private List<String> getMessages() {
+        final List<String> result = new ArrayList<>();
+        for (final IRCLine line : lines) {
+            final String body = line.getBody();
+            result.add(body.substring(body.lastIndexOf(':') + 1));
+        }
+        return result;
+    }
+}
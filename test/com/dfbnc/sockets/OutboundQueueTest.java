@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.sockets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link com.dfbnc.sockets.OutboundQueue}.
+ */
+public class OutboundQueueTest {
+
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final List<String> written = new ArrayList<>();
+    private int writes;
+    private int overflows;
+    private long caughtUpDropped;
+    private OutboundQueue queue;
+
+    @Before
+    public void setUp() {
+        queue = new OutboundQueue(tasks::add, lines -> {
+            writes++;
+            written.addAll(Arrays.asList(lines.split("\r\n")));
+        }, new OutboundQueue.Listener() {
+            @Override
+            public void queueOverflowed() {
+                overflows++;
+            }
+
+            @Override
+            public void queueCaughtUp(final long since, final long dropped) {
+                caughtUpDropped = dropped;
+            }
+        });
+    }
+
+    /**
+     * Tests that lines are written in order by a single task, in one write.
+     */
+    @Test
+    public void testWritesInOrder() {
+        // When lines are added
+        queue.add("one");
+        queue.addAll(Arrays.asList("two", "three"));
+
+        // Then only one writer is started, which writes them in order
+        assertEquals(1, tasks.size());
+        assertEquals(3, queue.getDepth());
+        runTasks();
+        assertEquals(1, writes);
+        assertEquals(3, written.size());
+        assertEquals("one", written.get(0));
+        assertEquals("three", written.get(2));
+        assertEquals(0, queue.getDepth());
+    }
+
+    /**
+     * Tests that the oldest lines are dropped down to the low watermark.
+     */
+    @Test
+    public void testDropOldest() {
+        // Given a queue that drops the oldest lines, with room for four
+        // 8 byte lines
+        queue.setLimits(32, 16, OutboundQueue.OverflowPolicy.DROPOLDEST);
+
+        // When more lines are added than the writer can keep up with
+        for (int i = 0; i < 5; i++) {
+            queue.add("line " + i);
+        }
+        runTasks();
+
+        // Then the oldest were dropped to make room
+        assertEquals(2, queue.getDropped());
+        assertEquals(3, written.size());
+        assertEquals("line 2", written.get(0));
+        assertEquals("line 4", written.get(2));
+    }
+
+    /**
+     * Tests that overflowing with the disconnect policy tells the listener.
+     */
+    @Test
+    public void testDisconnect() {
+        queue.setLimits(10, 5, OutboundQueue.OverflowPolicy.DISCONNECT);
+        assertTrue(queue.add("one"));
+        assertTrue(queue.add("two"));
+        assertFalse(queue.add("three"));
+        assertEquals(1, overflows);
+    }
+
+    /**
+     * Tests that new lines that can be replayed are dropped until the queue
+     * catches up.
+     */
+    @Test
+    public void testCatchUp() {
+        // Given a queue that catches up from the backbuffer
+        queue.setLimits(10, 0, OutboundQueue.OverflowPolicy.CATCHUP);
+
+        // When it overflows
+        queue.add("one", true);
+        queue.add("two", true);
+        queue.add("three", true);
+        queue.add("four", true);
+        assertTrue(queue.isCatchingUp());
+
+        // Then new lines are dropped until it has been written out
+        runTasks();
+        assertFalse(queue.isCatchingUp());
+        assertEquals(2, caughtUpDropped);
+        assertEquals(2, written.size());
+
+        // And lines are queued again afterwards
+        assertTrue(queue.add("five", true));
+    }
+
+    /**
+     * Tests that lines that can't be replayed are kept while catching up, up
+     * to a hard limit.
+     */
+    @Test
+    public void testCatchUpKeepsOtherLines() {
+        // Given a queue that is catching up
+        queue.setLimits(10, 0, OutboundQueue.OverflowPolicy.CATCHUP);
+        queue.add("one", true);
+        queue.add("two", true);
+        assertFalse(queue.add("three", true));
+
+        // When lines that can't be replayed are added
+        // Then they are still queued
+        assertTrue(queue.add("mode"));
+        assertTrue(queue.add("part"));
+        assertEquals(0, overflows);
+
+        // And the client is only disconnected once far past the limit
+        while (queue.add("kick")) {
+            assertTrue(queue.getDepth() < 10);
+        }
+        assertEquals(1, overflows);
+    }
+
+    /**
+     * Tests that batches count towards the limit, so an attach burst can't
+     * grow the queue without limit with the default limits.
+     */
+    @Test
+    public void testAttachBurstWithDefaults() throws IOException {
+        // Given a queue with the default limits
+        final Map<String, String> defaults = readUserDefaults();
+        queue.setLimits(Long.parseLong(defaults.get("sendqhigh")) * 1024L,
+                Long.parseLong(defaults.get("sendqlow")) * 1024L,
+                OutboundQueue.OverflowPolicy.fromName(defaults.get("sendqpolicy")));
+
+        // When a burst of 50 channels with 2000 lines of backbuffer each is
+        // queued without the client reading any of it
+        int queued = 0;
+        long largest = 0;
+        for (int c = 0; c < 50; c++) {
+            final List<String> burst = new ArrayList<>();
+            burst.add(":nick!user@host JOIN #channel" + c);
+            burst.add(":server 332 nick #channel" + c + " :Topic");
+            burst.add(":server 353 nick = #channel" + c + " :nick other");
+            burst.add(":server 366 nick #channel" + c + " :End of /NAMES list.");
+            for (int i = 0; i < 2000; i++) {
+                burst.add(":other!user@host PRIVMSG #channel" + c + " :A backbuffer line that is about a hundred characters long, give or take " + i);
+            }
+            long size = 0;
+            for (final String line : burst) {
+                size += line.length() + 2;
+            }
+            largest = Math.max(largest, size);
+            if (queue.addAll(burst)) {
+                queued++;
+            }
+        }
+
+        // Then whole channels are queued until the hard limit is reached, and
+        // the client is disconnected rather than the queue carrying on growing
+        assertTrue(queued > 0);
+        assertTrue(queued < 50);
+        assertTrue(overflows > 0);
+        assertTrue(queue.getSize() <= queue.getHighWatermark() * 4 + largest);
+        assertEquals(queued * 2004, queue.getDepth());
+
+        // And the batches that were queued are written whole
+        runTasks();
+        assertEquals(queued * 2004, written.size());
+        assertEquals(":nick!user@host JOIN #channel0", written.get(0));
+    }
+
+    /**
+     * Tests that dropping the oldest lines drops whole batches the writer
+     * hasn't started on.
+     */
+    @Test
+    public void testDropOldestDropsWholeBatches() {
+        // Given a queue that drops the oldest lines, with a batch waiting
+        queue.setLimits(32, 16, OutboundQueue.OverflowPolicy.DROPOLDEST);
+        assertTrue(queue.addAll(Arrays.asList("batch 0", "batch 1", "batch 2")));
+
+        // When another line takes it over the limit
+        assertTrue(queue.add("line 0"));
+        assertTrue(queue.add("line 1"));
+
+        // Then the whole batch is dropped, rather than part of it
+        runTasks();
+        assertEquals(3, queue.getDropped());
+        assertEquals(Arrays.asList("line 0", "line 1"), written);
+    }
+
+    /**
+     * Tests waiting for the queue to drain.
+     */
+    @Test
+    public void testAwaitLowWatermark() {
+        // Given a queue over its low watermark
+        queue.setLimits(32, 8, OutboundQueue.OverflowPolicy.CATCHUP);
+        queue.addAll(Arrays.asList("line 0", "line 1"));
+
+        // Then waiting times out until it has been written
+        assertFalse(queue.awaitLowWatermark(0));
+        runTasks();
+        assertTrue(queue.awaitLowWatermark(0));
+    }
+
+    /**
+     * Tests that the overflow policy is applied once for a whole batch.
+     */
+    @Test
+    public void testBatchChecksOnce() {
+        // Given a queue that is already over its limit
+        queue.setLimits(10, 5, OutboundQueue.OverflowPolicy.DISCONNECT);
+        assertTrue(queue.addAll(Arrays.asList("one", "two", "three")));
+
+        // When a batch is added
+        assertFalse(queue.addAll(Arrays.asList("four", "five", "six")));
+
+        // Then the client is disconnected once, rather than for each line
+        assertEquals(1, overflows);
+        assertEquals(3, queue.getDepth());
+    }
+
+    /**
+     * Tests that a batch bigger than the hard limit is still queued if the
+     * client has kept up with everything before it.
+     */
+    @Test
+    public void testLargeBatch() {
+        for (final OutboundQueue.OverflowPolicy policy : OutboundQueue.OverflowPolicy.values()) {
+            // Given an empty queue
+            setUp();
+            tasks.clear();
+            written.clear();
+            overflows = 0;
+            queue.setLimits(100, 50, policy);
+
+            // When a batch more than four times the high watermark is added
+            final List<String> replay = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                replay.add("replayed line " + i);
+            }
+
+            // Then it is queued and written whole, without overflowing
+            assertTrue(queue.addAll(replay));
+            assertTrue(queue.getSize() > queue.getHighWatermark() * 4);
+            assertEquals(0, overflows);
+            runTasks();
+            assertEquals(replay, written);
+
+            // And the policy still applies to what comes after it while it
+            // is waiting
+            assertTrue(queue.addAll(replay));
+            assertEquals(policy == OutboundQueue.OverflowPolicy.DROPOLDEST, queue.addAll(replay));
+            assertEquals(policy == OutboundQueue.OverflowPolicy.DROPOLDEST ? 0 : 1, overflows);
+        }
+    }
+
+    /**
+     * Tests that actions for lines are only run once they are written, and
+     * not for lines that are dropped.
+     */
+    @Test
+    public void testWrittenActions() {
+        // Given a queue that is catching up
+        queue.setLimits(10, 0, OutboundQueue.OverflowPolicy.CATCHUP);
+        final List<String> done = new ArrayList<>();
+        queue.add("one", true, () -> done.add("one:" + written.size()));
+        queue.add("two", true, () -> done.add("two:" + written.size()));
+        assertFalse(queue.add("three", true, () -> done.add("three")));
+
+        // When an action is queued after them
+        final OutboundQueue.Batch batch = new OutboundQueue.Batch();
+        batch.add("four");
+        batch.whenWritten(() -> done.add("four:" + written.size()));
+        queue.addAll(batch);
+
+        // Then nothing runs until the writer has written the lines
+        assertTrue(done.isEmpty());
+        runTasks();
+        assertEquals(Arrays.asList("one:3", "two:3", "four:3"), done);
+    }
+
+    /**
+     * Tests that closing once everything is written doesn't wait, and runs
+     * after the last line is written.
+     */
+    @Test
+    public void testCloseWhenWritten() {
+        // Given some queued lines
+        queue.add("one");
+        queue.add("two");
+        final List<String> closedAfter = new ArrayList<>();
+
+        // When the queue is closed once written
+        queue.closeWhenWritten(() -> closedAfter.addAll(written));
+
+        // Then nothing happens until the writer runs
+        assertTrue(closedAfter.isEmpty());
+        assertFalse(queue.add("three"));
+
+        // And then it closes after writing everything
+        runTasks();
+        assertEquals(Arrays.asList("one", "two"), closedAfter);
+    }
+
+    /**
+     * Tests that closing once everything is written works with nothing
+     * queued.
+     */
+    @Test
+    public void testCloseWhenWrittenEmpty() {
+        final List<String> closed = new ArrayList<>();
+        queue.closeWhenWritten(() -> closed.add("closed"));
+        runTasks();
+        assertEquals(Arrays.asList("closed"), closed);
+    }
+
+    private Map<String, String> readUserDefaults() throws IOException {
+        final Map<String, String> result = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("/com/dfbnc/defaults.config"), StandardCharsets.UTF_8))) {
+            String domain = "";
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String trimmed = line.trim();
+                if (!line.startsWith(" ") && trimmed.endsWith(":")) {
+                    domain = trimmed.substring(0, trimmed.length() - 1);
+                } else if (domain.equals("user") && trimmed.contains("=")) {
+                    result.put(trimmed.substring(0, trimmed.indexOf('=')), trimmed.substring(trimmed.indexOf('=') + 1));
+                }
+            }
+        }
+        return result;
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+}
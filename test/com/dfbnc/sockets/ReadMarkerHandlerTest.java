@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.sockets;
+
+import com.dfbnc.Account;
+import com.dfbnc.config.MapConfig;
+import com.dfbnc.util.ServerTime;
+import com.dmdirc.parser.irc.CapabilityState;
+import com.dmdirc.util.io.InvalidConfigFileException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for {@link com.dfbnc.sockets.ReadMarkerHandler}.
+ */
+public class ReadMarkerHandlerTest {
+
+    private MapConfig config;
+
+    private UserSocket socket;
+
+    private UserSocket other;
+
+    @Before
+    public void setUp() throws IOException, InvalidConfigFileException {
+        config = new MapConfig();
+        socket = mock(UserSocket.class);
+        other = mock(UserSocket.class);
+        final Account account = mock(Account.class);
+
+        for (final UserSocket us : Arrays.asList(socket, other)) {
+            when(us.getClientID()).thenReturn("client");
+            when(us.getClientConfig()).thenReturn(config);
+            when(us.getServerName()).thenReturn("bnc");
+            when(us.getAccount()).thenReturn(account);
+            when(us.getCapabilityState("draft/read-marker")).thenReturn(CapabilityState.ENABLED);
+        }
+        when(account.getUserSockets()).thenReturn(Arrays.asList(socket, other));
+    }
+
+    /**
+     * Tests that markers that have never been set are 0.
+     */
+    @Test
+    public void testMissingMarker() {
+        assertEquals(0, ReadMarkerHandler.getMarker(config, "#chan"));
+    }
+
+    /**
+     * Tests that each marker is stored separately.
+     */
+    @Test
+    public void testSetAndGet() {
+        // When markers with similar names are set
+        assertTrue(ReadMarkerHandler.setMarker(config, "#chan", 100));
+        assertTrue(ReadMarkerHandler.setMarker(config, "#chan2", 200));
+        assertTrue(ReadMarkerHandler.setMarker(config, ReadMarkerHandler.PRIVATE, 300));
+
+        // Then each keeps its own time
+        assertEquals(100, ReadMarkerHandler.getMarker(config, "#chan"));
+        assertEquals(200, ReadMarkerHandler.getMarker(config, "#chan2"));
+        assertEquals(300, ReadMarkerHandler.getMarker(config, ReadMarkerHandler.PRIVATE));
+
+        // And moving one forward leaves the others alone
+        assertTrue(ReadMarkerHandler.setMarker(config, "#chan", 150));
+        assertEquals(150, ReadMarkerHandler.getMarker(config, "#chan"));
+        assertEquals(200, ReadMarkerHandler.getMarker(config, "#chan2"));
+    }
+
+    /**
+     * Tests that markers are never moved backwards.
+     */
+    @Test
+    public void testOlderTimesAreSkipped() {
+        // Given a marker
+        ReadMarkerHandler.setMarker(config, "#chan", 100);
+
+        // When it is set to the same or an earlier time
+        // Then it isn't moved
+        assertFalse(ReadMarkerHandler.setMarker(config, "#chan", 100));
+        assertFalse(ReadMarkerHandler.setMarker(config, "#chan", 50));
+        assertEquals(100, ReadMarkerHandler.getMarker(config, "#chan"));
+    }
+
+    /**
+     * Tests that markers remember how many messages at their time were seen.
+     */
+    @Test
+    public void testMessagesAtTheSameTime() {
+        // Given a marker part way through the messages at a time
+        assertTrue(ReadMarkerHandler.setMarker(config, "#chan", 100, 2));
+        assertEquals(100, ReadMarkerHandler.getMarker(config, "#chan"));
+        assertEquals(2, ReadMarkerHandler.getMarkerCount(config, "#chan"));
+
+        // When it is moved to fewer or more messages at that time
+        // Then it only moves forward
+        assertFalse(ReadMarkerHandler.setMarker(config, "#chan", 100, 1));
+        assertTrue(ReadMarkerHandler.setMarker(config, "#chan", 100, 3));
+        assertEquals(3, ReadMarkerHandler.getMarkerCount(config, "#chan"));
+
+        // And marking the time as read counts every message at it
+        assertTrue(ReadMarkerHandler.setMarker(config, "#chan", 100));
+        assertEquals(ReadMarkerHandler.ALL, ReadMarkerHandler.getMarkerCount(config, "#chan"));
+        assertFalse(ReadMarkerHandler.setMarker(config, "#chan", 100, 4));
+    }
+
+    /**
+     * Tests that MARKREAD moves the marker, and tells this sub-client's other
+     * connections.
+     */
+    @Test
+    public void testMarkRead() {
+        // When a client marks a channel as read
+        new ReadMarkerHandler(socket).handle(new String[]{"MARKREAD", "#Chan", "timestamp=" + ServerTime.format(5000)});
+
+        // Then the marker is moved
+        assertEquals(5000, ReadMarkerHandler.getMarker(config, "#chan"));
+
+        // And both connections are told where it is
+        final String reply = ":bnc MARKREAD #Chan timestamp=" + ServerTime.format(5000);
+        verify(socket).sendLine(reply);
+        verify(other).sendLine(reply);
+    }
+
+    /**
+     * Tests that MARKREAD without a time only reports the marker.
+     */
+    @Test
+    public void testMarkReadQuery() {
+        // When a client asks for a marker that isn't set
+        new ReadMarkerHandler(socket).handle(new String[]{"MARKREAD", "#chan"});
+
+        // Then only it is told that there isn't one
+        verify(socket).sendLine(":bnc MARKREAD #chan *");
+        verify(other, never()).sendLine(":bnc MARKREAD #chan *");
+    }
+
+    /**
+     * Tests that MARKREAD fails for clients that aren't sub-clients.
+     */
+    @Test
+    public void testMarkReadRequiresSubclient() {
+        // Given a socket that isn't a sub-client
+        when(socket.getClientID()).thenReturn(null);
+
+        // When it marks a channel as read
+        new ReadMarkerHandler(socket).handle(new String[]{"MARKREAD", "#chan", "timestamp=" + ServerTime.format(5000)});
+
+        // Then the request fails and nothing is stored
+        verify(socket).sendLine(":bnc FAIL MARKREAD INTERNAL_ERROR #chan :Read markers are only stored for sub-clients");
+        assertEquals(0, ReadMarkerHandler.getMarker(config, "#chan"));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link com.dfbnc.util.BackbufferAccountant}.
+ */
+public class BackbufferAccountantTest {
+
+    /**
+     * Tests that going over the budget drops lines from the backbuffer that
+     * was attached to least recently.
+     */
+    @Test
+    public void testBudgetTrimsLeastRecentlyAttached() throws InterruptedException {
+        final BackbufferAccountant accountant = new BackbufferAccountant();
+        final BackbufferList idle = new BackbufferList(10000);
+        final BackbufferList active = new BackbufferList(10000);
+
+        // Given two backbuffers, one of which was attached to much more
+        // recently than the other
+        accountant.register(idle);
+        Thread.sleep(5);
+        accountant.register(active);
+        for (int i = 0; i < 1000; i++) {
+            idle.add(i, "idle message " + i);
+        }
+        accountant.attached(active);
+
+        // When the budget is set below what is in use, and more is added
+        accountant.setBudget(accountant.getUsage() / 2);
+        for (int i = 0; i < 50; i++) {
+            active.add(i, "active message " + i);
+        }
+
+        // Then usage is within budget, and the idle backbuffer was trimmed
+        assertTrue(accountant.getUsage() <= accountant.getBudget());
+        assertTrue(idle.size() < 1000);
+        assertEquals(50, active.size());
+        assertEquals(1000 - idle.size(), accountant.getEvictedLines());
+        assertEquals("idle message 999", idle.get(idle.size() - 1).getMessage());
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link com.dfbnc.util.BackbufferList}.
+ */
+public class BackbufferListTest {
+
+    private BackbufferList list;
+
+    @Before
+    public void setUp() {
+        list = new BackbufferList(3);
+    }
+
+    /**
+     * Tests that messages come back out in the order they were added.
+     */
+    @Test
+    public void testMessagesAreReturnedInOrder() {
+        // When messages are added
+        list.add(1, "one");
+        list.add(2, "two");
+
+        // Then they are returned oldest first
+        final List<BackbufferMessage> messages = toList(list);
+        assertEquals(2, messages.size());
+        assertEquals(1, messages.get(0).getTime());
+        assertEquals("one", messages.get(0).getMessage());
+        assertEquals(2, messages.get(1).getTime());
+        assertEquals("two", messages.get(1).getMessage());
+    }
+
+    /**
+     * Tests that adding beyond the capacity drops the oldest messages.
+     */
+    @Test
+    public void testAddingBeyondCapacity() {
+        // When more messages are added than the list can hold
+        for (int i = 0; i < 10; i++) {
+            list.add(i, "message " + i);
+        }
+
+        // Then only the newest messages are kept
+        assertEquals(3, list.size());
+        assertEquals("message 7", list.get(0).getMessage());
+        assertEquals("message 9", list.get(2).getMessage());
+    }
+
+    /**
+     * Tests that reducing the capacity drops the oldest messages.
+     */
+    @Test
+    public void testReducingCapacity() {
+        // Given a full list
+        list.add(1, "one");
+        list.add(2, "two");
+        list.add(3, "three");
+
+        // When the capacity is reduced
+        list.setCapacity(1);
+
+        // Then only the newest message is kept
+        assertEquals(1, list.size());
+        assertEquals("three", list.get(0).getMessage());
+
+        // And when the capacity is increased again, new messages are kept
+        list.setCapacity(3);
+        list.add(4, "four");
+        assertEquals(2, list.size());
+        assertEquals("three", list.get(0).getMessage());
+        assertEquals("four", list.get(1).getMessage());
+    }
+
+    /**
+     * Tests that a list with no capacity never stores anything.
+     */
+    @Test
+    public void testZeroCapacity() {
+        list.setCapacity(0);
+        list.add(1, "one");
+        assertTrue(list.isEmpty());
+    }
+
+    /**
+     * Tests that messages of varying lengths survive the data area wrapping
+     * around and being resized.
+     */
+    @Test
+    public void testWrappingData() {
+        // Given a list with a decent capacity
+        list.setCapacity(50);
+
+        // When lots of messages of different lengths (and non-ascii content)
+        // are added
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final StringBuilder message = new StringBuilder("£" + i + " ");
+            for (int j = 0; j < i % 97; j++) {
+                message.append((char) ('a' + (j % 26)));
+            }
+            list.add(i, message.toString());
+            expected.add(message.toString());
+        }
+
+        // Then the newest messages are all intact
+        final List<BackbufferMessage> messages = toList(list);
+        assertEquals(50, messages.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(950 + i, messages.get(i).getTime());
+            assertEquals(expected.get(950 + i), messages.get(i).getMessage());
+        }
+    }
+
+    /**
+     * Tests that copies are independent of the original list.
+     */
+    @Test
+    public void testCopy() {
+        // Given a list with some messages
+        list.add(1, "one");
+        list.add(2, "two");
+
+        // When it is copied and the original is changed
+        final BackbufferList copy = list.copy();
+        list.add(3, "three");
+        list.add(4, "four");
+
+        // Then the copy still holds the original messages
+        assertEquals(2, copy.size());
+        assertEquals("one", copy.get(0).getMessage());
+        assertEquals("two", copy.get(1).getMessage());
+
+        // And the copy can be added to independently
+        copy.add(5, "five");
+        assertEquals(3, copy.size());
+        assertEquals("five", copy.get(2).getMessage());
+        assertEquals("four", list.get(2).getMessage());
+    }
+
+    /**
+     * Tests that a replay only covers the requested, recent enough messages.
+     */
+    @Test
+    public void testReplayLimitAndTime() {
+        // Given a list with some messages
+        list.setCapacity(10);
+        for (int i = 0; i < 10; i++) {
+            list.add(i, "message " + i);
+        }
+
+        // When the last 5 messages from time 7 onwards are replayed
+        final BackbufferList.Cursor cursor = list.replay(5, 7);
+
+        // Then only messages 7, 8 and 9 are returned
+        assertEquals(5, cursor.size());
+        final List<BackbufferMessage> messages = toList(cursor);
+        assertEquals(3, messages.size());
+        assertEquals("message 7", messages.get(0).getMessage());
+        assertEquals("message 9", messages.get(2).getMessage());
+    }
+
+    /**
+     * Tests that a replay copes with the list changing underneath it.
+     */
+    @Test
+    public void testReplayWhileAdding() {
+        // Given a list with more messages than a cursor decodes at once
+        list.setCapacity(100);
+        for (int i = 0; i < 100; i++) {
+            list.add(i, "message " + i);
+        }
+
+        // When a replay is started, and more messages are added part way
+        // through
+        final BackbufferList.Cursor cursor = list.replay(100, 0);
+        final List<BackbufferMessage> messages = new ArrayList<>();
+        messages.add(cursor.next());
+        for (int i = 100; i < 180; i++) {
+            list.add(i, "message " + i);
+        }
+        while (cursor.hasNext()) {
+            messages.add(cursor.next());
+        }
+
+        // Then messages that were dropped are skipped, and new messages are
+        // not included
+        assertEquals("message 0", messages.get(0).getMessage());
+        assertEquals("message 63", messages.get(63).getMessage());
+        assertEquals("message 80", messages.get(64).getMessage());
+        assertEquals("message 99", messages.get(messages.size() - 1).getMessage());
+    }
+
+    /**
+     * Tests that older messages are compressed and can still be read back.
+     */
+    @Test
+    public void testCompressedMessages() {
+        // Given a list that only keeps 10 messages uncompressed
+        list.setCapacity(500);
+        list.setHotLimit(10);
+        list.setBlockSize(256);
+
+        // When lots of messages are added
+        for (int i = 0; i < 1000; i++) {
+            list.add(i, "message " + i);
+        }
+
+        // Then the newest messages are all still there, in order
+        assertEquals(500, list.size());
+        final List<BackbufferMessage> messages = toList(list);
+        assertEquals(500, messages.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals(500 + i, messages.get(i).getTime());
+            assertEquals("message " + (500 + i), messages.get(i).getMessage());
+            assertEquals(messages.get(i).getSequence(), list.getFirstSequence() + i);
+        }
+        assertEquals("message 600", list.get(100).getMessage());
+        assertEquals(600, list.getTime(100));
+        assertEquals(list.getFirstSequence() + 100, list.findSequence(600));
+
+        // And they are stored in less space than they would be uncompressed
+        assertTrue(list.getDataSize() < "message 999".length() * 250);
+
+        // And a replay only returns recent enough messages
+        final List<BackbufferMessage> replayed = toList(list.replay(100, 950));
+        assertEquals(50, replayed.size());
+        assertEquals("message 950", replayed.get(0).getMessage());
+
+        // And so does one that starts part way through the compressed ones
+        final List<BackbufferMessage> older = toList(list.replay(500, 700));
+        assertEquals(300, older.size());
+        assertEquals("message 700", older.get(0).getMessage());
+        assertEquals("message 999", older.get(299).getMessage());
+
+        // And copies have the same messages
+        assertEquals("message 500", list.copy().get(0).getMessage());
+    }
+
+    /**
+     * Tests that shrinking a list with compressed and uncompressed messages
+     * drops them all in one go.
+     */
+    @Test
+    public void testShrinkingCompressedList() {
+        // Given a list with compressed and uncompressed messages
+        list.setCapacity(500);
+        list.setHotLimit(10);
+        list.setBlockSize(256);
+        for (int i = 0; i < 500; i++) {
+            list.add(i, "message " + i);
+        }
+
+        // When it is shrunk to less than the uncompressed messages, and then
+        // grown and added to again
+        list.setCapacity(5);
+        assertEquals(5, list.size());
+        list.setCapacity(20);
+        for (int i = 500; i < 520; i++) {
+            list.add(i, "message " + i);
+        }
+
+        // Then only the newest messages are kept, with the right sizes
+        final List<BackbufferMessage> messages = toList(list);
+        assertEquals(20, messages.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("message " + (500 + i), messages.get(i).getMessage());
+        }
+        assertEquals(20 * "message 500".length(), list.getDataSize());
+    }
+
+    /**
+     * Tests that trimming drops just enough of the oldest messages.
+     */
+    @Test
+    public void testTrim() {
+        // Given a list with compressed and uncompressed messages
+        list.setCapacity(5000);
+        list.setHotLimit(100);
+        list.setBlockSize(256);
+        for (int i = 0; i < 5000; i++) {
+            list.add(i, "message " + i);
+        }
+        final BackbufferList other = list.copy();
+
+        // When some memory is asked for
+        final long before = list.getMemoryUsage();
+        final int dropped = list.trim(before / 2);
+
+        // Then at least that much is freed, and the newest messages are kept
+        assertTrue(list.getMemoryUsage() <= before / 2 + before % 2);
+        assertEquals(5000 - dropped, list.size());
+        assertEquals("message 4999", list.get(list.size() - 1).getMessage());
+        assertEquals("message " + dropped, list.get(0).getMessage());
+
+        // And asking for less drops fewer messages
+        assertTrue(other.trim(before / 4) < dropped);
+
+        // And asking for everything empties the list
+        assertEquals(5000 - dropped, list.trim(Long.MAX_VALUE / 2));
+        assertEquals(0, list.size());
+    }
+
+    private static List<BackbufferMessage> toList(final Iterable<BackbufferMessage> list) {
+        return toList(list.iterator());
+    }
+
+    private static List<BackbufferMessage> toList(final Iterator<BackbufferMessage> iterator) {
+        final List<BackbufferMessage> result = new ArrayList<>();
+        while (iterator.hasNext()) {
+            result.add(iterator.next());
+        }
+        return result;
+    }
+}
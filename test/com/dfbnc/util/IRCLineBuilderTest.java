@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link com.dfbnc.util.IRCLineBuilder}.
+ */
+public class IRCLineBuilderTest {
+
+    /**
+     * Tests that lines are built the same way String.format would.
+     */
+    @Test
+    public void testBuild() {
+        assertEquals(":-BNC!bot@DFBnc.Server NOTICE nick :hello there",
+                IRCLineBuilder.get().source("-BNC", "bot", "DFBnc.Server").command("NOTICE").param("nick").trailing("hello there").build());
+        assertEquals(":DFBnc.Server 005 nick A B :are supported",
+                IRCLineBuilder.get().source("DFBnc.Server").command(5).param("nick A B").trailing("are supported").build());
+        assertEquals(":DFBnc.Server 221 nick +i",
+                IRCLineBuilder.get().source("DFBnc.Server").command(221).param("nick").param("+i").build());
+    }
+
+    /**
+     * Tests that building a line while another is being built doesn't
+     * disturb the outer line.
+     */
+    @Test
+    public void testNestedBuild() {
+        final String line = IRCLineBuilder.get().source("server").command("NOTICE").param(IRCLineBuilder.get().source("inner").command("PING").build()).trailing("text").build();
+        assertEquals(":server NOTICE :inner PING :text", line);
+
+        // And the thread's builder is used again afterwards
+        assertEquals(":server PONG", IRCLineBuilder.get().source("server").command("PONG").build());
+    }
+
+    /**
+     * Tests that tags end up at the start, whenever they are added.
+     */
+    @Test
+    public void testTags() {
+        assertEquals("@time=now;flag :nick JOIN #chan",
+                IRCLineBuilder.get().tag("time", "now").source("nick").command("JOIN").tag("flag", null).param("#chan").build());
+    }
+}
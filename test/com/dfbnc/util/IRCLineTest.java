@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for {@link com.dfbnc.util.IRCLine}.
+ */
+public class IRCLineTest {
+
+    /**
+     * Tests that tag values are escaped, and can be read back.
+     */
+    @Test
+    public void testTagEscaping() {
+        // Given tags with characters that need escaping
+        final StringBuilder tags = new StringBuilder();
+        IRCLine.appendTag(tags, "a", "b c;d\\e\r\n");
+        IRCLine.appendTag(tags, "flag", null);
+
+        // When a line is created with them
+        final IRCLine line = IRCLine.fromEncoded(tags.toString(), ":nick PRIVMSG #chan :hi");
+
+        // Then they are escaped when sent
+        assertEquals("@a=b\\sc\\:d\\\\e\\r\\n;flag :nick PRIVMSG #chan :hi", line.toString());
+
+        // And they are unescaped when read back
+        assertEquals("b c;d\\e\r\n", IRCLine.unescapeTag("b\\sc\\:d\\\\e\\r\\n"));
+    }
+
+    /**
+     * Tests that tags can be left off without changing the line.
+     */
+    @Test
+    public void testLeavingOffTags() {
+        // Given a line without tags, and one with
+        final IRCLine line = new IRCLine(":nick PRIVMSG #chan :hi");
+        final IRCLine tagged = IRCLine.fromEncoded("time=now;x=y\\sz", ":nick PRIVMSG #chan :hi");
+
+        // Then only the tagged line has them
+        assertEquals(":nick PRIVMSG #chan :hi", line.toString());
+        assertEquals("", line.getEncodedTags());
+        assertEquals("@time=now;x=y\\sz :nick PRIVMSG #chan :hi", tagged.toString());
+
+        // And they can be left off when sending
+        assertSame(tagged.getBody(), tagged.toString(false));
+        assertEquals(":nick PRIVMSG #chan :hi", tagged.toString(false));
+    }
+}
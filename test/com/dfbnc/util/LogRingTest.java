@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link com.dfbnc.util.LogRing}.
+ */
+public class LogRingTest {
+
+    /**
+     * Tests that only the most recent lines are kept.
+     */
+    @Test
+    public void testCapacity() {
+        // Given a ring that keeps 3 lines
+        final LogRing ring = new LogRing(3);
+
+        // When more lines than that are added
+        for (int i = 0; i < 10; i++) {
+            ring.add("line " + i);
+        }
+
+        // Then only the newest are returned
+        assertEquals(3, ring.size());
+        final List<String> lines = ring.getLines();
+        assertEquals(3, lines.size());
+        assertEquals("line 7", lines.get(0));
+        assertEquals("line 9", lines.get(2));
+    }
+
+    /**
+     * Tests that a reader that falls more than the backlog behind is told how
+     * many lines it missed.
+     */
+    @Test
+    public void testDroppedLinesAreCounted() {
+        // Given a ring that a reader can only fall 16 lines behind
+        final LogRing ring = new LogRing(4, 16);
+        final List<String> read = new ArrayList<>();
+        final List<Long> skipped = new ArrayList<>();
+
+        // When 20 lines are added before it reads
+        for (int i = 0; i < 20; i++) {
+            ring.add("line " + i);
+        }
+        final long position = ring.read(0, read::add, skipped::add);
+
+        // Then it is told about the 4 it missed, and reads the rest
+        assertEquals(20, position);
+        assertEquals(Arrays.asList(4L), skipped);
+        assertEquals(16, read.size());
+        assertEquals("line 4", read.get(0));
+
+        // And a bigger backlog keeps more for it
+        ring.setBacklog(64);
+        for (int i = 0; i < 40; i++) {
+            ring.add("more " + i);
+        }
+        read.clear();
+        ring.read(position, read::add, skipped::add);
+        assertEquals(40, read.size());
+        assertEquals(1, skipped.size());
+    }
+
+    /**
+     * Tests that a reader sees every line from every writer, across a resize.
+     */
+    @Test
+    public void testConcurrentWriters() throws InterruptedException {
+        // Given a ring (big enough that the reader can't be lapped) being
+        // read as it is written to by several threads
+        final LogRing ring = new LogRing(2000);
+        final List<String> read = new ArrayList<>();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    ring.add(id + ":" + i);
+                }
+            });
+            threads[t].start();
+        }
+
+        // When the ring is resized part way through
+        long position = ring.read(0, read::add);
+        ring.setCapacity(5000);
+        position = ring.read(position, read::add);
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        position = ring.read(position, read::add);
+
+        // Then every line was read once, in the order each thread wrote them
+        assertEquals(2000, position);
+        assertEquals(2000, read.size());
+        final int[] next = new int[threads.length];
+        for (final String line : read) {
+            final String[] bits = line.split(":");
+            final int id = Integer.parseInt(bits[0]);
+            assertEquals(next[id]++, Integer.parseInt(bits[1]));
+        }
+        assertEquals(2000, ring.getLines().size());
+    }
+
+    /**
+     * Tests that lines are never paired with the wrong sequence number when
+     * writers lap each other.
+     */
+    @Test
+    public void testLappingWriters() throws InterruptedException {
+        // Given a small ring being written to quickly by many threads
+        final LogRing ring = new LogRing(16);
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 50000; i++) {
+                    ring.add(id + ":" + i);
+                }
+            });
+            threads[t].start();
+        }
+
+        // When snapshots are taken while it is written to
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (final Thread thread : threads) {
+                running |= thread.isAlive();
+            }
+
+            // Then each thread's lines appear once, in the order written
+            final int[] last = new int[threads.length];
+            Arrays.fill(last, -1);
+            for (final String line : ring.getLines()) {
+                final String[] bits = line.split(":");
+                final int id = Integer.parseInt(bits[0]);
+                final int value = Integer.parseInt(bits[1]);
+                assertTrue(line, value > last[id]);
+                last[id] = value;
+            }
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
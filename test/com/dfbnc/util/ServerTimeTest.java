@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2006-2017 DFBnc Developers
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.dfbnc.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link com.dfbnc.util.ServerTime}.
+ */
+public class ServerTimeTest {
+
+    /**
+     * Tests that times are formatted as server-time expects.
+     */
+    @Test
+    public void testFormat() {
+        assertEquals("1970-01-01T00:00:00.000Z", ServerTime.format(0));
+        assertEquals("2017-03-04T05:06:07.089Z", ServerTime.format(1488603967089L));
+        assertEquals("1969-12-31T23:59:59.999Z", ServerTime.format(-1));
+    }
+
+    /**
+     * Tests that times within the same second are formatted correctly.
+     */
+    @Test
+    public void testSameSecond() {
+        // Given a time that has already been formatted
+        ServerTime.format(1488603967000L);
+
+        // When other times in the same second are formatted
+        // Then only the milliseconds change
+        assertEquals("2017-03-04T05:06:07.005Z", ServerTime.format(1488603967005L));
+        assertEquals("2017-03-04T05:06:07.999Z", ServerTime.format(1488603967999L));
+        assertEquals("2017-03-04T05:06:08.000Z", ServerTime.format(1488603968000L));
+    }
+}